@@ -0,0 +1,183 @@
+package org.onos.dclab.bench;
+
+import org.jgrapht.Graph;
+import org.jgrapht.ListenableGraph;
+import org.jgrapht.graph.DefaultEdge;
+import org.onos.dclab.HopDistanceOracle;
+import org.onos.dclab.MaskedGraph;
+import org.onos.dclab.OverlayBuilder;
+import org.onos.dclab.TopologySnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of each overlay builder over the spanning forest of a synthetic topology. Builders
+ * remove edges from the graph they are given, so every invocation gets a fresh copy of the forest
+ * and a new oracle, neither of which is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OverlayBuilderBenchmark {
+    /** Topology that overlays are built over. */
+    @Param({"nestedRing", "fatTree", "randomRegular"})
+    public String topology;
+
+    /** Ring size for nestedRing, number of switches for randomRegular. */
+    @Param({"23"})
+    public int size;
+
+    /** Number of pods in fatTree. */
+    @Param({"8"})
+    public int arity;
+
+    /** Hop lengths of the core ring cycles in nestedRing. */
+    @Param({"1,5"})
+    public String hops;
+
+    /** Hosts per edge switch in nestedRing. */
+    @Param({"0"})
+    public int fanout;
+
+    /** Degree of every switch in randomRegular. */
+    @Param({"4"})
+    public int degree;
+
+    /** Seed for randomRegular. */
+    @Param({"7"})
+    public long seed;
+
+    /** Length of linear overlays. */
+    @Param({"3"})
+    public int length;
+
+    /** Points of star overlays. */
+    @Param({"3"})
+    public int points;
+
+    /** Depth of tree overlays. */
+    @Param({"2"})
+    public int depth;
+
+    /** Fanout of tree overlays. */
+    @Param({"2"})
+    public int treeFanout;
+
+    /** Spines of Clos overlays. */
+    @Param({"2"})
+    public int spines;
+
+    /** Leaves of Clos overlays. */
+    @Param({"4"})
+    public int leaves;
+
+    /** Maximum number of overlays built per invocation, same as the config file default. */
+    @Param({"1000"})
+    public int count;
+
+    /** True if linear overlays should search for candidates concurrently. */
+    @Param({"false"})
+    public boolean parallel;
+
+    /** Forest that every invocation starts from, never modified, and a view of it that invocations copy. */
+    private Graph<Integer, DefaultEdge> forest;
+    private MaskedGraph forestView;
+
+    /** Every link of the topology, which Clos overlays are built over. */
+    private TopologySnapshot snapshot;
+
+    /** Linear overlays of forest, removed again by the removeSubTopology benchmark. */
+    private List<Graph<Integer, DefaultEdge>> linearTopos;
+
+    private ForkJoinPool searchPool;
+    private OverlayBuilder builder;
+
+    /** State for the current invocation. */
+    private ListenableGraph<Integer, DefaultEdge> graph;
+    private HopDistanceOracle oracle;
+    private List<Integer> nodes;
+    private List<DefaultEdge> edges;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        Topologies topologies = Topologies.create(topology, size, arity, hops, fanout, degree, seed);
+        forest = topologies.forest();
+        snapshot = topologies.snapshot();
+        searchPool = parallel ? new ForkJoinPool() : null;
+        builder = new OverlayBuilder(searchPool);
+
+        forestView = new MaskedGraph(forest);
+        ListenableGraph<Integer, DefaultEdge> copy = forestView.copy();
+        linearTopos = builder.createLinearTopos(copy, new HopDistanceOracle(copy), length, count, false);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        graph = forestView.copy();
+        oracle = new HopDistanceOracle(graph);
+        nodes = new ArrayList<>(forest.vertexSet());
+        edges = new ArrayList<>(forest.edgeSet());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        if (searchPool != null) {
+            searchPool.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public List<Graph<Integer, DefaultEdge>> linear() {
+        return builder.createLinearTopos(graph, oracle, length, count, parallel);
+    }
+
+    @Benchmark
+    public List<Graph<Integer, DefaultEdge>> star() {
+        return builder.createStarTopos(graph, oracle, points, count);
+    }
+
+    @Benchmark
+    public List<Graph<Integer, DefaultEdge>> tree() {
+        return builder.createTreeTopos(graph, oracle, depth, treeFanout, count);
+    }
+
+    @Benchmark
+    public List<Graph<Integer, DefaultEdge>> clos() {
+        return builder.createClosTopos(snapshot, graph, spines, leaves, count);
+    }
+
+    /**
+     * Trims every path leading to a leaf of the forest down to a single vertex
+     * @return  Vertices left after trimming
+     */
+    @Benchmark
+    public List<Integer> trimEdges() {
+        builder.trimEdges(forest, nodes, edges, nodes.size(), false);
+        return nodes;
+    }
+
+    @Benchmark
+    public Graph<Integer, DefaultEdge> removeSubTopology() {
+        builder.removeSubTopology(graph, linearTopos);
+        return graph;
+    }
+}
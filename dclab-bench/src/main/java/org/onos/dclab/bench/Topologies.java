@@ -0,0 +1,223 @@
+package org.onos.dclab.bench;
+
+import org.jgrapht.ListenableGraph;
+import org.jgrapht.graph.DefaultEdge;
+import org.jgrapht.graph.DefaultListenableGraph;
+import org.jgrapht.graph.SimpleGraph;
+import org.onos.dclab.LinkWeights;
+import org.onos.dclab.TopologySnapshot;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.DefaultTopologyEdge;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Synthetic switch topologies for benchmarks. Each topology is a list of links between integer
+ * switch ids, in the order a controller would discover them.
+ */
+public final class Topologies {
+    /** Number of attempts at pairing stubs before a random regular graph is given up on. */
+    private static final int MAX_ATTEMPTS = 1000;
+
+    /** Provider of the links in snapshots. */
+    private static final ProviderId PROVIDER_ID = new ProviderId("dclab", "org.onos.dclab.bench");
+
+    /** Number of switches in the topology. */
+    private final int size;
+
+    /** Links as {source, destination} pairs. */
+    private final List<int[]> links;
+
+    private Topologies(int size, List<int[]> links) {
+        this.size = size;
+        this.links = links;
+    }
+
+    /**
+     * Creates the nested ring from nested_ring.py, with switches numbered cores first then edges
+     * @param size      Number of switches in each ring
+     * @param hops      Hop lengths of each cycle in the core ring
+     * @param fanout    Hosts per edge switch, added as leaf vertices
+     * @return          Nested ring topology
+     */
+    public static Topologies nestedRing(int size, int[] hops, int fanout) {
+        List<int[]> links = new ArrayList<>();
+        int hosts = 2 * size;
+        for (int e = 0; e < size; e++) {
+            for (int f = 0; f < fanout; f++) {
+                links.add(new int[]{size + e, hosts++});
+            }
+        }
+        for (int h : hops) {
+            for (int c = 0; c < size; c++) {
+                links.add(new int[]{c, (c + h) % size});
+            }
+        }
+        for (int e = 0; e < size; e++) {
+            links.add(new int[]{size + e, size + (e + 1) % size});
+            links.add(new int[]{size + e, e});
+        }
+        return new Topologies(hosts, links);
+    }
+
+    /**
+     * Creates a k-ary fat tree, with switches numbered core, then aggregation and edge for each pod
+     * @param k Number of pods, must be even
+     * @return  Fat tree topology
+     */
+    public static Topologies fatTree(int k) {
+        if (k <= 0 || k % 2 != 0) {
+            throw new IllegalArgumentException("Fat tree arity must be a positive even number, got " + k);
+        }
+        int half = k / 2;
+        int cores = half * half;
+        List<int[]> links = new ArrayList<>();
+        for (int p = 0; p < k; p++) {
+            int agg = cores + p * k;
+            int edge = agg + half;
+            for (int a = 0; a < half; a++) {
+                for (int c = 0; c < half; c++) {
+                    links.add(new int[]{agg + a, a * half + c});
+                }
+                for (int e = 0; e < half; e++) {
+                    links.add(new int[]{edge + e, agg + a});
+                }
+            }
+        }
+        return new Topologies(cores + k * k, links);
+    }
+
+    /**
+     * Creates a random regular graph by pairing stubs until a simple graph comes out
+     * @param size      Number of switches
+     * @param degree    Number of links at every switch, size * degree must be even
+     * @param seed      Seed so that every fork benchmarks the same graph
+     * @return          Random regular topology
+     */
+    public static Topologies randomRegular(int size, int degree, long seed) {
+        if (degree >= size || (size * degree) % 2 != 0) {
+            throw new IllegalArgumentException("No " + degree + "-regular graph on " + size + " vertices");
+        }
+        Random random = new Random(seed);
+        List<Integer> stubs = new ArrayList<>();
+        for (int v = 0; v < size; v++) {
+            for (int d = 0; d < degree; d++) {
+                stubs.add(v);
+            }
+        }
+
+        /* Retry the whole pairing on self loops or parallel links, which keeps the result uniform */
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Collections.shuffle(stubs, random);
+            List<int[]> links = new ArrayList<>();
+            Set<Long> seen = new HashSet<>();
+            boolean simple = true;
+            for (int i = 0; i < stubs.size() && simple; i += 2) {
+                int v = stubs.get(i);
+                int u = stubs.get(i + 1);
+                simple = v != u && seen.add((long) Math.min(v, u) * size + Math.max(v, u));
+                links.add(new int[]{v, u});
+            }
+            if (simple) {
+                return new Topologies(size, links);
+            }
+        }
+        throw new IllegalStateException("Unable to pair stubs into a simple " + degree + "-regular graph");
+    }
+
+    /**
+     * Creates a topology by name, using the parameters that apply to it
+     * @param name      One of nestedRing, fatTree or randomRegular
+     * @param size      Ring size, or number of switches in a random regular graph
+     * @param arity     Number of pods in a fat tree
+     * @param hops      Hop lengths for the nested ring, separated by commas
+     * @param fanout    Hosts per edge switch for the nested ring
+     * @param degree    Degree of a random regular graph
+     * @param seed      Seed of a random regular graph
+     * @return          Topology
+     */
+    public static Topologies create(String name, int size, int arity, String hops, int fanout, int degree, long seed) {
+        switch (name) {
+            case "nestedRing":
+                return nestedRing(size, Arrays.stream(hops.split(",")).mapToInt(Integer::parseInt).toArray(), fanout);
+            case "fatTree":
+                return fatTree(arity);
+            case "randomRegular":
+                return randomRegular(size, degree, seed);
+            default:
+                throw new IllegalArgumentException("Unknown topology " + name);
+        }
+    }
+
+    /**
+     * Keeps the links that join two separate trees in discovery order, the same way a topology
+     * snapshot does before overlays are built
+     * @return  Spanning forest over switch ids
+     */
+    public ListenableGraph<Integer, DefaultEdge> forest() {
+        ListenableGraph<Integer, DefaultEdge> graph = new DefaultListenableGraph<>(new SimpleGraph<>(DefaultEdge.class));
+        int[] parent = new int[size];
+        for (int v = 0; v < size; v++) {
+            parent[v] = v;
+            graph.addVertex(v);
+        }
+        for (int[] link : links) {
+            int rootV = find(parent, link[0]);
+            int rootU = find(parent, link[1]);
+            if (rootV != rootU) {
+                parent[rootV] = rootU;
+                graph.addEdge(link[0], link[1]);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Builds a snapshot of every link, numbering devices the same way as the switch ids of forest
+     * @return  Snapshot of the whole topology, which Clos overlays are built over
+     */
+    public TopologySnapshot snapshot() {
+        List<TopologyVertex> vertexes = new ArrayList<>();
+        for (int v = 0; v < size; v++) {
+            vertexes.add(new DefaultTopologyVertex(DeviceId.deviceId(String.format("of:%016x", v))));
+        }
+        int[] ports = new int[size];
+        List<TopologyEdge> edges = new ArrayList<>();
+        for (int[] link : links) {
+            TopologyVertex src = vertexes.get(link[0]);
+            TopologyVertex dst = vertexes.get(link[1]);
+            Link onosLink = DefaultLink.builder()
+                    .providerId(PROVIDER_ID)
+                    .src(new ConnectPoint(src.deviceId(), PortNumber.portNumber(++ports[link[0]])))
+                    .dst(new ConnectPoint(dst.deviceId(), PortNumber.portNumber(++ports[link[1]])))
+                    .type(Link.Type.DIRECT)
+                    .state(Link.State.ACTIVE)
+                    .build();
+            edges.add(new DefaultTopologyEdge(src, dst, onosLink));
+        }
+        return TopologySnapshot.build(vertexes, edges, false, LinkWeights.HOPS);
+    }
+
+    /** Finds the root of a vertex in a union-find forest, halving paths along the way. */
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+}
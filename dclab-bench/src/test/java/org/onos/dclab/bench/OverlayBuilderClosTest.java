@@ -0,0 +1,116 @@
+package org.onos.dclab.bench;
+
+import org.jgrapht.Graph;
+import org.jgrapht.graph.DefaultEdge;
+import org.junit.Test;
+import org.onos.dclab.BipartiteFlow;
+import org.onos.dclab.OverlayBuilder;
+import org.onos.dclab.TopologySnapshot;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that Clos overlays are complete bipartite graphs over physical links that share no switch,
+ * and that the b-matching assigning their leaves finds assignments a greedy one would miss.
+ */
+public class OverlayBuilderClosTest {
+    @Test
+    public void closOverlaysAreCompleteAndDisjoint() {
+        /* Every pod of a k-ary fat tree holds a complete bipartite graph between its aggregation and edge switches */
+        assertClos(Topologies.fatTree(8), 2, 2, 1000);
+        assertClos(Topologies.fatTree(8), 4, 4, 1000);
+        assertClos(Topologies.fatTree(8), 2, 4, 8);
+        assertClos(Topologies.randomRegular(120, 4, 1), 1, 3, 1000);
+    }
+
+    @Test
+    public void fatTreeOverlayCounts() {
+        TopologySnapshot snapshot = Topologies.fatTree(8).snapshot();
+        assertEquals(8, build(snapshot, 4, 4, 1000).size());
+        assertEquals(3, build(snapshot, 4, 4, 3).size());
+
+        /* Only the 8 aggregation switches of the same index share 4 leaves, their core switches */
+        assertEquals(4, build(snapshot, 5, 4, 1000).size());
+        assertEquals(0, build(snapshot, 9, 4, 1000).size());
+    }
+
+    @Test
+    public void flowReassignsLeavesTakenGreedily() {
+        /* Group 0 can take either leaf, group 1 only leaf 0, so leaf 0 has to move to group 1 */
+        BipartiteFlow flow = new BipartiteFlow(2, 2);
+        flow.setCapacity(0, 1);
+        flow.setCapacity(1, 1);
+        flow.addEdge(0, 0);
+        flow.addEdge(0, 1);
+        flow.addEdge(1, 0);
+        assertEquals(2, flow.solve());
+        assertArrayEquals(new int[]{1, 0}, flow.assignment());
+    }
+
+    @Test
+    public void flowRespectsCapacities() {
+        BipartiteFlow flow = new BipartiteFlow(2, 4);
+        flow.setCapacity(0, 3);
+        flow.setCapacity(1, 1);
+        for (int r = 0; r < 4; r++) {
+            flow.addEdge(0, r);
+            flow.addEdge(1, r);
+        }
+        assertEquals(4, flow.solve());
+        int[] taken = new int[2];
+        for (int l : flow.assignment()) {
+            taken[l]++;
+        }
+        assertArrayEquals(new int[]{3, 1}, taken);
+    }
+
+    private static List<Graph<Integer, DefaultEdge>> build(TopologySnapshot snapshot, int spines, int leaves,
+                                                           int count) {
+        return new OverlayBuilder(null).createClosTopos(snapshot, snapshot.forest().copy(), spines, leaves, count);
+    }
+
+    /**
+     * Builds Clos overlays over a topology and checks their shape
+     * @param topology  Topology to build over
+     * @param spines    Number of spines in each overlay
+     * @param leaves    Number of leaves in each overlay
+     * @param count     Maximum number of overlays to build
+     */
+    private static void assertClos(Topologies topology, int spines, int leaves, int count) {
+        TopologySnapshot snapshot = topology.snapshot();
+        List<Graph<Integer, DefaultEdge>> topos = build(snapshot, spines, leaves, count);
+        String name = "clos " + spines + "," + leaves;
+        assertTrue(name + " built nothing", !topos.isEmpty());
+        assertTrue(name + " built too many", topos.size() <= count);
+
+        Set<Integer> seen = new HashSet<>();
+        for (Graph<Integer, DefaultEdge> topo : topos) {
+            for (int v : topo.vertexSet()) {
+                assertTrue(name + " shares switch " + v, seen.add(v));
+            }
+            assertEquals(name, spines + leaves, topo.vertexSet().size());
+
+            /* Overlays link every spine to every leaf, with the spine as the source */
+            Set<Integer> spineSet = new HashSet<>();
+            Set<Integer> leafSet = new HashSet<>();
+            for (DefaultEdge e : topo.edgeSet()) {
+                spineSet.add(topo.getEdgeSource(e));
+                leafSet.add(topo.getEdgeTarget(e));
+            }
+            assertEquals(name, spines, spineSet.size());
+            assertEquals(name, leaves, leafSet.size());
+            for (int w : spineSet) {
+                for (int u : leafSet) {
+                    assertTrue(name + " misses link " + w + "-" + u, topo.containsEdge(w, u));
+                    assertTrue(name + " has no physical link " + w + "-" + u, snapshot.edgeId(w, u) >= 0);
+                }
+            }
+        }
+    }
+}
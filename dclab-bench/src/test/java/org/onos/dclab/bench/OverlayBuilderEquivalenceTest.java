@@ -0,0 +1,134 @@
+package org.onos.dclab.bench;
+
+import org.jgrapht.Graph;
+import org.jgrapht.ListenableGraph;
+import org.jgrapht.graph.DefaultEdge;
+import org.junit.Test;
+import org.onos.dclab.HopDistanceOracle;
+import org.onos.dclab.MaskedGraph;
+import org.onos.dclab.OverlayBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the overlay builders build the same overlays over a masked view of the forest as over
+ * a listenable copy of it, and the same overlays they built before components were spliced instead
+ * of copied, leaves were trimmed in bulk and component diameters were bounded. Tree overlays are
+ * compared to the ones built since subtrees are kept across builds, which changed them on purpose.
+ */
+public class OverlayBuilderEquivalenceTest {
+    /** Number of overlays and fingerprint of every topology and build, in the order they are run. */
+    private static final String[] BASELINE = {
+            "ring23 linear 3 n=23 h=36f5fe13",
+            "ring23 linear 6 n=8 h=5451a12d",
+            "ring23 star 3 n=11 h=d581d698",
+            "ring23 star 5 n=6 h=e192fba",
+            "ring23 tree 2,2 n=3 h=883df25c",
+            "ring23 tree 3,2 n=0 h=0",
+            "ring40 linear 3 n=27 h=1f0072f7",
+            "ring40 linear 6 n=13 h=6c46aadc",
+            "ring40 star 3 n=10 h=c2ff3eb4",
+            "ring40 star 5 n=5 h=3589da93",
+            "ring40 tree 2,2 n=6 h=3d6b7ecb",
+            "ring40 tree 3,2 n=2 h=9add1a8",
+            "fat8 linear 3 n=11 h=55393b0a",
+            "fat8 linear 6 n=1 h=50e34d17",
+            "fat8 star 3 n=14 h=eacbc43a",
+            "fat8 star 5 n=5 h=f669406f",
+            "fat8 tree 2,2 n=0 h=0",
+            "fat8 tree 3,2 n=0 h=0",
+            "rr1 linear 3 n=28 h=3a07e2a8",
+            "rr1 linear 6 n=11 h=bad4ed9f",
+            "rr1 star 3 n=9 h=c436c553",
+            "rr1 star 5 n=4 h=4d37f9e0",
+            "rr1 tree 2,2 n=5 h=bebb6f84",
+            "rr1 tree 3,2 n=0 h=0",
+            "rr2 linear 3 n=30 h=5fbca94d",
+            "rr2 linear 6 n=9 h=970335b",
+            "rr2 star 3 n=8 h=5a69046c",
+            "rr2 star 5 n=5 h=bb6f37d0",
+            "rr2 tree 2,2 n=3 h=bc1e7063",
+            "rr2 tree 3,2 n=0 h=0",
+    };
+
+    /** Builds overlays over a graph and its oracle. */
+    private interface Build {
+        List<Graph<Integer, DefaultEdge>> apply(OverlayBuilder builder, ListenableGraph<Integer, DefaultEdge> graph,
+                                                HopDistanceOracle oracle);
+    }
+
+    @Test
+    public void maskedViewBuildsSameOverlays() {
+        for (Map.Entry<String, Topologies> topology : topologies().entrySet()) {
+            for (Map.Entry<String, Build> build : builds().entrySet()) {
+                ListenableGraph<Integer, DefaultEdge> copy = topology.getValue().forest();
+                ListenableGraph<Integer, DefaultEdge> view = new MaskedGraph(topology.getValue().forest()).copy();
+                assertEquals(topology.getKey() + " " + build.getKey(),
+                             describe(run(build.getValue(), copy)), describe(run(build.getValue(), view)));
+            }
+        }
+    }
+
+    @Test
+    public void overlaysMatchBaseline() {
+        List<String> actual = new ArrayList<>();
+        for (Map.Entry<String, Topologies> topology : topologies().entrySet()) {
+            for (Map.Entry<String, Build> build : builds().entrySet()) {
+                ListenableGraph<Integer, DefaultEdge> view = new MaskedGraph(topology.getValue().forest()).copy();
+                List<Graph<Integer, DefaultEdge>> topos = run(build.getValue(), view);
+                actual.add(topology.getKey() + " " + build.getKey() + " n=" + topos.size()
+                                   + " h=" + Integer.toHexString(describe(topos).hashCode()));
+            }
+        }
+        assertEquals(String.join("\n", BASELINE), String.join("\n", actual));
+    }
+
+    private static Map<String, Topologies> topologies() {
+        Map<String, Topologies> topologies = new LinkedHashMap<>();
+        topologies.put("ring23", Topologies.nestedRing(23, new int[]{1, 5}, 2));
+        topologies.put("ring40", Topologies.nestedRing(40, new int[]{1, 5, 11}, 1));
+        topologies.put("fat8", Topologies.fatTree(8));
+        topologies.put("rr1", Topologies.randomRegular(120, 4, 1));
+        topologies.put("rr2", Topologies.randomRegular(120, 3, 2));
+        return topologies;
+    }
+
+    private static Map<String, Build> builds() {
+        Map<String, Build> builds = new LinkedHashMap<>();
+        builds.put("linear 3", (b, g, o) -> b.createLinearTopos(g, o, 3, 1000, false));
+        builds.put("linear 6", (b, g, o) -> b.createLinearTopos(g, o, 6, 1000, false));
+        builds.put("star 3", (b, g, o) -> b.createStarTopos(g, o, 3, 1000));
+        builds.put("star 5", (b, g, o) -> b.createStarTopos(g, o, 5, 1000));
+        builds.put("tree 2,2", (b, g, o) -> b.createTreeTopos(g, o, 2, 2, 1000));
+        builds.put("tree 3,2", (b, g, o) -> b.createTreeTopos(g, o, 3, 2, 1000));
+        return builds;
+    }
+
+    private static List<Graph<Integer, DefaultEdge>> run(Build build, ListenableGraph<Integer, DefaultEdge> graph) {
+        return build.apply(new OverlayBuilder(null), graph, new HopDistanceOracle(graph));
+    }
+
+    /**
+     * @param topos Overlays in the order they were built
+     * @return      Sorted vertices and edges of every overlay, independent of edge instances
+     */
+    private static String describe(List<Graph<Integer, DefaultEdge>> topos) {
+        StringBuilder description = new StringBuilder();
+        for (Graph<Integer, DefaultEdge> topo : topos) {
+            TreeSet<String> edges = new TreeSet<>();
+            for (DefaultEdge e : topo.edgeSet()) {
+                int source = topo.getEdgeSource(e);
+                int target = topo.getEdgeTarget(e);
+                edges.add(Math.min(source, target) + "-" + Math.max(source, target));
+            }
+            description.append(new TreeSet<>(topo.vertexSet())).append('|').append(edges).append(';');
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package org.onos.dclab;
+
+import java.util.Arrays;
+
+/**
+ * Maximum b-matching between two vertex sets, solved as a max flow with Dinic's algorithm. Each
+ * left vertex can be matched to up to its capacity of right vertices, and each right vertex to at
+ * most one left vertex. On unit capacity bipartite graphs like these Dinic's algorithm runs in
+ * O(E sqrt(V)), so thousands of switches are matched in milliseconds.
+ */
+public final class BipartiteFlow {
+    /** Number of vertices on each side. */
+    private final int left;
+    private final int right;
+
+    /** Flow network vertex ids of the source and the sink, left vertices come first, then right ones. */
+    private final int source;
+    private final int sink;
+
+    /** Edges stored as parallel arrays, with each edge followed by its reverse. */
+    private int[] to = new int[16];
+    private int[] cap = new int[16];
+    private int[] next = new int[16];
+    private int edges = 0;
+
+    /** First outgoing edge of each vertex, -1 if there is none. */
+    private final int[] head;
+
+    /** Edge id from the source to each left vertex. */
+    private final int[] sourceEdges;
+
+    /** BFS level of each vertex and next edge to try during the current phase. */
+    private final int[] level;
+    private final int[] iter;
+
+    /**
+     * Creates a network without any edges between the two sides
+     * @param left  Number of left vertices
+     * @param right Number of right vertices
+     */
+    public BipartiteFlow(int left, int right) {
+        this.left = left;
+        this.right = right;
+        this.source = left + right;
+        this.sink = left + right + 1;
+        this.head = new int[left + right + 2];
+        this.level = new int[left + right + 2];
+        this.iter = new int[left + right + 2];
+        Arrays.fill(head, -1);
+
+        this.sourceEdges = new int[left];
+        for (int l = 0; l < left; l++) {
+            sourceEdges[l] = edges;
+            addArc(source, l, 0);
+        }
+        for (int r = 0; r < right; r++) {
+            addArc(left + r, sink, 1);
+        }
+    }
+
+    /**
+     * Sets how many right vertices a left vertex can be matched to
+     * @param l         Left vertex
+     * @param capacity  Maximum number of right vertices
+     */
+    public void setCapacity(int l, int capacity) {
+        cap[sourceEdges[l]] = capacity;
+    }
+
+    /**
+     * Allows a left vertex to be matched to a right vertex
+     * @param l Left vertex
+     * @param r Right vertex
+     */
+    public void addEdge(int l, int r) {
+        addArc(l, left + r, 1);
+    }
+
+    /**
+     * Finds a maximum matching
+     * @return  Number of matched pairs
+     */
+    public int solve() {
+        int flow = 0;
+        while (bfs()) {
+            System.arraycopy(head, 0, iter, 0, head.length);
+            int f;
+            while ((f = dfs(source, Integer.MAX_VALUE)) > 0) {
+                flow += f;
+            }
+        }
+        return flow;
+    }
+
+    /**
+     * Gets the matching found by solve
+     * @return  Left vertex matched to each right vertex, or -1 if it is unmatched
+     */
+    public int[] assignment() {
+        int[] match = new int[right];
+        Arrays.fill(match, -1);
+        for (int l = 0; l < left; l++) {
+            for (int e = head[l]; e != -1; e = next[e]) {
+                /* Forward edges to right vertices with no capacity left carry flow */
+                if (to[e] >= left && to[e] < left + right && (e & 1) == 0 && cap[e] == 0) {
+                    match[to[e] - left] = l;
+                }
+            }
+        }
+        return match;
+    }
+
+    /** Labels vertices with their distance from the source in the residual network. */
+    private boolean bfs() {
+        Arrays.fill(level, -1);
+        int[] queue = new int[level.length];
+        int headPos = 0;
+        int tail = 0;
+        level[source] = 0;
+        queue[tail++] = source;
+        while (headPos < tail) {
+            int v = queue[headPos++];
+            for (int e = head[v]; e != -1; e = next[e]) {
+                if (cap[e] > 0 && level[to[e]] < 0) {
+                    level[to[e]] = level[v] + 1;
+                    queue[tail++] = to[e];
+                }
+            }
+        }
+        return level[sink] >= 0;
+    }
+
+    /** Pushes flow along a path of increasing levels, skipping edges that were already saturated. */
+    private int dfs(int v, int limit) {
+        if (v == sink) {
+            return limit;
+        }
+        for (; iter[v] != -1; iter[v] = next[iter[v]]) {
+            int e = iter[v];
+            if (cap[e] > 0 && level[to[e]] == level[v] + 1) {
+                int f = dfs(to[e], Math.min(limit, cap[e]));
+                if (f > 0) {
+                    cap[e] -= f;
+                    cap[e ^ 1] += f;
+                    return f;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /** Adds an edge with the given capacity and its empty reverse edge. */
+    private void addArc(int v, int u, int capacity) {
+        if (edges + 2 > to.length) {
+            to = Arrays.copyOf(to, to.length * 2);
+            cap = Arrays.copyOf(cap, cap.length * 2);
+            next = Arrays.copyOf(next, next.length * 2);
+        }
+        to[edges] = u;
+        cap[edges] = capacity;
+        next[edges] = head[v];
+        head[v] = edges++;
+        to[edges] = v;
+        cap[edges] = 0;
+        next[edges] = head[u];
+        head[u] = edges++;
+    }
+}
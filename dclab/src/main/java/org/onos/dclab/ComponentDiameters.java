@@ -0,0 +1,275 @@
+package org.onos.dclab;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Longest shortest path of every connected component while a graph is being cut into linear
+ * topologies. Diameters of trees and cycles are found directly, others with lower and upper bounds
+ * on the eccentricity of each vertex, which usually settle after a few breadth first searches instead
+ * of one search per vertex. Diameters are kept until an edge of the component is cut. Ties are
+ * broken in vertex order, so the same path is found as when comparing every pair of vertices.
+ */
+public final class ComponentDiameters {
+    /** Oracle for the graph being cut, used for its adjacency. */
+    private final HopDistanceOracle oracle;
+
+    /** Vertex ids in iteration order of the graph, and the position of each vertex id in it. */
+    private final int[] order;
+    private final int[] position;
+
+    /** Component that each vertex id belongs to, -1 while it is being split. */
+    private final int[] component;
+
+    /** Vertex ids of each component in vertex order, empty once the component has been split. */
+    private final List<int[]> members = new ArrayList<>();
+
+    /** Longest path of each component as {distance, source, destination}, null if it has no edges. */
+    private final List<int[]> longest = new ArrayList<>();
+
+    /** Search buffers, dist is kept UNREACHABLE between searches. */
+    private final int[] dist;
+    private final int[] queue;
+
+    /** Bounds on the eccentricity of each vertex, only valid for the component being searched. */
+    private final int[] lower;
+    private final int[] upper;
+
+    /**
+     * Finds the components of a graph and their diameters
+     * @param oracle    Hop distances for the graph
+     * @param order     Vertex ids in iteration order of the graph
+     */
+    public ComponentDiameters(HopDistanceOracle oracle, int[] order) {
+        int size = oracle.size();
+        this.oracle = oracle;
+        this.order = order;
+        this.position = new int[size];
+        this.component = new int[size];
+        this.dist = new int[size];
+        this.queue = new int[size];
+        this.lower = new int[size];
+        this.upper = new int[size];
+        Arrays.fill(dist, HopDistanceOracle.UNREACHABLE);
+        for (int i = 0; i < order.length; i++) {
+            position[order[i]] = i;
+            component[order[i]] = -1;
+        }
+        partition(order);
+    }
+
+    /**
+     * Gets the longest shortest path over all components, preferring the first source in vertex order
+     * and then the first destination in vertex order if several are as long
+     * @return  Tuple of distance, source id and destination id, or null if the graph has no edges
+     */
+    public int[] longest() {
+        int[] best = null;
+        for (int[] l : longest) {
+            if (l != null && (best == null || l[0] > best[0] || (l[0] == best[0] && position[l[1]] < position[best[1]]))) {
+                best = l;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the components that a component fell apart into after some of its edges were cut
+     * @param v Id of a vertex in the component that was cut
+     */
+    public void split(int v) {
+        int c = component[v];
+        int[] vertices = members.get(c);
+        members.set(c, new int[0]);
+        longest.set(c, null);
+        for (int u : vertices) {
+            component[u] = -1;
+        }
+        partition(vertices);
+    }
+
+    /**
+     * Groups vertices that are not assigned to a component yet into new components
+     * @param vertices  Vertex ids in vertex order, which must include every vertex reachable from them
+     */
+    private void partition(int[] vertices) {
+        for (int v : vertices) {
+            if (component[v] != -1) {
+                continue;
+            }
+            int reached = oracle.search(v, dist, queue);
+            int[] comp = new int[reached];
+            for (int k = 0; k < reached; k++) {
+                comp[k] = position[queue[k]];
+                component[queue[k]] = members.size();
+                dist[queue[k]] = HopDistanceOracle.UNREACHABLE;
+            }
+
+            /* Sort by position so that ties are broken in vertex order */
+            Arrays.sort(comp);
+            for (int k = 0; k < reached; k++) {
+                comp[k] = order[comp[k]];
+            }
+            members.add(comp);
+            longest.add(diameter(comp));
+        }
+    }
+
+    /**
+     * Finds the longest shortest path of a component. Trees and cycles are solved directly, other
+     * components by bounding eccentricities: every search gives a lower and an upper bound on the
+     * eccentricity of every other vertex, and vertices are searched from until the bounds meet
+     * @param comp  Vertex ids of a connected component in vertex order
+     * @return      Tuple of distance, source id and destination id, or null if the component has no edges
+     */
+    private int[] diameter(int[] comp) {
+        if (comp.length < 2) {
+            return null;
+        }
+        int edges = 0;
+        boolean cycle = true;
+        for (int w : comp) {
+            lower[w] = 0;
+            upper[w] = Integer.MAX_VALUE;
+            edges += oracle.degree(w);
+            cycle &= oracle.degree(w) == 2;
+        }
+        edges /= 2;
+
+        int lb;
+        if (edges == comp.length - 1) {
+            lb = treeDiameter(comp);
+        }
+        else if (cycle) {
+            /* Every vertex of a cycle is as far out as every other, which no bound can tell apart */
+            lb = comp.length / 2;
+            for (int w : comp) {
+                lower[w] = lb;
+                upper[w] = lb;
+            }
+        }
+        else {
+            lb = boundedDiameter(comp);
+        }
+
+        /* Every vertex now has an eccentricity of at most lb, so the first one reaching it is the source */
+        for (int w : comp) {
+            if (upper[w] < lb) {
+                continue;
+            }
+            int ecc = sweep(w, comp);
+            if (ecc == lb) {
+                for (int u : comp) {
+                    if (dist[u] == lb) {
+                        reset(comp);
+                        return new int[] {lb, w, u};
+                    }
+                }
+            }
+            reset(comp);
+        }
+        throw new IllegalStateException("No vertex has an eccentricity of " + lb);
+    }
+
+    /**
+     * Finds the diameter of a tree with a double sweep: the farthest vertex from any vertex is an end
+     * of a longest path, and the eccentricity of every vertex is its distance to one of the two ends
+     * @param comp  Vertex ids of a tree
+     * @return      Length of the longest path, with the exact eccentricity of every vertex in both bounds
+     */
+    private int treeDiameter(int[] comp) {
+        int a = farthest(comp[0], comp);
+        int b = farthest(a, comp);
+        sweep(b, comp);
+        reset(comp);
+        for (int w : comp) {
+            upper[w] = lower[w];
+        }
+        return lower[a];
+    }
+
+    /**
+     * Finds the diameter of a component by tightening eccentricity bounds until they meet
+     * @param comp  Vertex ids of a connected component with at least one edge
+     * @return      Length of the longest path, with the bounds of every vertex at most that
+     */
+    private int boundedDiameter(int[] comp) {
+        int[] candidates = Arrays.copyOf(comp, comp.length);
+        int count = candidates.length;
+        int lb = 0;
+        int ub = Integer.MAX_VALUE;
+        boolean high = true;
+        while (lb < ub && count > 0) {
+            /* Alternate between the vertex that may be farthest out and the one that may be most central */
+            int pick = 0;
+            for (int k = 1; k < count; k++) {
+                int w = candidates[k];
+                if (high ? upper[w] > upper[candidates[pick]] : lower[w] < lower[candidates[pick]]) {
+                    pick = k;
+                }
+            }
+            high = !high;
+            sweep(candidates[pick], comp);
+            reset(comp);
+
+            lb = 0;
+            ub = 0;
+            for (int w : comp) {
+                lb = Math.max(lb, lower[w]);
+                ub = Math.max(ub, upper[w]);
+            }
+
+            /* Drop vertices whose eccentricity is known or that can neither be farther out nor tighten other bounds */
+            for (int k = count - 1; k >= 0; k--) {
+                int w = candidates[k];
+                if (lower[w] == upper[w] || (upper[w] <= lb && 2 * lower[w] >= ub)) {
+                    candidates[k] = candidates[--count];
+                }
+            }
+        }
+        return lb;
+    }
+
+    /**
+     * Searches from a vertex and finds the first vertex in vertex order that is farthest from it
+     * @param v     Id of the source vertex
+     * @param comp  Vertex ids of the component that v is in
+     * @return      Id of the farthest vertex
+     */
+    private int farthest(int v, int[] comp) {
+        int ecc = sweep(v, comp);
+        int far = v;
+        for (int w : comp) {
+            if (dist[w] == ecc) {
+                far = w;
+                break;
+            }
+        }
+        reset(comp);
+        return far;
+    }
+
+    /**
+     * Searches from a vertex and tightens the eccentricity bounds of the whole component with it
+     * @param v     Id of the source vertex
+     * @param comp  Vertex ids of the component that v is in
+     * @return      Eccentricity of v, dist holds the distances from v until reset
+     */
+    private int sweep(int v, int[] comp) {
+        int reached = oracle.search(v, dist, queue);
+        int ecc = dist[queue[reached - 1]];
+        for (int w : comp) {
+            lower[w] = Math.max(lower[w], Math.max(dist[w], ecc - dist[w]));
+            upper[w] = Math.min(upper[w], ecc + dist[w]);
+        }
+        return ecc;
+    }
+
+    /** Resets the distances of a component after a search. */
+    private void reset(int[] comp) {
+        for (int w : comp) {
+            dist[w] = HopDistanceOracle.UNREACHABLE;
+        }
+    }
+}
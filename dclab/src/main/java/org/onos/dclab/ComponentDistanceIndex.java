@@ -0,0 +1,156 @@
+package org.onos.dclab;
+
+import org.jgrapht.ListenableGraph;
+import org.jgrapht.event.GraphEdgeChangeEvent;
+import org.jgrapht.event.GraphListener;
+import org.jgrapht.event.GraphVertexChangeEvent;
+import org.jgrapht.graph.DefaultEdge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Closest distances between components while they are being merged into stars and trees. Each
+ * component gets a single multi-source BFS instead of one search per pair of vertices, and the
+ * results are kept between merge rounds until the component changes or an edge on one of its
+ * shortest paths is removed. Components are identified by their list instance, since merging
+ * always creates a new list.
+ */
+public final class ComponentDistanceIndex implements GraphListener<Integer, DefaultEdge> {
+    /** Oracle for the same graph, used for its adjacency. */
+    private final HopDistanceOracle oracle;
+
+    /** Minimum distance allowed between components, closer pairs are reported as unreachable. */
+    private final int minDist;
+
+    /** Search results for each component that is still valid. */
+    private final Map<List<Integer>, Row> rows = new IdentityHashMap<>();
+
+    /** Distances from one component to every vertex, and its closest vertex to each other component. */
+    private static final class Row {
+        /** Hop distance from the closest vertex in the component. */
+        private final int[] dist;
+
+        /** Vertex in the component that each vertex is closest to. */
+        private final int[] nearest;
+
+        /** Distance and closest vertex pair to other components, stored as {distance, source, destination}. */
+        private final Map<List<Integer>, int[]> entries = new IdentityHashMap<>();
+
+        private Row(int[] dist, int[] nearest) {
+            this.dist = dist;
+            this.nearest = nearest;
+        }
+    }
+
+    /**
+     * Creates an index over graph that is kept up to date as edges are removed from it
+     * @param graph     Graph that components are being merged in
+     * @param oracle    Hop distance oracle listening to graph
+     * @param minDist   Minimum distance allowed between components
+     */
+    public ComponentDistanceIndex(ListenableGraph<Integer, DefaultEdge> graph, HopDistanceOracle oracle, int minDist) {
+        this.oracle = oracle;
+        this.minDist = minDist;
+        graph.addGraphListener(this);
+    }
+
+    /**
+     * Calculate closest pairwise distances between components, and the vertices with that distance.
+     * Only components that are new or whose searches were invalidated are searched again. Stops with
+     * rows missing if the calling thread is interrupted, which callers check before using the rows.
+     * @param components    Components being analyzed for distances
+     * @param compDist      List to store pairwise distance between components
+     * @param closestVert   List to store vertex tuples that are closest between components.
+     *                      First vertex in tuple is in source component, second is in destination component
+     */
+    public void refresh(List<List<Integer>> components, List<List<Integer>> compDist,
+                        List<List<List<Integer>>> closestVert) {
+        /* Forget components that no longer exist */
+        Set<List<Integer>> current = Collections.newSetFromMap(new IdentityHashMap<>());
+        current.addAll(components);
+        rows.keySet().retainAll(current);
+
+        for (int i = 0; i < components.size() && !Thread.currentThread().isInterrupted(); i++) {
+            compDist.add(new ArrayList<>());
+            closestVert.add(new ArrayList<>());
+            List<Integer> source = components.get(i);
+            Row row = source.isEmpty() ? null : rows.computeIfAbsent(source, this::search);
+
+            for (int j = 0; j < components.size(); j++) {
+                List<Integer> target = components.get(j);
+                int[] entry = row == null || i == j || target.isEmpty() ? null :
+                        row.entries.computeIfAbsent(target, t -> closest(row, t));
+
+                /* Don't allow any path between two components if they are less than min distance apart */
+                if (entry == null || entry[0] == HopDistanceOracle.UNREACHABLE || entry[0] < minDist) {
+                    compDist.get(i).add(Integer.MAX_VALUE);
+                    closestVert.get(i).add(new ArrayList<>());
+                }
+                else {
+                    compDist.get(i).add(entry[0]);
+                    List<Integer> pair = new ArrayList<>(2);
+                    pair.add(entry[1]);
+                    pair.add(entry[2]);
+                    closestVert.get(i).add(pair);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void edgeAdded(GraphEdgeChangeEvent<Integer, DefaultEdge> e) {
+        rows.clear();
+    }
+
+    @Override
+    public void edgeRemoved(GraphEdgeChangeEvent<Integer, DefaultEdge> e) {
+        int v = e.getEdgeSource();
+        int u = e.getEdgeTarget();
+
+        /* Only searches where the edge lies on some shortest path can change */
+        rows.values().removeIf(row -> row.dist[v] != HopDistanceOracle.UNREACHABLE &&
+                row.dist[u] != HopDistanceOracle.UNREACHABLE && Math.abs(row.dist[v] - row.dist[u]) == 1);
+    }
+
+    @Override
+    public void vertexAdded(GraphVertexChangeEvent<Integer> e) {
+    }
+
+    @Override
+    public void vertexRemoved(GraphVertexChangeEvent<Integer> e) {
+    }
+
+    /**
+     * Runs a multi-source BFS from every vertex in a component
+     * @param component Vertices in the component
+     * @return          Search results for the component
+     */
+    private Row search(List<Integer> component) {
+        int[] nearest = new int[oracle.size()];
+        int[] dist = oracle.getDistances(component, nearest);
+        return new Row(dist, nearest);
+    }
+
+    /**
+     * Finds the closest vertex pair between the component of a row and another component
+     * @param row       Search results of the source component
+     * @param target    Vertices in the destination component
+     * @return          Tuple of distance, source vertex and destination vertex
+     */
+    private int[] closest(Row row, List<Integer> target) {
+        int[] entry = {HopDistanceOracle.UNREACHABLE, -1, -1};
+        for (int u : target) {
+            if (row.dist[u] < entry[0]) {
+                entry[0] = row.dist[u];
+                entry[1] = row.nearest[u];
+                entry[2] = u;
+            }
+        }
+        return entry;
+    }
+}
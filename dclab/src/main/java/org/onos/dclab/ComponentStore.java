@@ -0,0 +1,370 @@
+package org.onos.dclab;
+
+import org.jgrapht.Graph;
+import org.jgrapht.GraphPath;
+import org.jgrapht.graph.DefaultEdge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Disjoint-set store for the components that star and tree builders merge together. Components
+ * keep a fixed slot for the duration of a merge round and empty slots are compacted once per round.
+ * The vertices and edges of a component are kept as a chain of segments, so a merge splices the
+ * connecting path and the chain of the destination into the chain of the source in constant time.
+ * A chain is only flattened into a single list, dropping vertices and edges it holds twice, when
+ * the component is read. Checking whether a vertex was merged during the current round looks up
+ * the round in which the root of its component last merged, so merging doesn't visit the members.
+ */
+public final class ComponentStore {
+    /** Parent slot of each slot, a slot is a root if it is its own parent. */
+    private int[] parent;
+
+    /** Number of points (leaves in the final overlay) in each slot. */
+    private int[] points;
+
+    /** Round in which each slot last had a component merged into it. */
+    private int[] mergedIn;
+
+    /** Vertices of each slot, in the order they were merged. */
+    private List<Chain<Integer>> members;
+
+    /** Edges of each slot, in the order they were merged. */
+    private List<Chain<DefaultEdge>> edges;
+
+    /** Flattened vertices of each slot, kept for slots whose chains weren't spliced since. */
+    private List<List<Integer>> flat;
+
+    /** Root slots whose chains were spliced since they were last flattened. */
+    private final List<Integer> spliced = new ArrayList<>();
+
+    /** Slot holding each vertex id at the start of the round, or -1 if it is in no component. */
+    private final int[] owner;
+
+    /** Further slots of vertex ids held by more than one component at the start of the round. */
+    private final Map<Integer, List<Integer>> sharedOwners = new HashMap<>();
+
+    /** Round in which each vertex id was last part of a connecting path. */
+    private final int[] matched;
+    private int round = 1;
+
+    /** Flattening in which each vertex id was last added to a list, used to drop duplicates. */
+    private final int[] added;
+    private int flattening = 0;
+
+    /**
+     * Creates a store holding one component per vertex with a single incident edge in graph
+     * @param graph Graph that components are being merged in
+     */
+    public ComponentStore(Graph<Integer, DefaultEdge> graph) {
+        this(graph, new ArrayList<>(), new ArrayList<>(), 1);
+        for (Integer v : graph.vertexSet()) {
+            if (graph.degreeOf(v) == 1) {
+                List<Integer> component = new ArrayList<>();
+                component.add(v);
+                members.add(new Chain<>(component));
+                edges.add(new Chain<>(new ArrayList<>()));
+            }
+        }
+        reset(1);
+    }
+
+    /**
+     * Creates a store from components that were built earlier, each worth the same number of points
+     * @param graph         Graph that components are being merged in
+     * @param components    Vertices of each component
+     * @param compEdges     Edges of each component
+     * @param initial       Number of points that each component starts with
+     */
+    public ComponentStore(Graph<Integer, DefaultEdge> graph, List<List<Integer>> components,
+                          List<List<DefaultEdge>> compEdges, int initial) {
+        int max = -1;
+        for (int v : graph.vertexSet()) {
+            max = Math.max(max, v);
+        }
+        this.matched = new int[max + 1];
+        this.added = new int[max + 1];
+        this.owner = new int[max + 1];
+        this.members = new ArrayList<>();
+        this.edges = new ArrayList<>();
+        for (List<Integer> component : components) {
+            members.add(new Chain<>(component));
+        }
+        for (List<DefaultEdge> component : compEdges) {
+            edges.add(new Chain<>(component));
+        }
+        reset(initial);
+    }
+
+    /** @return Number of slots, including ones emptied during the current round */
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Flattens every component that was merged since the last call, so components that didn't
+     * change keep returning the same list
+     * @return  Vertices of every slot, indexed by slot, which must not be modified
+     */
+    public List<List<Integer>> components() {
+        for (int i : spliced) {
+            if (parent[i] == i) {
+                flattenMembers(i);
+                flattenEdges(i);
+            }
+        }
+        spliced.clear();
+        return Collections.unmodifiableList(flat);
+    }
+
+    /**
+     * @param i Slot of a component
+     * @return  Vertices of the component that slot i was merged into
+     */
+    public List<Integer> members(int i) {
+        return flattenMembers(find(i));
+    }
+
+    /**
+     * @param i Slot of a component
+     * @return  Edges of the component that slot i was merged into
+     */
+    public List<DefaultEdge> edges(int i) {
+        return flattenEdges(find(i));
+    }
+
+    /**
+     * @param i Slot of a component
+     * @return  Number of points in the component that slot i was merged into
+     */
+    public int points(int i) {
+        return points[find(i)];
+    }
+
+    /**
+     * @param v Vertex id
+     * @return  True if v was merged into a component during the current round
+     */
+    public boolean isMatched(int v) {
+        if (matched[v] == round) {
+            return true;
+        }
+        if (owner[v] < 0) {
+            return false;
+        }
+        if (mergedIn[find(owner[v])] == round) {
+            return true;
+        }
+        List<Integer> shared = sharedOwners.get(v);
+        if (shared != null) {
+            for (int slot : shared) {
+                if (mergedIn[find(slot)] == round) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the slot that currently holds the component of a slot
+     * @param i Slot of a component
+     * @return  Root slot that i has been merged into
+     */
+    public int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Merges two components and the path connecting them into the slot of the first one
+     * @param i     Slot of source component
+     * @param j     Slot of destination component
+     * @param path  Path connecting a vertex of i to a vertex of j
+     */
+    public void merge(int i, int j, GraphPath<Integer, DefaultEdge> path) {
+        int rootI = find(i);
+        int rootJ = find(j);
+
+        /* Path first, then source, then destination, matching the order overlays were always built in */
+        members.get(rootI).prepend(path.getVertexList());
+        members.get(rootI).append(members.get(rootJ));
+        edges.get(rootI).prepend(path.getEdgeList());
+        edges.get(rootI).append(edges.get(rootJ));
+        for (Integer v : path.getVertexList()) {
+            matched[v] = round;
+        }
+
+        parent[rootJ] = rootI;
+        points[rootI] += points[rootJ];
+        mergedIn[rootI] = round;
+        spliced.add(rootI);
+        clear(rootJ);
+    }
+
+    /**
+     * Empties the slots of two components that have been moved into a finished overlay
+     * @param i Slot of source component
+     * @param j Slot of destination component
+     */
+    public void remove(int i, int j) {
+        clear(find(i));
+        clear(find(j));
+    }
+
+    /**
+     * Starts a new merge round, after which no vertex counts as matched
+     */
+    public void nextRound() {
+        round++;
+    }
+
+    /**
+     * Drops empty slots, renumbering the remaining components in their current order
+     */
+    public void compact() {
+        List<Chain<Integer>> newMembers = new ArrayList<>();
+        List<Chain<DefaultEdge>> newEdges = new ArrayList<>();
+        int[] newPoints = new int[members.size()];
+        for (int i = 0; i < members.size(); i++) {
+            if (!flattenMembers(i).isEmpty()) {
+                flattenEdges(i);
+                newPoints[newMembers.size()] = points[i];
+                newMembers.add(members.get(i));
+                newEdges.add(edges.get(i));
+            }
+        }
+        members = newMembers;
+        edges = newEdges;
+        points = Arrays.copyOf(newPoints, newMembers.size());
+        spliced.clear();
+        resetSlots();
+    }
+
+    /** Makes every slot its own root with the same number of points. */
+    private void reset(int initial) {
+        points = new int[members.size()];
+        Arrays.fill(points, initial);
+        resetSlots();
+    }
+
+    /** Makes every slot its own root and records the slots holding each vertex. */
+    private void resetSlots() {
+        flat = new ArrayList<>(members.size());
+        for (Chain<Integer> chain : members) {
+            flat.add(chain.head.items);
+        }
+        parent = new int[members.size()];
+        mergedIn = new int[members.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        Arrays.fill(owner, -1);
+        sharedOwners.clear();
+        for (int i = 0; i < members.size(); i++) {
+            for (Integer v : members.get(i).head.items) {
+                if (owner[v] < 0) {
+                    owner[v] = i;
+                }
+                else if (owner[v] != i) {
+                    sharedOwners.computeIfAbsent(v, k -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+    }
+
+    /** Empties a slot, it keeps its position until the next compaction. */
+    private void clear(int i) {
+        members.set(i, new Chain<>(new ArrayList<>()));
+        edges.set(i, new Chain<>(new ArrayList<>()));
+        flat.set(i, members.get(i).head.items);
+        points[i] = 0;
+    }
+
+    /** Replaces the vertex chain of a slot with one list, keeping the first copy of each vertex. */
+    private List<Integer> flattenMembers(int i) {
+        Chain<Integer> chain = members.get(i);
+        if (chain.head == chain.tail) {
+            return chain.head.items;
+        }
+        flattening++;
+        List<Integer> vertices = new ArrayList<>(chain.length);
+        for (Segment<Integer> s = chain.head; s != null; s = s.next) {
+            for (Integer v : s.items) {
+                if (added[v] != flattening) {
+                    added[v] = flattening;
+                    vertices.add(v);
+                }
+            }
+        }
+        members.set(i, new Chain<>(vertices));
+        flat.set(i, vertices);
+        return vertices;
+    }
+
+    /** Replaces the edge chain of a slot with one list, keeping the first copy of each edge. */
+    private List<DefaultEdge> flattenEdges(int i) {
+        Chain<DefaultEdge> chain = edges.get(i);
+        if (chain.head == chain.tail) {
+            return chain.head.items;
+        }
+        List<DefaultEdge> list = new ArrayList<>(chain.length);
+        Set<DefaultEdge> seen = new HashSet<>();
+        for (Segment<DefaultEdge> s = chain.head; s != null; s = s.next) {
+            for (DefaultEdge e : s.items) {
+                if (seen.add(e)) {
+                    list.add(e);
+                }
+            }
+        }
+        edges.set(i, new Chain<>(list));
+        return list;
+    }
+
+    /** List of items that is part of a chain. */
+    private static final class Segment<T> {
+        private final List<T> items;
+        private Segment<T> next;
+
+        private Segment(List<T> items) {
+            this.items = items;
+        }
+    }
+
+    /** Singly linked segments whose concatenation, without repeats, is the content of a slot. */
+    private static final class Chain<T> {
+        private Segment<T> head;
+        private Segment<T> tail;
+        private int length;
+
+        private Chain(List<T> items) {
+            head = new Segment<>(items);
+            tail = head;
+            length = items.size();
+        }
+
+        /** Puts items in front of the chain without copying them. */
+        private void prepend(List<T> items) {
+            Segment<T> first = new Segment<>(items);
+            first.next = head;
+            head = first;
+            length += items.size();
+        }
+
+        /** Links the segments of another chain after this one, which must not be used afterwards. */
+        private void append(Chain<T> other) {
+            tail.next = other.head;
+            tail = other.tail;
+            length += other.length;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.onos.dclab;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches configuration files and runs an action whenever one of them changes. Editors and the
+ * DClab shell often write a file in several steps, so changes are only reported once a file has
+ * been left alone for a settle period, and each burst of writes runs its action once.
+ */
+public final class ConfigWatcher {
+    private static Logger log = LoggerFactory.getLogger(ConfigWatcher.class);
+
+    /** Time a file has to be left alone before its action runs, in milliseconds. */
+    private final long settleMillis;
+
+    /** Action run for each watched file, keyed by absolute path. */
+    private final Map<Path, Runnable> actions = new LinkedHashMap<>();
+
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * Creates a watcher without any files
+     * @param settleMillis  Time a file has to be left alone before its action runs
+     */
+    public ConfigWatcher(long settleMillis) {
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * Runs an action whenever a file is created or modified, must be called before start
+     * @param file      File to watch, its directory has to exist
+     * @param action    Action to run, on the watcher thread
+     */
+    public void watch(Path file, Runnable action) {
+        actions.put(file.toAbsolutePath().normalize(), action);
+    }
+
+    /**
+     * Starts watching the directories of all files on a daemon thread
+     * @param name  Name of the watcher thread
+     * @throws IOException if a directory can't be watched
+     */
+    public void start(String name) throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Path file : actions.keySet()) {
+            directories.add(file.getParent());
+        }
+        try {
+            for (Path dir : directories) {
+                dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+            }
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stops watching and waits for a running action to finish. */
+    public void stop() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+            thread.join();
+        } catch (IOException e) {
+            log.warn("Unable to close config watcher", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Collects changed files until they settle, then runs their actions. */
+    private void run() {
+        Set<Path> changed = new LinkedHashSet<>();
+        try {
+            while (true) {
+                /* Block until something changes, then keep collecting until the files are quiet */
+                WatchKey key = changed.isEmpty() ? watchService.take() : watchService.poll(settleMillis, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    for (Path file : changed) {
+                        log.info("Configuration file " + file + " changed");
+                        try {
+                            actions.get(file).run();
+                        } catch (RuntimeException e) {
+                            log.warn("Unable to apply changes to " + file, e);
+                        }
+                    }
+                    changed.clear();
+                    continue;
+                }
+
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        /* Events were lost, so treat every watched file in the directory as changed */
+                        for (Path file : actions.keySet()) {
+                            if (file.getParent().equals(dir)) {
+                                changed.add(file);
+                            }
+                        }
+                        continue;
+                    }
+                    Path file = dir.resolve((Path) event.context()).toAbsolutePath().normalize();
+                    if (actions.containsKey(file)) {
+                        changed.add(file);
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            /* Stopped */
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -6,30 +6,72 @@ import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 import org.apache.felix.scr.annotations.*;
 import org.jgrapht.Graph;
-import org.jgrapht.GraphPath;
-import org.jgrapht.alg.shortestpath.DijkstraShortestPath;
 import org.jgrapht.graph.DefaultEdge;
-import org.jgrapht.graph.SimpleGraph;
 import org.onosproject.app.ApplicationAdminService;
+import org.onosproject.app.ApplicationState;
+import org.onosproject.cluster.ClusterService;
+import org.onosproject.cluster.LeadershipEvent;
+import org.onosproject.cluster.LeadershipEventListener;
+import org.onosproject.cluster.LeadershipService;
+import org.onosproject.cluster.NodeId;
+import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
+import org.onosproject.event.Event;
+import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
 import org.onosproject.net.config.NetworkConfigService;
 import org.onosproject.net.config.basics.BasicDeviceConfig;
 import org.onosproject.net.device.DeviceAdminService;
+import org.onosproject.net.device.DeviceEvent;
 import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostService;
+import org.onosproject.net.link.DefaultLinkDescription;
 import org.onosproject.net.link.LinkAdminService;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.link.LinkProvider;
+import org.onosproject.net.link.LinkProviderRegistry;
+import org.onosproject.net.link.LinkProviderService;
+import org.onosproject.net.provider.AbstractProvider;
+import org.onosproject.net.provider.ProviderId;
 import org.onosproject.net.topology.*;
+import org.onosproject.store.service.MapEvent;
+import org.onosproject.store.service.MapEventListener;
+import org.onosproject.store.service.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import static org.onlab.util.Tools.groupedThreads;
 
 /**
  * ONOS App implementing DCLab forwarding scheme.
  */
 @Component(immediate = true)
-public class DClab {
+@Service
+public class DClab implements DClabService {
     /** Logs information, errors, and warnings during runtime. */
     private static Logger log = LoggerFactory.getLogger(DClab.class);
 
@@ -61,34 +103,187 @@ public class DClab {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     private ApplicationAdminService applicationAdminService;
 
+    /** Service used to announce links that DClab needs back after they were disabled. */
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    private LinkProviderRegistry linkProviderRegistry;
+
+    /** Service used to install forwarding rules for the hosts of each overlay. */
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    private FlowRuleService flowRuleService;
+
+    /** Service used to find the hosts attached to each overlay. */
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    private HostService hostService;
+
+    /** Service used to find this instance among the members of the cluster. */
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    private ClusterService clusterService;
+
+    /** Service used to elect the instance that plans overlays and changes links for the whole cluster. */
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    private LeadershipService leadershipService;
+
+    /** Service used to share the applied overlays with the other instances of the cluster. */
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    private StorageService storageService;
+
     private static String configLoc =
             System.getProperty("user.home") + "/dclab-source/config/dclab/";
 
     private static String switchConfigLoc =
             System.getProperty("user.home") + "/dclab-source/config/mininet/";
 
+    /** Keeps topology snapshots in direct buffers, which helps with very large topologies. */
+    private static boolean offHeapSnapshot = Boolean.getBoolean("dclab.offHeapSnapshot");
 
-    public static class QueueEntry implements Comparable<QueueEntry> {
-        private int key;
-        private int value;
+    /** Time without device or topology events after which the topology is considered converged, in ms. */
+    private static long quietPeriod = Long.getLong("dclab.quietPeriod", 2000);
 
-        public QueueEntry(int key, int value) {
-            this.key = key;
-            this.value = value;
-        }
+    /** Device and link counts that mark the topology as converged right away, 0 to wait for the quiet period. */
+    private static int expectedDevices = Integer.getInteger("dclab.expectedDevices", 0);
+    private static int expectedLinks = Integer.getInteger("dclab.expectedLinks", 0);
 
-        private int getKey() {
-            return this.key;
-        }
+    /** Longest time to wait for the topology to converge before planning anyway, in ms. */
+    private static long readyTimeout = Long.getLong("dclab.readyTimeout", 60000);
 
-        private int getValue() {
-            return this.value;
-        }
+    /** Identifies DClab as the provider of links that it restores. */
+    private static final ProviderId PROVIDER_ID = new ProviderId("dclab", "org.onosproject.dclab");
+
+    /** Topic whose leader is the only instance that plans overlays and changes links. */
+    private static final String LEADERSHIP_TOPIC = "org.onosproject.dclab";
+
+    /** Listens for leadership changes so that another instance takes over planning when the leader leaves. */
+    private final LeadershipEventListener leadershipListener = new InternalLeadershipListener();
+
+    /** Listens for overlays published by the leader while this instance follows. */
+    private final MapEventListener<String, String> stateListener = new InternalStateListener();
+
+    /** Overlays applied by the leader, shared with every instance of the cluster. */
+    private OverlayStateStore stateStore;
+
+    /** True while this instance is the leader, only changed on the overlay executor. */
+    private boolean leading;
+
+    /** True once the topology, host and configuration listeners have been added, which happens on first leading. */
+    private boolean listening;
+
+    /** Listens for switch and link changes so that affected overlays can be rebuilt. */
+    private final TopologyListener topologyListener = new InternalTopologyListener();
+
+    /** Listens for hosts joining, moving or leaving so that forwarding rules follow them. */
+    private final HostListener hostListener = new InternalHostListener();
+
+    /** Installs forwarding rules between hosts of the same overlay, unless disabled with dclab.proactiveFlows=false. */
+    private static boolean proactiveFlows = Boolean.parseBoolean(System.getProperty("dclab.proactiveFlows", "true"));
+
+    /** Priority of the forwarding rules, which has to be above the rules of reactive forwarding. */
+    private static int flowPriority = Integer.getInteger("dclab.flowPriority", 100);
+
+    /** Identifies DClab as the owner of the forwarding rules it installs. */
+    private ApplicationId appId;
+
+    /** Compiles forwarding rules for the current overlays and remembers the ones installed. */
+    private OverlayFlowCompiler flowCompiler;
+
+    /** Runs overlay updates outside of the event dispatch thread. */
+    private ExecutorService executor;
+
+    /** Time deactivation waits for the overlay update in progress to stop, in seconds. */
+    private static final long SHUTDOWN_TIMEOUT = 30;
+
+    /** Time a reset waits for the overlay executor, in seconds, set with -Ddclab.resetTimeout. */
+    private static long resetTimeout = Long.getLong("dclab.resetTimeout", 120);
+
+    /** Number of threads used to remove links in parallel. */
+    private static int linkWorkers = Integer.getInteger("dclab.linkWorkers", 8);
+
+    /** Number of link removals handed to a link worker at once. */
+    private static final int LINK_BATCH_SIZE = 256;
+
+    /** Bounded pool that removes links disabled by an overlay. */
+    private ExecutorService linkExecutor;
+
+    /** Number of threads used by overlay searches that run in parallel mode. */
+    private static int searchThreads = Integer.getInteger("dclab.searchThreads", Runtime.getRuntime().availableProcessors());
+
+    /** Pool that runs parallel overlay searches. */
+    private ForkJoinPool searchPool;
+
+    /** Number of spec orderings tried concurrently when planning, 1 to only build specs in file order. */
+    private static int strategies = Integer.getInteger("dclab.strategies", 1);
+
+    /** Number of threads that spec orderings are built in, bounding the CPU the search uses. */
+    private static int strategyThreads = Integer.getInteger("dclab.strategyThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    /** Time orderings other than file order are given to finish, in ms. */
+    private static long strategyBudget = Long.getLong("dclab.strategyBudget", 10000);
+
+    /** Pool that spec orderings are built in, null if only file order is used. */
+    private ExecutorService strategyPool;
+
+    /** Plans overlays over snapshots of the physical network. */
+    private OverlayPlanner planner;
+
+    /** Lets overlays share switches as long as they don't share links, isolating them with forwarding rules. */
+    private static boolean shareSwitches = Boolean.getBoolean("dclab.shareSwitches");
+
+    /** Ranks links by hops or by their latency and bandwidth annotations, set with dclab.linkWeights. */
+    private LinkWeights linkWeights = LinkWeights.HOPS;
+
+    /** Plan file written by OverlayPlanner that is applied on activation instead of searching, if set. */
+    private static String planFile = System.getProperty("dclab.planFile");
+
+    /** Number of plans kept in the plan cache under configLoc, 0 disables the cache. */
+    private static int planCacheSize = Integer.getInteger("dclab.planCacheSize", 8);
+
+    /** Plans made for recent networks and configurations, so that reinstalls don't search again. */
+    private OverlayPlanCache planCache;
+
+    /** Re-plans when configuration files change, unless disabled with dclab.watchConfig=false. */
+    private static boolean watchConfig = Boolean.parseBoolean(System.getProperty("dclab.watchConfig", "true"));
+
+    /** Time a configuration file has to be left alone before it is reloaded, in ms. */
+    private static long configSettle = Long.getLong("dclab.configSettle", 500);
+
+    /** Watches test_config.json and switch_config.json so that changes apply without reinstalling. */
+    private ConfigWatcher configWatcher;
+
+    /** Number of jobs remembered for polling, the oldest finished jobs are forgotten first. */
+    private static final int MAX_JOBS = 64;
+
+    /** Jobs submitted through DClabService by id, in submission order. */
+    private final Map<Long, OverlayJob> jobs = new LinkedHashMap<>();
+    private long nextJobId = 1;
+
+    /** Number of planning runs whose stats are kept. */
+    private static int statsHistory = Integer.getInteger("dclab.statsHistory", 20);
+
+    /** Stats of the most recent planning runs, oldest first. */
+    private final Deque<PlanStats> stats = new ArrayDeque<>();
+
+    /** Used to announce links restored by DClab. */
+    private LinkProviderService linkProviderService;
+
+    /** Devices in the physical network, including ones whose links have been disabled by DClab. */
+    private Set<TopologyVertex> physicalVertices = new LinkedHashSet<>();
+
+    /** Links in the physical network, including ones that have been disabled by DClab. */
+    private Map<LinkKey, TopologyEdge> physicalEdges = new LinkedHashMap<>();
+
+    /** Links of unavailable devices, put back into the physical network once both of their devices return. */
+    private Map<LinkKey, TopologyEdge> offlineEdges = new LinkedHashMap<>();
+
+    /** Links removed by disablePorts and not restored since, written by the link workers. */
+    private final Map<LinkKey, Link> removedLinks = new ConcurrentHashMap<>();
+
+    /** Subgraph specifications parsed from configuration file. */
+    private List<JsonObject> specs = new ArrayList<>();
+
+    /** Overlays currently applied to the network, and the index of the spec that created each one. */
+    private List<Graph<TopologyVertex, DefaultEdge>> overlays = new ArrayList<>();
+    private List<Integer> overlaySpecs = new ArrayList<>();
 
-        public int compareTo(QueueEntry entry) {
-            return this.key - entry.getKey();
-        }
-    }
 
     /** Holds information about switches parsed from JSON. */
     private static final class SwitchEntry {
@@ -151,26 +346,239 @@ public class DClab {
     @Activate
     public void activate() {
         init();
-        coreService.registerApplication("org.onosproject.dclab");
+        appId = coreService.registerApplication("org.onosproject.dclab");
+        flowCompiler = new OverlayFlowCompiler(appId, flowPriority, shareSwitches);
+        if (shareSwitches && !proactiveFlows) {
+            log.warn("Overlays sharing switches are only kept apart by forwarding rules, which dclab.proactiveFlows=false disables");
+        }
+        linkWeights = LinkWeights.fromProperties();
+        log.info("Embedding overlays by " + linkWeights);
+        executor = Executors.newSingleThreadExecutor(groupedThreads("onos/dclab", "overlay-%d", log));
+        linkExecutor = Executors.newFixedThreadPool(linkWorkers, groupedThreads("onos/dclab", "link-%d", log));
+        searchPool = new ForkJoinPool(searchThreads);
+        if (strategies > 1) {
+            strategyPool = Executors.newFixedThreadPool(strategyThreads,
+                    groupedThreads("onos/dclab", "strategy-%d", log));
+        }
+        planner = new OverlayPlanner(new OverlayBuilder(searchPool, shareSwitches), strategyPool, strategies, strategyBudget);
+        planCache = new OverlayPlanCache(Paths.get(configLoc, "plan-cache"), planCacheSize);
+        linkProviderService = linkProviderRegistry.register(new InternalLinkProvider());
         for (Device d : deviceService.getAvailableDevices()) {
             setLocation(d);
         }
+        stateStore = new OverlayStateStore(storageService);
+        stateStore.addListener(stateListener);
+        leadershipService.addListener(leadershipListener);
+        leadershipService.runForLeadership(LEADERSHIP_TOPIC);
+
+        /* Wait for the topology on the overlay executor so that activation returns right away */
+        executor.execute(this::checkLeadership);
+        log.info("Started");
+    }
+
+    /**
+     * Starts planning when this instance becomes the leader, and otherwise follows the overlays
+     * published by the leader. Runs on the overlay executor.
+     */
+    private void checkLeadership() {
+        if (isLeader()) {
+            if (!leading) {
+                leading = true;
+                lead();
+            }
+            return;
+        }
+        if (leading) {
+            /* The new leader owns the removed links and the forwarding rules from now on */
+            leading = false;
+            removedLinks.clear();
+            flowCompiler.clear();
+            log.info("No longer leading, following " + leadershipService.getLeader(LEADERSHIP_TOPIC));
+        }
+        adopt(readState());
+    }
+
+    /** @return True if this instance plans overlays for the cluster */
+    private boolean isLeader() {
+        return clusterService.getLocalNode().id().equals(leadershipService.getLeader(LEADERSHIP_TOPIC));
+    }
+
+    /**
+     * Makes sure this instance is the leader before it changes overlays
+     * @throws IllegalStateException naming the leader if this instance isn't it
+     */
+    private void checkLeader() {
+        if (!isLeader()) {
+            NodeId leader = leadershipService.getLeader(LEADERSHIP_TOPIC);
+            throw new IllegalStateException("Overlays are planned by the cluster leader " + leader +
+                    ", send the request there");
+        }
+    }
+
+    /** Continues from the overlays published by the previous leader, or plans from scratch if there are none. */
+    private void lead() {
+        OverlayStateStore.State state = readState();
+        if (state == null) {
+            start();
+            return;
+        }
+        PlanStats run = new PlanStats("takeover");
+        adopt(state);
+
+        /* Links removed by the previous leader are restored by this one, since ONOS no longer reports them */
+        removedLinks.clear();
+        for (Link l : state.removedLinks()) {
+            removedLinks.put(LinkKey.linkKey(l), l);
+        }
+        run.count("overlays", overlays.size());
+        run.count("linksRemoved", removedLinks.size());
+        installFlows(run);
+        record(run);
+        listen();
+        log.info("Took over " + overlays.size() + " overlays and " + removedLinks.size() + " removed links");
+    }
+
+    /** Applies the initial overlay once the topology has converged, then follows topology changes. */
+    private void start() {
         try {
             /* Deactivate LLDP Provider to prevent interference with DClab */
             applicationAdminService.deactivate(applicationAdminService.getId("org.onosproject.lldpprovider"));
-            Thread.sleep(5000);
+            new TopologyReadinessGate(topologyService, deviceService, quietPeriod,
+                    expectedDevices, expectedLinks, readyTimeout).await();
             analyzeTopology();
+            listen();
         }
-        catch (InterruptedException e){
-            applicationAdminService.activate(applicationAdminService.getId("org.onosproject.lldpprovider"));
+        catch (InterruptedException e) {
+            /* Deactivated while waiting, which also reactivates LLDP */
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Follows topology, host and configuration changes from the first time this instance leads. */
+    private void listen() {
+        if (listening) {
+            return;
+        }
+        listening = true;
+        topologyService.addListener(topologyListener);
+        if (proactiveFlows) {
+            hostService.addListener(hostListener);
+        }
+        if (watchConfig) {
+            watchConfigFiles();
+        }
+    }
+
+    /**
+     * Reads the overlays published by the leader
+     * @return  Published state, or null if there is none or it can't be read
+     */
+    private OverlayStateStore.State readState() {
+        try {
+            return stateStore.read();
+        } catch (RuntimeException e) {
+            log.warn("Unable to read overlays shared by the cluster", e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the overlays, specs and physical network with the ones published by the leader
+     * @param state Published state, or null to drop all overlays
+     */
+    private void adopt(OverlayStateStore.State state) {
+        if (state == null) {
+            specs = new ArrayList<>();
+            overlays = new ArrayList<>();
+            overlaySpecs = new ArrayList<>();
+            return;
+        }
+        specs = new ArrayList<>(state.specs());
+        overlays = new ArrayList<>(state.plan().overlays());
+        overlaySpecs = new ArrayList<>(state.plan().overlaySpecs());
+        physicalVertices = new LinkedHashSet<>(state.vertexes());
+        physicalEdges = new LinkedHashMap<>();
+        offlineEdges = new LinkedHashMap<>();
+        for (TopologyEdge e : state.edges()) {
+            physicalEdges.put(LinkKey.linkKey(e.link()), e);
+        }
+    }
+
+    /**
+     * Shares the applied overlays with the other instances, a failure only means the next leader plans again
+     * @param plan  Plan that was applied
+     */
+    private void publish(OverlayPlan plan) {
+        try {
+            stateStore.publish(specs, plan, physicalVertices, physicalEdges.values(), removedLinks.values());
+        } catch (RuntimeException e) {
+            log.warn("Unable to share overlays with the cluster", e);
+        }
+    }
+
+    /** Reloads configuration files on the overlay executor whenever they change. */
+    private void watchConfigFiles() {
+        configWatcher = new ConfigWatcher(configSettle);
+        configWatcher.watch(Paths.get(configLoc, "test_config.json"), () -> executor.execute(() -> {
+            if (leading) {
+                reloadConfig();
+            }
+        }));
+        configWatcher.watch(Paths.get(switchConfigLoc, "switch_config.json"),
+                () -> executor.execute(this::reloadSwitchConfig));
+        try {
+            configWatcher.start("onos-dclab-config-watcher");
+        } catch (IOException e) {
+            log.warn("Unable to watch configuration files, reinstall DClab to apply changes", e);
+            configWatcher = null;
         }
-        log.info("Started");
     }
 
     /** Allows application to be stopped by ONOS controller. */
     @Deactivate
     public void deactivate() {
-        /* Reactivate LLDP Provider so that links removed by DClab can be restored */
+        leadershipService.removeListener(leadershipListener);
+        stateStore.removeListener(stateListener);
+        topologyService.removeListener(topologyListener);
+        hostService.removeListener(hostListener);
+        if (configWatcher != null) {
+            configWatcher.stop();
+        }
+        executor.shutdownNow();
+
+        /* Wait for the update in progress to stop, so that it can't remove links after they have been restored */
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                log.warn("Overlay update still running after " + SHUTDOWN_TIMEOUT + " s, stopping anyway");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        leadershipService.withdraw(LEADERSHIP_TOPIC);
+
+        /* An instance leaving a cluster that keeps DClab active hands its overlays to the next leader as they are */
+        boolean clusterWide = applicationAdminService.getState(appId) != ApplicationState.ACTIVE;
+        if (clusterWide) {
+            /* Announce removed links right away instead of waiting for LLDP to rediscover them one cycle at a time */
+            PlanStats run = new PlanStats("deactivation");
+            restoreRemovedLinks(run);
+            run.finish();
+            log.info(run.summary());
+        }
+        linkExecutor.shutdownNow();
+        searchPool.shutdownNow();
+        if (strategyPool != null) {
+            strategyPool.shutdownNow();
+        }
+        linkProviderRegistry.unregister(linkProviderService.provider());
+        if (!clusterWide) {
+            log.info("Stopped, leaving overlays to the next leader");
+            return;
+        }
+        stateStore.clear();
+        flowRuleService.removeFlowRulesById(appId);
+
+        /* Reactivate LLDP Provider so that links keep being discovered once DClab is gone */
         applicationAdminService.activate(applicationAdminService.getId("org.onosproject.lldpprovider"));
         log.info("Stopped");
     }
@@ -195,958 +603,663 @@ public class DClab {
 
     /** Main logic for DClab that parses a configuration file and applies an overlay */
     private void analyzeTopology() {
-        Topology topo = topologyService.currentTopology();
-        TopologyGraph topoGraph = topologyService.getGraph(topo);
-        Graph<TopologyVertex, DefaultEdge> graph = new SimpleGraph<>(DefaultEdge.class);
-
-        /* Copy ONOS internal graph of topology into a JGraphT graph */
-        for (TopologyVertex v : topoGraph.getVertexes()) {
-            graph.addVertex(v);
-        }
-        for (TopologyEdge e : topoGraph.getEdges()) {
-            if (DijkstraShortestPath.findPathBetween(graph, e.src(), e.dst()) == null) {
-                graph.addEdge(e.src(), e.dst());
+        PlanStats run = new PlanStats("activation");
+        run.time("import", () -> {
+            Topology topo = topologyService.currentTopology();
+            TopologyGraph topoGraph = topologyService.getGraph(topo);
+
+            /* Remember the full physical network, since links disabled by the overlay won't be reported again */
+            physicalVertices = new LinkedHashSet<>(topoGraph.getVertexes());
+            physicalEdges = new LinkedHashMap<>();
+            offlineEdges = new LinkedHashMap<>();
+            for (TopologyEdge e : topoGraph.getEdges()) {
+                physicalEdges.put(LinkKey.linkKey(e.link()), e);
             }
+        });
+
+        if (!readSpecs()) {
+            return;
         }
-        log.info(graph.toString());
 
-        try {
-            JsonArray config = Json.parse(new BufferedReader(
-                    new FileReader(configLoc + "test_config.json"))
-            ).asArray();
-            List<Graph<TopologyVertex, DefaultEdge>> allTopos = new ArrayList<>();
-
-            /* Iterate through each subgraph specified in configuration file */
-            for (JsonValue obj : config) {
-                JsonObject spec = obj.asObject();
-                String type = spec.get("type").asString();
-                List<Graph<TopologyVertex, DefaultEdge>> topos = new ArrayList<>();
-                int count;
-
-                /* Parse parameters based on type of subgraph specified */
-                switch (type) {
-                    case "linear":
-                        int length = spec.getInt("length", 3);
-                        count = spec.getInt("count", 1000);
-                        topos = createLinearTopos(graph, length, count);
-                        break;
-                    case "star":
-                        int points = spec.getInt("points", 3);
-                        count = spec.getInt("count", 1000);
-                        topos = createStarTopos(graph, points, count);
-                        break;
-                    case "tree":
-                        int depth = spec.getInt("depth", 3);
-                        int fanout = spec.getInt("fanout", 2);
-                        count = spec.getInt("count", 1000);
-                        topos = createTreeTopos(graph, depth, fanout, count);
-                        break;
-                    case "clos":
-                        int spines = spec.getInt("spines", 2);
-                        int leaves = spec.getInt("leaves", 4);
-                        count = spec.getInt("count", 1000);
-                        break;
-                    default:
-                        log.info("Invalid topology type");
-                        topos = new ArrayList<>();
-                }
-                allTopos.addAll(topos);
-                log.info(topos.toString());
+        /* A precomputed plan is only used on activation, since it was made for the configuration of that time */
+        applyConfig(loadPlan(), run);
+        record(run);
+    }
 
-                /* Remove used nodes from graph so that they aren't used in another subgraph */
-                removeSubTopology(graph, topos);
-            }
-            disablePorts(topoGraph, allTopos);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /** Re-plans and re-applies all overlays in place after the configuration file changed. */
+    private void reloadConfig() {
+        List<JsonObject> previous = specs;
+        if (!readSpecs()) {
+            return;
+        }
+        if (specs.equals(previous)) {
+            log.info("Configuration unchanged, keeping current overlays");
+            return;
+        }
+        PlanStats run = new PlanStats("config reload");
+        applyConfig(null, run);
+        record(run);
+    }
+
+    /** Reloads switch locations after the switch configuration file changed. */
+    private void reloadSwitchConfig() {
+        init();
+        for (Device d : deviceService.getAvailableDevices()) {
+            setLocation(d);
         }
     }
 
     /**
-     * Disables links in the topologies that aren't in any of the overlaid topologies
-     * @param graphOld  Graph representing the previously active network topology
-     * @param graphNew  List of graphs representing the new topologies about to be overlaid
+     * Reads the subgraph specifications from the configuration file
+     * @return  True if the file was read, false if it is missing or invalid and the current specs were kept
      */
-    private void disablePorts(TopologyGraph graphOld, List<Graph<TopologyVertex, DefaultEdge>> graphNew) {
-        for (TopologyVertex v : graphOld.getVertexes()) {
-            boolean exit = false;
-            for (Graph<TopologyVertex, DefaultEdge> g : graphNew) {
-                for (TopologyVertex u : g.vertexSet()) {
-                    if (v.equals(u)) {
-                        /* Check each edge in the previous network to see which should be active in overlaid network */
-                        for (TopologyEdge e : graphOld.getEdgesFrom(v)) {
-                            boolean exitTwo = false;
-                            /* Check for edges in overlaid network where source is current node */
-                            for (DefaultEdge f : g.outgoingEdgesOf(u)) {
-                                if (e.dst().equals(g.getEdgeTarget(f))) {
-                                    exitTwo = true;
-                                    break;
-                                }
-                            }
-                            if (!exitTwo) {
-                                /* Check for edges in overlaid network where destination is current node */
-                                for (DefaultEdge f : g.incomingEdgesOf(u)) {
-                                    if (e.dst().equals(g.getEdgeSource(f))) {
-                                        exitTwo = true;
-                                        break;
-                                    }
-                                }
-                            }
-                            if (!exitTwo) {
-                                /* Disable edge if no edge in overlaid network matches */
-                                linkAdminService.removeLink(e.link().src(), e.link().dst());
-                            }
-                        }
-                        exit = true;
-                        break;
-                    }
-                }
-                if (exit) {
-                    break;
+    private boolean readSpecs() {
+        try (Reader reader = new BufferedReader(new FileReader(configLoc + "test_config.json"))) {
+            specs = OverlayPlanner.readSpecs(reader);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to read " + configLoc + "test_config.json", e);
+            return false;
+        }
+    }
+
+    @Override
+    public OverlayJob submit(List<JsonObject> specs) {
+        OverlayPlanner.checkSpecs(specs);
+        checkLeader();
+        OverlayJob job;
+        synchronized (jobs) {
+            job = new OverlayJob(nextJobId++, specs);
+            jobs.put(job.id(), job);
+
+            /* Forget the oldest finished jobs, jobs still running are kept so that they can be polled */
+            Iterator<OverlayJob> it = jobs.values().iterator();
+            while (jobs.size() > MAX_JOBS && it.hasNext()) {
+                if (it.next().isDone()) {
+                    it.remove();
                 }
             }
-            if (!exit) {
-                /* Disable all edges for nodes not in overlaid network */
-                linkAdminService.removeLinks(v.deviceId());
+        }
+        try {
+            executor.execute(() -> runJob(job));
+        } catch (RejectedExecutionException e) {
+            job.fail("DClab is not running");
+            throw new IllegalStateException("DClab is not running", e);
+        }
+        log.info("Queued overlay job " + job.id() + " with " + specs.size() + " specs");
+        return job;
+    }
+
+    @Override
+    public int reset() {
+        checkLeader();
+        Future<Integer> done;
+        try {
+            done = executor.submit(this::resetOverlays);
+        } catch (RejectedExecutionException e) {
+            throw new IllegalStateException("DClab is not running", e);
+        }
+        try {
+            return done.get(resetTimeout, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resetting", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to reset", e.getCause());
+        } catch (TimeoutException e) {
+            /* A reset that is still queued is dropped, one that already started restores the links regardless */
+            if (done.cancel(false)) {
+                throw new IllegalStateException("Reset not started within " + resetTimeout +
+                        " s behind the overlay update in progress, try again later", e);
             }
+            throw new IllegalStateException("Reset still running after " + resetTimeout + " s", e);
         }
     }
 
     /**
-     * Removes all of the nodes and edges contained in topos from graph
-     * @param graph Graph being modified for use later
-     * @param topos List of graphs where each node and edge is to be removed from graph
+     * Drops all overlays and specs and restores the links they disabled, on the overlay executor
+     * @return  Number of links restored
      */
-    private void removeSubTopology(Graph<TopologyVertex, DefaultEdge> graph, List<Graph<TopologyVertex, DefaultEdge>> topos) {
-        for (Graph<TopologyVertex, DefaultEdge> t : topos) {
-            for (DefaultEdge e : t.edgeSet()) {
-                for (DefaultEdge f : graph.edgeSet()) {
-                    if (t.getEdgeSource(e).equals(graph.getEdgeSource(f)) &&
-                            t.getEdgeTarget(e).equals(graph.getEdgeTarget(f))) {
-                        graph.removeEdge(f);
-                        break;
-                    }
-                }
-            }
-            for (TopologyVertex v : t.vertexSet()) {
-                graph.removeVertex(v);
-            }
+    private int resetOverlays() {
+        /* Leadership may have moved on while the reset was queued */
+        if (!leading) {
+            throw new IllegalStateException("No longer leading, send the request to the cluster leader " +
+                    leadershipService.getLeader(LEADERSHIP_TOPIC));
+        }
+        PlanStats run = new PlanStats("reset");
+        specs = new ArrayList<>();
+        overlays = new ArrayList<>();
+        overlaySpecs = new ArrayList<>();
+        int restored = restoreRemovedLinks(run);
+        if (proactiveFlows) {
+            flowRuleService.removeFlowRulesById(appId);
+            flowCompiler.clear();
+        }
+        OverlayPlan empty = OverlayPlan.of(overlays, overlaySpecs, physicalVertices, physicalEdges.values());
+        run.time("publish", () -> publish(empty));
+        record(run);
+        log.info("Reset overlays, restored " + restored + " links");
+        return restored;
+    }
+
+    @Override
+    public OverlayJob getJob(long id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    @Override
+    public List<OverlayJob> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
         }
     }
 
     /**
-     * Trims excess nodes from a subgraph to better fit an overlay
-     * @param graph Original graph that overlay is constructed from
-     * @param nodes Nodes in the overlay that is being created
-     * @param edges Edges in the overlay that is being created
-     * @param trims Number of trims that need to be performed
-     * @param cut   True if an entire path of nodes should be removed for each trim,
-     *              false if all but one needs to be removed
+     * Applies the specs of a submitted job in place of the current ones, on the overlay executor
+     * @param job   Job being run
      */
-    private void trimEdges(Graph<TopologyVertex, DefaultEdge> graph, List<TopologyVertex> nodes, List<DefaultEdge> edges, int trims, boolean cut) {
-        /* Check if topology is linear (trim algorithm won't work) */
-        if (!cut && trims < 3) {
+    private void runJob(OverlayJob job) {
+        job.start();
+        /* Leadership may have moved on while the job was queued */
+        if (!leading) {
+            job.fail("No longer leading, submit the job to the cluster leader " +
+                    leadershipService.getLeader(LEADERSHIP_TOPIC));
             return;
         }
+        try {
+            specs = new ArrayList<>(job.specs());
+            PlanStats run = new PlanStats("job " + job.id());
+            job.complete(applyConfig(null, run));
+            record(run);
+            log.info("Overlay job " + job.id() + " applied " + overlays.size() + " overlays");
+        } catch (RuntimeException e) {
+            log.warn("Overlay job " + job.id() + " failed", e);
+            job.fail(e.toString());
+        }
+    }
 
-        /* Create map from each vertex to a list of neighbors */
-        Map<TopologyVertex, List<TopologyVertex>> outgoingEdges = new HashMap<>();
-        for (TopologyVertex v : nodes) {
-            outgoingEdges.put(v, new ArrayList<>());
-        }
-        for (DefaultEdge e : edges) {
-            outgoingEdges.get(graph.getEdgeSource(e)).add(graph.getEdgeTarget(e));
-            outgoingEdges.get(graph.getEdgeTarget(e)).add(graph.getEdgeSource(e));
-        }
-
-        /* Resulting vertex and edge list after trim */
-        List<TopologyVertex> trimmedVertices = new ArrayList<>();
-        List<DefaultEdge> trimmedEdges = new ArrayList<>();
-
-        int counter = 0;
-        for (TopologyVertex v : outgoingEdges.keySet()) {
-
-            /* Check for edges with only one outgoing edge to start trim */
-            if (outgoingEdges.get(v).size() == 1) {
-                TopologyVertex u = outgoingEdges.get(v).get(0);
-                /* Remove nodes and edges until first node with at least 3 outgoing edges is encountered */
-                if (cut) {
-                    trimmedVertices.add(v);
-                    while (outgoingEdges.get(u).size() == 2) {
-                        trimmedVertices.add(u);
-                        trimmedEdges.add(graph.getEdge(v, u));
-                        TopologyVertex old = v;
-                        v = u;
-                        u = outgoingEdges.get(v).get(0);
-                        if (u == old) {
-                            u = outgoingEdges.get(v).get(1);
-                        }
-                    }
-                    trimmedEdges.add(graph.getEdge(v, u));
-                }
-                /* Remove nodes and edges until node just before first node with at least 3 outgoing edges */
-                else if (outgoingEdges.get(u).size() == 2) {
-                    trimmedVertices.add(v);
-                    while (true) {
-                        TopologyVertex old = v;
-                        v = u;
-                        u = outgoingEdges.get(v).get(0);
-                        if (u == old) {
-                            u = outgoingEdges.get(v).get(1);
-                        }
-                        if (outgoingEdges.get(u).size() == 2) {
-                            trimmedVertices.add(v);
-                            trimmedEdges.add(graph.getEdge(old, v));
-                        }
-                        else {
-                            u = v;
-                            v = old;
-                            break;
-                        }
-                    }
-                    trimmedEdges.add(graph.getEdge(v, u));
-                }
-                counter++;
-            }
-            if (counter == trims) {
-                break;
-            }
+    /**
+     * Replaces all overlays with ones made for the current specs over the physical network
+     * @param plan  Precomputed plan to apply, or null to use a cached plan or search on the controller
+     * @param run   Stats of the run applying the configuration
+     * @return      Plan that was applied
+     */
+    private OverlayPlan applyConfig(OverlayPlan plan, PlanStats run) {
+        String fingerprint = run.time("fingerprint", () ->
+                OverlayPlanCache.fingerprint(physicalVertices, physicalEdges.values(), specs, linkWeights,
+                        shareSwitches, planner.strategies()));
+        if (plan == null) {
+            plan = run.time("loadCachedPlan", () -> loadCachedPlan(fingerprint));
         }
-        for (TopologyVertex v : trimmedVertices) {
-            nodes.remove(v);
+        if (plan != null) {
+            overlays = new ArrayList<>(plan.overlays());
+            overlaySpecs = new ArrayList<>(plan.overlaySpecs());
+            run.count("overlays", overlays.size());
         }
-        for (DefaultEdge e : trimmedEdges) {
-            for (DefaultEdge f : edges) {
-                if (graph.getEdgeSource(e).equals(graph.getEdgeSource(f)) &&
-                        graph.getEdgeTarget(e).equals(graph.getEdgeTarget(f)))  {
-                    edges.remove(f);
-                    break;
-                }
-            }
+        else {
+            overlays = new ArrayList<>();
+            overlaySpecs = new ArrayList<>();
+            planOverlays(run);
+            plan = run.time("planLinks", () ->
+                    OverlayPlan.of(overlays, overlaySpecs, physicalVertices, physicalEdges.values()));
+            OverlayPlan made = plan;
+            run.time("storeCachedPlan", () -> storeCachedPlan(fingerprint, made));
         }
+
+        /* Links disabled for earlier overlays may be needed again, which is a no-op right after activation */
+        run.time("restoreLinks", () -> restoreLinks(overlays));
+        disablePorts(plan, run);
+        installFlows(run);
+        OverlayPlan applied = plan;
+        run.time("publish", () -> publish(applied));
+        return plan;
     }
 
     /**
-     * Create linear topologies using parameters supplied in configuration file
-     * @param graph     Graph that overlays are being constructed from
-     * @param length    Number of nodes in each linear topology being overlayed
-     * @param count     Number of linear topologies to overlay
-     * @return          List of count linear topologies, each with specified length
+     * Reads the plan file if one was configured and checks that it can be applied to the physical network
+     * @return  Plan from the plan file, or null if there is none or it was made for another network
      */
-    private List<Graph<TopologyVertex, DefaultEdge>> createLinearTopos(Graph<TopologyVertex, DefaultEdge> graph, int length, int count) {
-        /* Repeatedly use longest path to segment graph until longest path is of specified length or less */
-        while(true) {
-            int max = 0;
-            GraphPath longest = null;
-
-            /* Search graph for longest path */
-            for (TopologyVertex v : graph.vertexSet()) {
-                for (TopologyVertex u : graph.vertexSet()) {
-                    GraphPath path = DijkstraShortestPath.findPathBetween(graph, v, u);
-                    if (path != null && path.getLength() > max) {
-                        max = path.getLength();
-                        longest = path;
-                    }
-                }
-            }
-            if(max <= length || longest == null) {
-                break;
-            }
-            int counter = 1;
-
-            /* Segment longest path into linear topologies */
-            for(Object e : longest.getEdgeList()) {
-                if(counter == length) {
-                    graph.removeEdge((DefaultEdge) e);
-                    counter = 1;
-                }
-                else {
-                    counter++;
-                }
-            }
+    private OverlayPlan loadPlan() {
+        if (planFile == null) {
+            return null;
         }
-        List<Graph<TopologyVertex, DefaultEdge>> topos = new ArrayList<>();
-        List<TopologyVertex> addedVertices = new ArrayList<>();
-        int counter = 0;
-
-        // TODO: Can probably do this during the while loop instead
-        for (TopologyVertex v : graph.vertexSet()) {
-            for (TopologyVertex u : graph.vertexSet()) {
-                GraphPath path = DijkstraShortestPath.findPathBetween(graph, v, u);
-                /* Check if path is long enough for linear topology */
-                if (path != null && path.getLength() == length - 1) {
-                    boolean exit = false;
-
-                    /* Make sure nodes in path haven't been used already */
-                    for (Object k : path.getVertexList()) {
-                        if (addedVertices.contains((TopologyVertex) k)) {
-                            exit = true;
-                            break;
-                        }
-                    }
-                    if (exit) {
-                        continue;
-                    }
-
-                    /* Construct graph using nodes in path as a linear topology */
-                    Graph<TopologyVertex, DefaultEdge> topo = new SimpleGraph<>(DefaultEdge.class);
-                    for (Object x : path.getVertexList()) {
-                        addedVertices.add((TopologyVertex) x);
-                        topo.addVertex((TopologyVertex) x);
-                    }
-                    for (Object e : path.getEdgeList()) {
-                        DefaultEdge edge = (DefaultEdge) e;
-                        topo.addEdge(graph.getEdgeSource(edge), graph.getEdgeTarget(edge));
-                    }
-                    topos.add(topo);
-                    counter++;
-                }
-                if (counter >= count) {
-                    return topos;
+        try (Reader reader = new BufferedReader(new FileReader(planFile))) {
+            OverlayPlan plan = OverlayPlan.read(reader);
+            for (int s : plan.overlaySpecs()) {
+                if (s >= specs.size()) {
+                    log.warn("Plan " + planFile + " refers to spec " + s + " which isn't in the configuration");
+                    return null;
                 }
             }
+            if (!plan.matches(physicalVertices, physicalEdges.values())) {
+                log.warn("Plan " + planFile + " doesn't match the current network, planning again");
+                return null;
+            }
+            log.info("Applying " + plan.overlays().size() + " overlays from " + planFile);
+            return plan;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to read plan " + planFile, e);
+            return null;
         }
-        return topos;
     }
 
     /**
-     * Calculate closest pairwise distances between components, and the vertices with that distance
-     * @param partitions    Current state of the network graph
-     * @param components    Components being analyzed for distances
-     * @param compDist      List to store pairwise distance between components
-     * @param closestVert   List to store vertex tuples that are closest between components.
-     *                      First vertex in tuple is in source component, second is in destination component
-     * @param minDist       Minimum distance allowed between components
+     * Looks up the plan made the last time DClab ran on the same network with the same configuration
+     * @param fingerprint   Fingerprint of the network and configuration
+     * @return              Cached plan, or null if there is none
      */
-    private void calculateComponentDistances(Graph<TopologyVertex, DefaultEdge> partitions,
-                                             List<List<TopologyVertex>> components, List<List<Integer>> compDist,
-                                             List<List<List<TopologyVertex>>> closestVert, int minDist) {
-
-        /* Initialize component distance and closest vertex maps */
-        for (int i = 0; i < components.size(); i++) {
-            compDist.add(new ArrayList<>());
-            closestVert.add(new ArrayList<>());
-            for (int j = 0; j < components.size(); j++) {
-                compDist.get(i).add(Integer.MAX_VALUE);
-                closestVert.get(i).add(new ArrayList<>());
-            }
-        }
-
-        /* Prevent components with less than minDist nodes between them from being added to queue */
-        List<List<Integer>> blacklist = new ArrayList<>();
-        if (minDist > 0) {
-            for (int i = 0; i < components.size() - 1; i++) {
-                blacklist.add(new ArrayList<>());
-                for (int j = i + 1; j < components.size(); j++) {
-                    boolean flag = false;
-                    for (TopologyVertex v : components.get(i)) {
-                        for (TopologyVertex u : components.get(j)) {
-                            GraphPath path = DijkstraShortestPath.findPathBetween(partitions, v, u);
-                            if (path == null) {
-                                continue;
-                            }
-                            int dist = path.getLength();
-
-                            /* Don't allow any path between two components if they are less than min distance apart */
-                            if (dist < minDist) {
-                                blacklist.get(i).add(j);
-                                flag = true;
-                                break;
-                            }
-                        }
-                        if (flag) {
-                            break;
-                        }
-                    }
-                }
+    private OverlayPlan loadCachedPlan(String fingerprint) {
+        try {
+            OverlayPlan plan = planCache.get(fingerprint);
+            if (plan == null) {
+                return null;
             }
-        }
 
-        /* Find shortest distance between all pairs of components */
-        for (int i = 0; i < components.size() - 1; i++) {
-            for (int j = i + 1; j < components.size(); j++) {
-                if (minDist > 0 && blacklist.get(i).contains(j)) {
-                    continue;
-                }
-                for (TopologyVertex v : components.get(i)) {
-                    for (TopologyVertex u : components.get(j)) {
-                        GraphPath path = DijkstraShortestPath.findPathBetween(partitions, v, u);
-                        if (path == null) {
-                            continue;
-                        }
-                        int dist = path.getLength();
-
-                        /* Update distance for component i if new distance is closer than previously known */
-                        if (dist < compDist.get(i).get(j)) {
-                            compDist.get(i).set(j, dist);
-                            if (closestVert.get(i).get(j).size() > 0) {
-                                closestVert.get(i).get(j).set(0, v);
-                                closestVert.get(i).get(j).set(1, u);
-                            }
-                            else {
-                                closestVert.get(i).get(j).add(v);
-                                closestVert.get(i).get(j).add(u);
-                            }
-                        }
-
-                        /* Update distance for component j if new distance is closer than previously known */
-                        if (dist < compDist.get(j).get(i)) {
-                            compDist.get(j).set(i, dist);
-                            if (closestVert.get(j).get(i).size() > 0) {
-                                closestVert.get(j).get(i).set(0, u);
-                                closestVert.get(j).get(i).set(1, v);
-                            }
-                            else {
-                                closestVert.get(j).get(i).add(u);
-                                closestVert.get(j).get(i).add(v);
-                            }
-                        }
-                    }
-                }
+            /* Fingerprints already cover the network, this only guards against a corrupted cache */
+            if (!plan.matches(physicalVertices, physicalEdges.values())) {
+                log.warn("Cached plan " + fingerprint + " doesn't match the current network, planning again");
+                return null;
             }
+            log.info("Applying " + plan.overlays().size() + " overlays from cached plan " + fingerprint);
+            return plan;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to read cached plan " + fingerprint, e);
+            return null;
         }
     }
 
     /**
-     * Initializes the component list with vertices that have one outgoing edge
-     * @param graph         Current graph representing the network
-     * @param components    Stores the newly created components
-     * @param compEdges     Holds an initially empty list of edges for each created component
-     * @param pointList     Tracks number of points in each component (like in star topology), initially 1
+     * Stores a plan in the plan cache, a failure only means the next reinstall searches again
+     * @param fingerprint   Fingerprint of the network and configuration
+     * @param plan          Plan made for them
      */
-    private void initializeComponents(Graph<TopologyVertex, DefaultEdge> graph, List<List<TopologyVertex>> components,
-                                          List<List<DefaultEdge>> compEdges, List<Integer> pointList) {
-        for (TopologyVertex v : graph.vertexSet()) {
-            if (graph.degreeOf(v) == 1) {
-                List<TopologyVertex> component = new ArrayList<>();
-                component.add(v);
-                components.add(component);
-                compEdges.add(new ArrayList<>());
-                pointList.add(1);
-            }
+    private void storeCachedPlan(String fingerprint, OverlayPlan plan) {
+        try {
+            planCache.put(fingerprint, plan);
+        } catch (IOException e) {
+            log.warn("Unable to cache plan " + fingerprint, e);
         }
     }
 
     /**
-     * Creates a copy of the input graph
-     * @param graph Graph to copy
-     * @return      New graph with same vertex references and new edges as input graph
+     * Builds overlays for every spec that has fewer overlays than requested, keeping all current overlays
+     * @param run   Stats of the run that the overlays are built for
+     * @return      List of overlays that were added
      */
-    private Graph<TopologyVertex, DefaultEdge> copyGraph(Graph<TopologyVertex, DefaultEdge> graph) {
-        Graph<TopologyVertex, DefaultEdge> partitions = new SimpleGraph<>(DefaultEdge.class);
-        for (TopologyVertex v : graph.vertexSet()) {
-            partitions.addVertex(v);
-        }
-        for (DefaultEdge e : graph.edgeSet()) {
-            partitions.addEdge(graph.getEdgeSource(e), graph.getEdgeTarget(e));
-        }
-        return partitions;
+    private List<Graph<TopologyVertex, DefaultEdge>> planOverlays(PlanStats run) {
+        /* Copy physical network into a snapshot, overlays are built over its vertex ids */
+        TopologySnapshot snapshot = run.time("snapshot", () ->
+                TopologySnapshot.build(physicalVertices, physicalEdges.values(), offHeapSnapshot, linkWeights));
+        return planner.plan(snapshot, specs, overlays, overlaySpecs, run);
     }
 
     /**
-     * Creates a merged component and removes it from the current graph
-     * @param minI          Index of source component being merged
-     * @param minJ          Index of destination component being merged
-     * @param partitions    Current graph of the network
-     * @param minPath       Minimum distance path between two components
-     * @param components    List of components
-     * @param compEdges     List of edges for each component
-     * @param finalComp     List of other components that have been extracted from graph
-     * @param finalEdges    List of other component edges that have been extracted from graph
+     * Rebuilds only the overlays affected by a topology change, keeping every other overlay in place
+     * @param reasons   Device and link events that caused the topology change
      */
-    private void createFinalComponent(int minI, int minJ, Graph<TopologyVertex, DefaultEdge> partitions, GraphPath minPath,
-                                      List<List<TopologyVertex>> components, List<List<DefaultEdge>> compEdges,
-                                      List<List<TopologyVertex>> finalComp, List<List<DefaultEdge>> finalEdges) {
-        finalComp.add(new ArrayList<>());
-        finalEdges.add(new ArrayList<>());
-        /* Add nodes on path connecting components to new component */
-        for (Object x : minPath.getVertexList()) {
-            Set<DefaultEdge> edges = new HashSet<>(partitions.edgesOf((TopologyVertex) x));
-            partitions.removeAllEdges(edges);
-            finalComp.get(finalComp.size() - 1).add((TopologyVertex) x);
-        }
-
-        /* Add edges on path connecting components to new edge list */
-        for (Object e : minPath.getEdgeList()) {
-            finalEdges.get(finalEdges.size() - 1).add((DefaultEdge) e);
-        }
-
-        /* Add nodes in source component to new component */
-        for (TopologyVertex x : components.get(minI)) {
-            if (!partitions.containsVertex(x)) {
-                continue;
+    private void updateOverlays(List<Event> reasons) {
+        Set<TopologyVertex> lostVertices = new HashSet<>();
+        Set<TopologyEdge> lostEdges = new HashSet<>();
+        boolean grown = false;
+
+        for (Event reason : reasons) {
+            if (reason instanceof DeviceEvent) {
+                DeviceEvent event = (DeviceEvent) reason;
+                TopologyVertex v = new DefaultTopologyVertex(event.subject().id());
+                boolean available = event.type() != DeviceEvent.Type.DEVICE_REMOVED &&
+                        deviceService.isAvailable(event.subject().id());
+                if (!available && physicalVertices.remove(v)) {
+                    lostVertices.add(v);
+                }
+                /* A removed device won't come back with its old links */
+                if (event.type() == DeviceEvent.Type.DEVICE_REMOVED) {
+                    offlineEdges.values().removeIf(o -> o.src().equals(v) || o.dst().equals(v));
+                }
+                else if (available && physicalVertices.add(v)) {
+                    grown = true;
+                }
+            }
+            else if (reason instanceof LinkEvent) {
+                LinkEvent event = (LinkEvent) reason;
+                Link link = event.subject();
+                TopologyEdge e = new DefaultTopologyEdge(new DefaultTopologyVertex(link.src().deviceId()),
+                        new DefaultTopologyVertex(link.dst().deviceId()), link);
+
+                /* disablePorts records a link before removing it, so any other removal is a physical loss */
+                if (event.type() == LinkEvent.Type.LINK_REMOVED) {
+                    if (!removedLinks.containsKey(LinkKey.linkKey(link))) {
+                        TopologyEdge known = physicalEdges.remove(LinkKey.linkKey(link));
+                        if (known != null && !(deviceService.isAvailable(link.src().deviceId()) &&
+                                deviceService.isAvailable(link.dst().deviceId()))) {
+                            offlineEdges.put(LinkKey.linkKey(link), known);
+                        }
+                        if (inOverlay(e)) {
+                            lostEdges.add(e);
+                        }
+                    }
+                }
+                else if (event.type() == LinkEvent.Type.LINK_ADDED && !link.providerId().equals(PROVIDER_ID)) {
+                    offlineEdges.remove(LinkKey.linkKey(link));
+                    if (physicalEdges.put(LinkKey.linkKey(link), e) == null) {
+                        grown = true;
+                    }
+                }
+                /* Keep annotations current so that the next plan ranks the link by its latest latency and bandwidth */
+                else if (event.type() == LinkEvent.Type.LINK_UPDATED && physicalEdges.containsKey(LinkKey.linkKey(link))) {
+                    physicalEdges.put(LinkKey.linkKey(link), e);
+                }
             }
-            Set<DefaultEdge> edges = new HashSet<>(partitions.edgesOf(x));
-            partitions.removeAllEdges(edges);
-            finalComp.get(finalComp.size() - 1).add(x);
         }
 
-        /* Add edges in source component to new edge list */
-        for (DefaultEdge e : compEdges.get(minI)) {
-            if (finalEdges.contains(e)) {
-                continue;
+        /* Keep the links of devices that went down aside, without LLDP nothing would report them again */
+        Iterator<Map.Entry<LinkKey, TopologyEdge>> it = physicalEdges.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<LinkKey, TopologyEdge> entry = it.next();
+            if (lostVertices.contains(entry.getValue().src()) || lostVertices.contains(entry.getValue().dst())) {
+                offlineEdges.put(entry.getKey(), entry.getValue());
+                it.remove();
             }
-            finalEdges.get(finalEdges.size() - 1).add(e);
         }
-
-        /* Add nodes in destination component to new component */
-        for (TopologyVertex x : components.get(minJ)) {
-            if (!partitions.containsVertex(x)) {
-                continue;
+        it = offlineEdges.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<LinkKey, TopologyEdge> entry = it.next();
+            TopologyEdge e = entry.getValue();
+            if (physicalVertices.contains(e.src()) && physicalVertices.contains(e.dst())) {
+                grown |= physicalEdges.putIfAbsent(entry.getKey(), entry.getValue()) == null;
+                it.remove();
             }
-            Set<DefaultEdge> edges = new HashSet<>(partitions.edgesOf(x));
-            partitions.removeAllEdges(edges);
-            finalComp.get(finalComp.size() - 1).add(x);
         }
 
-        /* Add edges in destination component to new edge list */
-        for (DefaultEdge e : compEdges.get(minJ)) {
-            if (finalEdges.contains(e)) {
-                continue;
+        /* Drop overlays that lost a device or link */
+        int dropped = 0;
+        for (int i = overlays.size() - 1; i >= 0; i--) {
+            Graph<TopologyVertex, DefaultEdge> g = overlays.get(i);
+            boolean touched = false;
+            for (TopologyVertex v : lostVertices) {
+                touched |= g.containsVertex(v);
+            }
+            for (TopologyEdge e : lostEdges) {
+                touched |= g.containsVertex(e.src()) && g.containsVertex(e.dst()) && g.containsEdge(e.src(), e.dst());
+            }
+            if (touched) {
+                overlays.remove(i);
+                overlaySpecs.remove(i);
+                dropped++;
             }
-            finalEdges.get(finalEdges.size() - 1).add(e);
         }
+        if (dropped == 0 && !grown) {
+            return;
+        }
+
+        /* Fill the gaps left by dropped overlays using nodes that aren't in any remaining overlay */
+        PlanStats run = new PlanStats("topology change");
+        List<Graph<TopologyVertex, DefaultEdge>> added = planOverlays(run);
+        run.time("restoreLinks", () -> restoreLinks(added));
+        TopologyGraph graph = topologyService.getGraph(topologyService.currentTopology());
+        OverlayPlan plan = run.time("planLinks", () ->
+                OverlayPlan.of(overlays, overlaySpecs, graph.getVertexes(), graph.getEdges()));
+        disablePorts(plan, run);
+        installFlows(run);
+        run.time("publish", () -> publish(plan));
+        run.count("droppedOverlays", dropped);
+        record(run);
+        log.info("Replaced " + dropped + " overlays with " + added.size() + " new overlays");
     }
 
     /**
-     * Creates a merged component
-     * @param minI          Index of source component being merged
-     * @param minJ          Index of destination component being merged
-     * @param minPath       Minimum distance path between two components
-     * @param matched       Boolean map to mark that source and destination components have been merged
-     * @param components    List of components
-     * @param compEdges     List of edges for each component
-     * @param newComp       List of other components that have been extracted from graph
-     * @param newEdges      List of other component edges that have been extracted from graph
+     * Finishes the stats of a planning run and adds them to the history
+     * @param run   Stats of the run
      */
-    private void mergeComponents(int minI, int minJ, GraphPath minPath, Map<TopologyVertex, Boolean> matched,
-                                 List<List<TopologyVertex>> components, List<List<DefaultEdge>> compEdges,
-                                 List<TopologyVertex> newComp, List<DefaultEdge> newEdges) {
-
-        /* Add nodes on path connecting components to new component */
-        for (Object x : minPath.getVertexList()) {
-            if (newComp.contains((TopologyVertex) x)) {
-                continue;
+    private void record(PlanStats run) {
+        run.finish();
+        log.info(run.summary());
+        synchronized (stats) {
+            stats.addLast(run);
+            while (stats.size() > statsHistory) {
+                stats.removeFirst();
             }
-            newComp.add((TopologyVertex) x);
-            matched.put((TopologyVertex) x, true);
         }
+    }
 
-        /* Add edges on path connecting components to new component */
-        for (Object e : minPath.getEdgeList()) {
-            if (newEdges.contains((DefaultEdge) e)) {
-                continue;
-            }
-            newEdges.add((DefaultEdge) e);
+    @Override
+    public List<PlanStats> getStats() {
+        synchronized (stats) {
+            return new ArrayList<>(stats);
         }
+    }
 
-        /* Add nodes in source component to new component */
-        for (TopologyVertex x : components.get(minI)) {
-            if (newComp.contains(x)) {
-                continue;
+    /**
+     * Checks if a link is used by any of the current overlays
+     * @param e Link being checked
+     * @return  True if some overlay has an edge between the endpoints of e
+     */
+    private boolean inOverlay(TopologyEdge e) {
+        for (Graph<TopologyVertex, DefaultEdge> g : overlays) {
+            if (g.containsVertex(e.src()) && g.containsVertex(e.dst()) && g.containsEdge(e.src(), e.dst())) {
+                return true;
             }
-            newComp.add(x);
-            matched.put(x, true);
         }
+        return false;
+    }
 
-        /* Add edge in source component to new edge list */
-        for (DefaultEdge e : compEdges.get(minI)) {
-            if (newEdges.contains(e)) {
-                continue;
+    /**
+     * Announces links needed by new overlays that were disabled by an earlier overlay
+     * @param topos Overlays whose links should be active
+     */
+    private void restoreLinks(List<Graph<TopologyVertex, DefaultEdge>> topos) {
+        /* Map each device to the overlays that can use its links, which is a single one unless switches are shared */
+        Map<TopologyVertex, List<Graph<TopologyVertex, DefaultEdge>>> owners = new HashMap<>();
+        for (Graph<TopologyVertex, DefaultEdge> g : topos) {
+            for (TopologyVertex v : g.vertexSet()) {
+                owners.computeIfAbsent(v, k -> new ArrayList<>()).add(g);
             }
-            newEdges.add(e);
         }
-
-        /* Add nodes in destination component to new component */
-        for (TopologyVertex x : components.get(minJ)) {
-            if (newComp.contains(x)) {
-                continue;
+        for (TopologyEdge e : physicalEdges.values()) {
+            for (Graph<TopologyVertex, DefaultEdge> g : owners.getOrDefault(e.src(), Collections.emptyList())) {
+                if (g.containsVertex(e.dst()) && g.containsEdge(e.src(), e.dst())) {
+                    Link link = e.link();
+                    restoreLink(link.src(), link.dst(), link.type());
+                    restoreLink(link.dst(), link.src(), link.type());
+                    break;
+                }
             }
-            newComp.add(x);
-            matched.put(x, true);
         }
+    }
 
-        /* Add edge in destination component to new edge list */
-        for (DefaultEdge e : compEdges.get(minJ)) {
-            if (newEdges.contains(e)) {
-                continue;
-            }
-            newEdges.add(e);
+    /**
+     * Announces a single link if ONOS doesn't currently know about it
+     * @param src   Source of the link
+     * @param dst   Destination of the link
+     * @param type  Type of the link
+     */
+    private void restoreLink(ConnectPoint src, ConnectPoint dst, Link.Type type) {
+        if (linkAdminService.getLink(src, dst) == null) {
+            linkProviderService.linkDetected(new DefaultLinkDescription(src, dst, type));
         }
+        removedLinks.remove(LinkKey.linkKey(src, dst));
     }
 
     /**
-     * Adds several related lists into appropriate target list
-     * @param targetComp    Target list for components
-     * @param targetEdges   Target list for component edges
-     * @param targetPoints  Target list for point tally
-     * @param newComp       Component being added
-     * @param newEdges      Edges being added
-     * @param newPoints     Point tally being added
+     * Announces every link that DClab removed and hasn't restored since, spread over the link workers
+     * @param run   Stats of the run restoring the links
+     * @return      Number of links restored
      */
-    private void updateComponents(List<List<TopologyVertex>> targetComp, List<List<DefaultEdge>> targetEdges, List<Integer> targetPoints,
-                                  List<TopologyVertex> newComp, List<DefaultEdge> newEdges, int newPoints) {
-        targetComp.add(newComp);
-        targetEdges.add(newEdges);
-        targetPoints.add(newPoints);
+    private int restoreRemovedLinks(PlanStats run) {
+        long start = System.nanoTime();
+        List<Link> links = new ArrayList<>(removedLinks.values());
+        List<Callable<Void>> tasks = new ArrayList<>();
+        addChunks(tasks, links, l -> restoreLink(l.src(), l.dst(), l.type()));
+        runTasks(tasks, "Unable to restore links");
+        run.addTime("restoreRemovedLinks", System.nanoTime() - start);
+        run.count("linksRestored", links.size());
+        return links.size();
     }
 
     /**
-     * Creates a star topology according to configuration file specifications
-     * @param graph     Current graph representing the network
-     * @param points    Number of points (nodes with one outgoing edge) on each star
-     * @param count     Number of stars to create
-     * @return
+     * Disables links in the topologies that aren't in any of the overlaid topologies
+     * @param plan  Plan listing the links and devices whose links should be removed
+     * @param run   Stats of the run applying the plan
      */
-    private List<Graph<TopologyVertex, DefaultEdge>> createStarTopos(Graph<TopologyVertex, DefaultEdge> graph, int points, int count) {
-        List<List<TopologyVertex>> components = new ArrayList<>();
-        List<List<DefaultEdge>> compEdges = new ArrayList<>();
-        List<List<TopologyVertex>> finalComp = new ArrayList<>();
-        List<List<DefaultEdge>> finalEdges = new ArrayList<>();
-        List<Integer> pointList = new ArrayList<>();
-        initializeComponents(graph, components, compEdges, pointList);
-        Graph<TopologyVertex, DefaultEdge> partitions = copyGraph(graph);
-        int counter = 0;
-        /* Create star topologies until it is either impossible to make any more or the specified count has been reached */
-        while (true) {
-            List<List<Integer>> compDist = new ArrayList<>();
-            List<List<List<TopologyVertex>>> closestVert = new ArrayList<>();
-            calculateComponentDistances(partitions, components, compDist, closestVert, 0);
-
-            /* Put distances into a minheap */
-            List<PriorityQueue<QueueEntry>> compQueue = new ArrayList<>();
-            for (int i = 0; i < components.size(); i++) {
-                compQueue.add(new PriorityQueue<>());
-                for (int j = 0; j < components.size(); j++) {
-                    compQueue.get(i).add(new QueueEntry(compDist.get(i).get(j), j));
-                }
+    private void disablePorts(OverlayPlan plan, PlanStats run) {
+        long start = System.nanoTime();
+        List<DeviceId> devices = plan.removeDevices();
+        List<LinkKey> links = plan.remove();
+
+        /* Record each link before removing it, so that it can be restored without waiting for LLDP */
+        List<Callable<Void>> tasks = new ArrayList<>();
+        addChunks(tasks, devices, d -> {
+            for (Link l : linkAdminService.getDeviceLinks(d)) {
+                removedLinks.put(LinkKey.linkKey(l), l);
             }
-
-            Map<TopologyVertex, Boolean> matched = new HashMap<>();
-            boolean changed = false;
-
-            /* Combine components to form stars with more points until one with the required number of points is formed */
-            while (true) {
-                int minDist = Integer.MAX_VALUE;
-                GraphPath minPath = null;
-                List<List<TopologyVertex>> tempComp = new ArrayList<>();
-                List<List<DefaultEdge>> tempEdges = new ArrayList<>();
-                List<Integer> tempPoints = new ArrayList<>();
-                int minI = 0;
-                int minJ = 0;
-                int pos = 0;
-
-                /* Check each components priority queue of distance to other nodes */
-                for (int i = 0; i < compQueue.size(); i++) {
-                    /* Pop from priority queue until a valid node is encountered */
-                    while (compQueue.get(i).peek() != null && compQueue.get(i).peek().getKey() < minDist) {
-                        TopologyVertex v = closestVert.get(i).get(compQueue.get(i).peek().getValue()).get(0);
-                        TopologyVertex u = closestVert.get(i).get(compQueue.get(i).peek().getValue()).get(1);
-                        GraphPath path = DijkstraShortestPath.findPathBetween(partitions, v, u);
-                        boolean used = false;
-                        /* Check that nodes in the connecting path are not used by other merged components */
-                        for (Object x : path.getVertexList()) {
-                            if (matched.containsKey((TopologyVertex) x)) {
-                                compQueue.get(i).remove();
-                                used = true;
-                                break;
-                            }
-                        }
-
-                        /* Uppdate minimum distance, path, and source and destination components */
-                        if (!used) {
-                            minDist = compQueue.get(i).peek().getKey();
-                            minPath = path;
-                            minI = i;
-                            minJ = compQueue.get(i).peek().getValue();
-                            changed = true;
-                            pos = i;
-                            break;
-                        }
-                    }
-                }
-                if (minPath == null) {
-                    break;
-                }
-                compQueue.get(pos).remove();
-                boolean exit = true;
-                int newPoints = pointList.get(minI) + pointList.get(minJ);
-                List<TopologyVertex> newComp = new ArrayList<>();
-                List<DefaultEdge> newEdges = new ArrayList<>();
-
-                /* If star topology formed has the required number of points, create star and trim points to be 1 node long */
-                if (newPoints == points) {
-                    createFinalComponent(minI, minJ, partitions, minPath, components, compEdges, finalComp, finalEdges);
-                    trimEdges(graph, finalComp.get(finalComp.size() - 1), finalEdges.get(finalEdges.size() - 1), points, false);
-                    counter++;
-                }
-
-                /* If star topology has more than the required number of points, create star,
-                    trim off excess points, then trim all other points to be 1 node long
-                 */
-                else if (newPoints > points) {
-                    createFinalComponent(minI, minJ, partitions, minPath, components, compEdges, finalComp, finalEdges);
-                    trimEdges(graph, finalComp.get(finalComp.size() - 1), finalEdges.get(finalEdges.size() - 1), newPoints - points, true);
-                    trimEdges(graph, finalComp.get(finalComp.size() - 1), finalEdges.get(finalEdges.size() - 1), points, false);
-                    counter++;
-                }
-
-                /* Otherwise just merge component and continue loop to merge components */
-                else {
-                    mergeComponents(minI, minJ, minPath, matched, components, compEdges, newComp, newEdges);
-                    exit = false;
-                }
-
-                /* Update component i with merged component, make component j empty, and copy all other components */
-                for (int i = 0; i < components.size(); i++) {
-                    if (i != minI && i != minJ) {
-                        updateComponents(tempComp, tempEdges, tempPoints, components.get(i), compEdges.get(i), pointList.get(i));
-                    }
-                    else if (i == minI && newPoints < points) {
-                        updateComponents(tempComp, tempEdges, tempPoints, newComp, newEdges, newPoints);
-                    }
-                    else {
-                        updateComponents(tempComp, tempEdges, tempPoints, new ArrayList<>(), new ArrayList<>(), 0);
-                    }
-                }
-                components = tempComp;
-                compEdges = tempEdges;
-                pointList = tempPoints;
-                if (exit) {
-                    break;
-                }
+            linkAdminService.removeLinks(d);
+        });
+        addChunks(tasks, links, k -> {
+            Link l = linkAdminService.getLink(k.src(), k.dst());
+            if (l != null) {
+                removedLinks.put(k, l);
             }
+            linkAdminService.removeLink(k.src(), k.dst());
+        });
+        runTasks(tasks, "Unable to disable links");
+        run.addTime("disablePorts", System.nanoTime() - start);
+        run.count("linksRemoved", links.size());
+        run.count("devicesCleared", devices.size());
+        log.info("Disabled " + links.size() + " links and all links of " + devices.size() + " devices");
+    }
 
-            /* Exit loop if no new components were merged or finalized, or required number of components have been made */
-            if (!changed || counter >= count) {
-                break;
+    /**
+     * Brings the forwarding rules in line with the current overlays and hosts in a single batch
+     * @param run   Stats of the run that changed the overlays, or null if only hosts changed
+     */
+    private void installFlows(PlanStats run) {
+        if (!proactiveFlows) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<FlowRule> rules = flowCompiler.compile(overlays, physicalEdges.values(), hostService.getHosts());
+        FlowRuleOperations ops = flowCompiler.update(rules).build(new FlowRuleOperationsContext() {
+            @Override
+            public void onError(FlowRuleOperations failed) {
+                log.warn("Unable to install forwarding rules for overlays: " + failed);
             }
+        });
+        int changed = ops.stages().stream().mapToInt(Set::size).sum();
+        if (changed > 0) {
+            flowRuleService.apply(ops);
+        }
+        if (run != null) {
+            run.addTime("installFlows", System.nanoTime() - start);
+            run.count("flowRules", rules.size());
+            run.count("flowRulesChanged", changed);
+        }
+        log.info("Installed " + rules.size() + " forwarding rules for " + overlays.size() + " overlays, " +
+                changed + " changed");
+    }
 
-            List<List<TopologyVertex>> tempComp = new ArrayList<>();
-            List<List<DefaultEdge>> tempEdges = new ArrayList<>();
-            List<Integer> tempPoints = new ArrayList<>();
-
-            /* Remove empty components from merges */
-            for (int i = 0; i < components.size(); i++) {
-                if (!components.get(i).isEmpty()) {
-                    updateComponents(tempComp, tempEdges, tempPoints, components.get(i), compEdges.get(i), pointList.get(i));
+    /** Hands host changes to the overlay executor, so that rules are compiled against a consistent set of overlays. */
+    private class InternalHostListener implements HostListener {
+        @Override
+        public void event(HostEvent event) {
+            executor.execute(() -> {
+                if (leading) {
+                    installFlows(null);
                 }
-            }
-            components = tempComp;
-            compEdges = tempEdges;
-            pointList = tempPoints;
+            });
         }
+    }
 
-        /* Add finalized star topologies to overlay list */
-        List<Graph<TopologyVertex, DefaultEdge>> topos = new ArrayList<>();
-        for (int i = 0; i < finalComp.size(); i++) {
-            topos.add(new SimpleGraph<>(DefaultEdge.class));
-            for (TopologyVertex v : finalComp.get(i)) {
-                topos.get(i).addVertex(v);
-            }
-            for (DefaultEdge e : finalEdges.get(i)) {
-                topos.get(i).addEdge(graph.getEdgeSource(e), graph.getEdgeTarget(e));
-            }
+    /**
+     * Splits items into chunks of LINK_BATCH_SIZE, each handled by a single link worker task
+     * @param tasks Filled with one task per chunk
+     * @param items Items being handled
+     * @param work  Work done for each item
+     */
+    private static <T> void addChunks(List<Callable<Void>> tasks, List<T> items, Consumer<T> work) {
+        for (int i = 0; i < items.size(); i += LINK_BATCH_SIZE) {
+            List<T> chunk = items.subList(i, Math.min(i + LINK_BATCH_SIZE, items.size()));
+            tasks.add(() -> {
+                chunk.forEach(work);
+                return null;
+            });
         }
-        return topos;
     }
 
     /**
-     * Creates a tree topology according to configuration file specifications
-     * @param graph     Current graph representing the network
-     * @param depth     Depth of the tree
-     * @param fanout    Fanout at each level of the tree
-     * @param count     Number of tree topologies to create
-     * @return          List of tree topology graphs
+     * Runs tasks on the link workers and waits for all of them to finish, even if interrupted, so
+     * that no link is removed or restored after the caller has moved on
+     * @param tasks     Tasks being run
+     * @param failure   Message logged if a task fails
      */
-    private List<Graph<TopologyVertex, DefaultEdge>> createTreeTopos(Graph<TopologyVertex, DefaultEdge> graph, int depth, int fanout, int count) {
-        List<List<TopologyVertex>> components = new ArrayList<>();
-        List<List<DefaultEdge>> compEdges = new ArrayList<>();
-        List<List<TopologyVertex>> finalComp = new ArrayList<>();
-        List<List<DefaultEdge>> finalEdges = new ArrayList<>();
-        List<List<TopologyVertex>> treeComp = new ArrayList<>();
-        List<List<DefaultEdge>> treeEdges = new ArrayList<>();
-        List<Integer> pointList = new ArrayList<>();
-        initializeComponents(graph, components, compEdges, pointList);
-        Graph<TopologyVertex, DefaultEdge> partitions = copyGraph(graph);
-        Graph<TopologyVertex, DefaultEdge> originalParts = copyGraph(graph);
-        boolean changed = false;
-        int currFan = 0;
-        int currDepth = 0;
-
-        /* Iterate up until the required number of trees is created */
-        for (int counter = 0; counter < count; counter++) {
-            /* Iterate until the working tree has appropriate depth */
-            while (currDepth < depth) {
-                int targetFan = (int) Math.round(Math.pow(fanout, currDepth + 1));
-                currFan = 0;
-                finalComp = new ArrayList<>();
-                finalEdges = new ArrayList<>();
-                while (true) {
-                    List<List<Integer>> compDist = new ArrayList<>();
-                    List<List<List<TopologyVertex>>> closestVert = new ArrayList<>();
-                    calculateComponentDistances(partitions, components, compDist, closestVert,3);
-
-                    /* Put distances into a minheap */
-                    List<PriorityQueue<QueueEntry>> compQueue = new ArrayList<>();
-                    for (int i = 0; i < components.size(); i++) {
-                        compQueue.add(new PriorityQueue<>());
-                        for (int j = 0; j < components.size(); j++) {
-                            compQueue.get(i).add(new QueueEntry(compDist.get(i).get(j), j));
-                        }
-                    }
-
-                    Map<TopologyVertex, Boolean> matched = new HashMap<>();
-                    changed = false;
-                    /* Combine subtrees to form trees with more fanout until one with the required fanout is formed */
-                    while (true) {
-                        int minDist = Integer.MAX_VALUE;
-                        GraphPath minPath = null;
-                        List<List<TopologyVertex>> tempComp = new ArrayList<>();
-                        List<List<DefaultEdge>> tempEdges = new ArrayList<>();
-                        List<Integer> tempPoints = new ArrayList<>();
-                        int minI = 0;
-                        int minJ = 0;
-                        int pos = 0;
-                        // TODO: Make components using nodes in min path
-
-                        /* Check each components priority queue of distance to other nodes */
-                        for (int i = 0; i < compQueue.size(); i++) {
-                            /* Pop from priority queue until a valid node is encountered */
-                            while (compQueue.get(i).peek() != null && compQueue.get(i).peek().getKey() < minDist) {
-                                TopologyVertex v = closestVert.get(i).get(compQueue.get(i).peek().getValue()).get(0);
-                                TopologyVertex u = closestVert.get(i).get(compQueue.get(i).peek().getValue()).get(1);
-                                GraphPath path = DijkstraShortestPath.findPathBetween(partitions, v, u);
-                                boolean used = false;
-
-                                /* Check that nodes in the connecting path are not used by other merged components */
-                                for (Object x : path.getVertexList()) {
-                                    if (matched.containsKey((TopologyVertex) x)) {
-                                        compQueue.get(i).remove();
-                                        used = true;
-                                        break;
-                                    }
-                                }
-
-                                /* Uppdate minimum distance, path, and source and destination components */
-                                if (!used) {
-                                    minDist = compQueue.get(i).peek().getKey();
-                                    minPath = path;
-                                    minI = i;
-                                    minJ = compQueue.get(i).peek().getValue();
-                                    changed = true;
-                                    break;
-                                }
-                            }
-                        }
-                        if (minPath == null) {
-                            break;
-                        }
-                        compQueue.get(minI).remove();
-                        boolean exit = true;
-                        int newPoints = pointList.get(minI) + pointList.get(minJ);
-                        List<TopologyVertex> newComp = new ArrayList<>();
-                        List<DefaultEdge> newEdges = new ArrayList<>();
-
-                        /* Create final component for current depth if required fanout is reached (shouldn't be surpassed) */
-                        if (newPoints >= targetFan) {
-                            createFinalComponent(minI, minJ, partitions, minPath, components, compEdges, finalComp, finalEdges);
-                            /* Trim if the final tree is about to be formed */
-                            if (currDepth == depth - 1) {
-                                trimEdges(graph, finalComp.get(finalComp.size() - 1), finalEdges.get(finalEdges.size() - 1), targetFan, false);
-                            }
-                            currFan++;
-                        }
-
-                        /* Otherwise just merge components */
-                        else {
-                            mergeComponents(minI, minJ, minPath, matched, components, compEdges, newComp, newEdges);
-                            exit = false;
-                        }
-
-                        /* Update component i with merged component, make component j empty, and copy all other components */
-                        for (int i = 0; i < components.size(); i++) {
-                            if (i != minI && i != minJ) {
-                                updateComponents(tempComp, tempEdges, tempPoints, components.get(i), compEdges.get(i), pointList.get(i));
-                            } else if (i == minI && newPoints < targetFan) {
-                                updateComponents(tempComp, tempEdges, tempPoints, newComp, newEdges, newPoints);
-                            } else {
-                                updateComponents(tempComp, tempEdges, tempPoints, new ArrayList<>(), new ArrayList<>(), 0);
-                            }
-                        }
-                        components = tempComp;
-                        compEdges = tempEdges;
-                        pointList = tempPoints;
-                        if (exit) {
-                            break;
-                        }
-                    }
-
-                    /* If at least the required number of subtrees was created and no more can be created, indicate so and break */
-                    if (currFan >= fanout && !changed) {
-                        changed = true;
-                        currDepth++;
-                        break;
-                    }
-
-                    /* Otherwise if subtree requirement is not met and no more can be created, break */
-                    if (!changed) {
-                        break;
-                    }
-                    List<List<TopologyVertex>> tempComp = new ArrayList<>();
-                    List<List<DefaultEdge>> tempEdges = new ArrayList<>();
-                    List<Integer> tempPoints = new ArrayList<>();
-
-                    /* Remove empty components from merges */
-                    for (int i = 0; i < components.size(); i++) {
-                        if (!components.get(i).isEmpty()) {
-                            updateComponents(tempComp, tempEdges, tempPoints, components.get(i), compEdges.get(i), pointList.get(i));
-                        }
-                    }
-                    components = tempComp;
-                    compEdges = tempEdges;
-                    pointList = tempPoints;
-                }
-
-                /* Exit algorithm if no more trees can be made */
-                if (!changed) {
+    private void runTasks(List<Callable<Void>> tasks, String failure) {
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            futures.add(linkExecutor.submit(task));
+        }
+        boolean interrupted = false;
+        for (Future<Void> f : futures) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    log.warn(failure, e.getCause());
                     break;
                 }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                /* Reset graph and components, use subtrees as the initial components */
-                if (currDepth < depth) {
-                    pointList = new ArrayList<>();
-                    partitions = copyGraph(originalParts);
-                    components = finalComp;
-                    compEdges = finalEdges;
-                    for (int i = 0; i < components.size(); i++) {
-                        pointList.add(targetFan);
+    /** Hands topology changes to the overlay executor. */
+    private class InternalTopologyListener implements TopologyListener {
+        @Override
+        public void event(TopologyEvent event) {
+            List<Event> reasons = event.reasons();
+            if (reasons != null && !reasons.isEmpty()) {
+                executor.execute(() -> {
+                    if (leading) {
+                        updateOverlays(reasons);
                     }
-                }
+                });
             }
+        }
+    }
 
-            /* Exit algorithm if no more trees can be made */
-            if (!changed) {
-                break;
-            }
+    /** Hands changes of the leader of DClab's topic to the overlay executor. */
+    private class InternalLeadershipListener implements LeadershipEventListener {
+        @Override
+        public boolean isRelevant(LeadershipEvent event) {
+            return event.subject().topic().equals(LEADERSHIP_TOPIC);
+        }
 
-            /* Add a new tree to overlay */
-            treeComp.add(finalComp.get(0));
-            treeEdges.add(finalEdges.get(0));
-            originalParts = copyGraph(partitions);
+        @Override
+        public void event(LeadershipEvent event) {
+            executor.execute(DClab.this::checkLeadership);
         }
+    }
 
-        /* Put tree overlays into a list and return */
-        List<Graph<TopologyVertex, DefaultEdge>> topos = new ArrayList<>();
-        for (int i = 0; i < treeComp.size(); i++) {
-            topos.add(new SimpleGraph<>(DefaultEdge.class));
-            for (TopologyVertex v : treeComp.get(i)) {
-                topos.get(i).addVertex(v);
-            }
-            for (DefaultEdge e : treeEdges.get(i)) {
-                topos.get(i).addEdge(graph.getEdgeSource(e), graph.getEdgeTarget(e));
-            }
+    /** Hands overlays published by the leader to the overlay executor, which adopts them unless it leads. */
+    private class InternalStateListener implements MapEventListener<String, String> {
+        @Override
+        public void event(MapEvent<String, String> event) {
+            executor.execute(() -> {
+                if (!leading) {
+                    adopt(readState());
+                }
+            });
+        }
+    }
+
+    /** Link provider used to bring back links that DClab disabled earlier. */
+    private static class InternalLinkProvider extends AbstractProvider implements LinkProvider {
+        InternalLinkProvider() {
+            super(PROVIDER_ID);
         }
-        return topos;
     }
 }
@@ -0,0 +1,49 @@
+package org.onos.dclab;
+
+import com.eclipsesource.json.JsonObject;
+
+import java.util.List;
+
+/**
+ * Lets other components, the REST API and the CLI apply subgraph specifications at runtime,
+ * without rewriting the configuration file or reinstalling DClab.
+ */
+public interface DClabService {
+    /**
+     * Queues specifications to replace the current ones, they are planned and applied in the background
+     * @param specs Subgraph specifications in the format of test_config.json
+     * @return      Job that can be polled until the overlays are applied
+     * @throws IllegalArgumentException if a spec is invalid
+     * @throws IllegalStateException if DClab isn't ready to plan overlays yet, or this instance isn't the cluster leader
+     */
+    OverlayJob submit(List<JsonObject> specs);
+
+    /**
+     * Drops all overlays and their specs, and restores every link DClab removed in a single batch
+     * instead of waiting for LLDP to rediscover them. Overlays are planned again once new specs are
+     * submitted or the configuration file changes.
+     * @return  Number of links restored
+     * @throws IllegalStateException if DClab isn't running, this instance isn't the cluster leader, or the reset timed out
+     */
+    int reset();
+
+    /**
+     * Gets a job submitted recently
+     * @param id    Id returned by submit
+     * @return      Job, or null if there is no such job or it was forgotten
+     */
+    OverlayJob getJob(long id);
+
+    /**
+     * Gets the jobs submitted recently, finished jobs are forgotten once too many have been submitted
+     * @return  Jobs, oldest first
+     */
+    List<OverlayJob> getJobs();
+
+    /**
+     * Gets the stats of recent planning runs, whether started by activation, a configuration change,
+     * a job or a topology change
+     * @return  Stats of each run, oldest first
+     */
+    List<PlanStats> getStats();
+}
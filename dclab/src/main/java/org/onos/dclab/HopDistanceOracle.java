@@ -0,0 +1,359 @@
+package org.onos.dclab;
+
+import org.jgrapht.Graph;
+import org.jgrapht.GraphPath;
+import org.jgrapht.ListenableGraph;
+import org.jgrapht.event.GraphEdgeChangeEvent;
+import org.jgrapht.event.GraphListener;
+import org.jgrapht.event.GraphVertexChangeEvent;
+import org.jgrapht.graph.DefaultEdge;
+import org.jgrapht.graph.GraphWalk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * All-pairs hop distance and next hop oracle for an unweighted graph whose vertices are the ids
+ * of a topology snapshot. Distance rows are computed lazily with a BFS and are dropped again only
+ * when an edge on one of their shortest paths is removed from the graph being listened to.
+ */
+public final class HopDistanceOracle implements GraphListener<Integer, DefaultEdge> {
+    /** Distance reported for vertices that cannot reach each other. */
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    /** Graph that this oracle answers queries for. */
+    private final Graph<Integer, DefaultEdge> graph;
+
+    /** Number of vertex ids that distance rows are kept for. */
+    private final int size;
+
+    /** Neighbor ids for each vertex, only the first degree[v] entries are valid. */
+    private final int[][] adjacency;
+    private final int[] degree;
+
+    /** Hop distance from each source to every other vertex, null if not computed yet. */
+    private final int[][] rows;
+
+    /** Paths returned and breadth first searches run, shared with copies so that they add up per plan. */
+    private final LongAdder pathQueries;
+    private final LongAdder searches;
+
+    /**
+     * Creates an oracle for graph and keeps it up to date as edges and vertices are removed
+     * @param graph Graph that distances are calculated over
+     */
+    public HopDistanceOracle(ListenableGraph<Integer, DefaultEdge> graph) {
+        this.graph = graph;
+        int max = -1;
+        for (int v : graph.vertexSet()) {
+            max = Math.max(max, v);
+        }
+        this.size = max + 1;
+
+        this.adjacency = new int[size][];
+        this.degree = new int[size];
+        for (int i = 0; i < size; i++) {
+            adjacency[i] = new int[graph.containsVertex(i) ? graph.degreeOf(i) : 0];
+        }
+        for (DefaultEdge e : graph.edgeSet()) {
+            link(graph.getEdgeSource(e), graph.getEdgeTarget(e));
+        }
+        this.rows = new int[size][];
+        this.pathQueries = new LongAdder();
+        this.searches = new LongAdder();
+        graph.addGraphListener(this);
+    }
+
+    /**
+     * Creates an oracle for a copy of the graph that another oracle is answering queries for
+     * @param other Oracle for a graph with the same vertices and edges as graph
+     * @param graph Copy of the graph being listened to by other
+     */
+    private HopDistanceOracle(HopDistanceOracle other, ListenableGraph<Integer, DefaultEdge> graph) {
+        this.graph = graph;
+        this.size = other.size;
+        this.adjacency = new int[size][];
+        for (int i = 0; i < size; i++) {
+            adjacency[i] = Arrays.copyOf(other.adjacency[i], other.adjacency[i].length);
+        }
+        this.degree = Arrays.copyOf(other.degree, other.degree.length);
+
+        /* Rows are never modified once computed, so they can be shared until invalidated */
+        this.rows = Arrays.copyOf(other.rows, other.rows.length);
+        this.pathQueries = other.pathQueries;
+        this.searches = other.searches;
+        graph.addGraphListener(this);
+    }
+
+    /**
+     * Creates an oracle for a copy of this oracle's graph, reusing every distance row computed so far
+     * @param copy  Graph with the same vertices and edges as the graph of this oracle
+     * @return      Oracle that follows changes made to copy
+     */
+    public HopDistanceOracle copy(ListenableGraph<Integer, DefaultEdge> copy) {
+        return new HopDistanceOracle(this, copy);
+    }
+
+    /**
+     * Gets the number of hops between two vertices
+     * @param v Source vertex
+     * @param u Destination vertex
+     * @return  Number of edges on a shortest path from v to u, or UNREACHABLE if there is none
+     */
+    public int getDistance(int v, int u) {
+        /* Graph is undirected, so either row answers the query */
+        if (rows[v] == null && rows[u] != null) {
+            return rows[u][v];
+        }
+        return row(v)[u];
+    }
+
+    /**
+     * Gets the distances from a vertex to every other vertex, indexed by vertex id
+     * @param v Source vertex
+     * @return  Row of hop distances, which must not be modified
+     */
+    public int[] getDistances(int v) {
+        return row(v);
+    }
+
+    /**
+     * Runs a single BFS from several sources at once, without caching the result
+     * @param sources   Ids of source vertices
+     * @param nearest   Filled with the source that reached each vertex first, or -1 if none did
+     * @return          Hop distance from the closest source to every vertex
+     */
+    public int[] getDistances(Collection<Integer> sources, int[] nearest) {
+        int[] row = new int[size];
+        Arrays.fill(row, UNREACHABLE);
+        Arrays.fill(nearest, -1);
+        int[] queue = new int[size];
+        int tail = 0;
+        for (int v : sources) {
+            if (row[v] == UNREACHABLE) {
+                row[v] = 0;
+                nearest[v] = v;
+                queue[tail++] = v;
+            }
+        }
+        bfs(row, queue, 0, tail, nearest);
+        return row;
+    }
+
+    /**
+     * Runs a BFS from a source into buffers owned by the caller, without caching the result. Only
+     * the vertices that were reached are written, so searches within a small component don't pay
+     * for a whole row.
+     * @param source    Id of source vertex
+     * @param dist      Hop distances, which must be UNREACHABLE for every vertex on entry
+     * @param queue     Filled with the reached vertices in order of distance, large enough to hold every vertex
+     * @return          Number of reached vertices, which the caller has to reset in dist before the next search
+     */
+    public int search(int source, int[] dist, int[] queue) {
+        dist[source] = 0;
+        queue[0] = source;
+        return bfs(dist, queue, 0, 1, null);
+    }
+
+    /** @return Number of vertex ids that the oracle keeps distances for */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of neighbors that a vertex has left
+     * @param v Id of vertex
+     * @return  Degree of v in the graph being listened to
+     */
+    public int degree(int v) {
+        return degree[v];
+    }
+
+    /** @return Number of shortest paths returned by this oracle and its copies */
+    public long pathQueries() {
+        return pathQueries.sum();
+    }
+
+    /** @return Number of breadth first searches run by this oracle and its copies */
+    public long searches() {
+        return searches.sum();
+    }
+
+    /**
+     * Gets the first vertex after v on a shortest path from v to u
+     * @param v Source vertex
+     * @param u Destination vertex
+     * @return  Neighbor of v that is closest to u, or -1 if u can't be reached or v equals u
+     */
+    public int nextHop(int v, int u) {
+        return nextHop(v, row(u));
+    }
+
+    /**
+     * Computes the distance rows of several sources at once, so that later queries only read them
+     * @param sources   Ids of source vertices
+     * @param pool      Pool that the breadth first searches are spread over
+     */
+    public void computeRows(int[] sources, ForkJoinPool pool) {
+        /* Each search only writes its own row, and join makes every row visible to the caller */
+        pool.submit(() -> Arrays.stream(sources).parallel().forEach(this::row)).join();
+    }
+
+    /**
+     * Gets a shortest path between two vertices, in the same form as DijkstraShortestPath
+     * @param v Source vertex
+     * @param u Destination vertex
+     * @return  Shortest path from v to u, or null if there is none
+     */
+    public GraphPath<Integer, DefaultEdge> getPath(int v, int u) {
+        pathQueries.increment();
+        int[] target = row(u);
+        int curr = v;
+        if (target[curr] == UNREACHABLE) {
+            return null;
+        }
+
+        /* Walk towards u one hop at a time, edges are resolved now since the graph may change later */
+        List<Integer> vertexList = new ArrayList<>(target[curr] + 1);
+        List<DefaultEdge> edgeList = new ArrayList<>(target[curr]);
+        vertexList.add(curr);
+        while (target[curr] > 0) {
+            int next = nextHop(curr, target);
+            edgeList.add(graph.getEdge(curr, next));
+            vertexList.add(next);
+            curr = next;
+        }
+        return new GraphWalk<>(graph, v, u, vertexList, edgeList, edgeList.size());
+    }
+
+    @Override
+    public void edgeAdded(GraphEdgeChangeEvent<Integer, DefaultEdge> e) {
+        int v = e.getEdgeSource();
+        int u = e.getEdgeTarget();
+        if (adjacency[v].length == degree[v]) {
+            adjacency[v] = Arrays.copyOf(adjacency[v], degree[v] * 2 + 1);
+        }
+        if (adjacency[u].length == degree[u]) {
+            adjacency[u] = Arrays.copyOf(adjacency[u], degree[u] * 2 + 1);
+        }
+        link(v, u);
+
+        /* A new edge can shorten paths anywhere, so every row has to be recomputed */
+        Arrays.fill(rows, null);
+    }
+
+    @Override
+    public void edgeRemoved(GraphEdgeChangeEvent<Integer, DefaultEdge> e) {
+        int v = e.getEdgeSource();
+        int u = e.getEdgeTarget();
+        unlink(v, u);
+        unlink(u, v);
+
+        /* Only rows where the edge lies on some shortest path can change */
+        for (int s = 0; s < rows.length; s++) {
+            int[] row = rows[s];
+            if (row != null && row[v] != UNREACHABLE && row[u] != UNREACHABLE && Math.abs(row[v] - row[u]) == 1) {
+                rows[s] = null;
+            }
+        }
+    }
+
+    @Override
+    public void vertexAdded(GraphVertexChangeEvent<Integer> e) {
+        if (e.getVertex() < 0 || e.getVertex() >= size) {
+            throw new IllegalArgumentException("Vertex id " + e.getVertex() + " was not present when oracle was built");
+        }
+    }
+
+    @Override
+    public void vertexRemoved(GraphVertexChangeEvent<Integer> e) {
+        /* Incident edges have already been removed, so only the row of the vertex itself is stale */
+        rows[e.getVertex()] = null;
+    }
+
+    /**
+     * Gets the distance row for a source, running a BFS if it hasn't been computed yet
+     * @param source    Id of source vertex
+     * @return          Hop distance from source to every vertex
+     */
+    private int[] row(int source) {
+        int[] row = rows[source];
+        if (row != null) {
+            return row;
+        }
+        row = new int[size];
+        Arrays.fill(row, UNREACHABLE);
+        int[] queue = new int[size];
+        row[source] = 0;
+        queue[0] = source;
+        bfs(row, queue, 0, 1, null);
+        rows[source] = row;
+        return row;
+    }
+
+    /**
+     * Expands a BFS until every reachable vertex has a distance
+     * @param row       Distances found so far, unreached vertices are UNREACHABLE
+     * @param queue     Queue of vertices to expand, large enough to hold every vertex
+     * @param head      Position of the next vertex to expand
+     * @param tail      Position after the last queued vertex
+     * @param nearest   Source that reached each vertex, or null if sources aren't tracked
+     * @return          Position after the last queued vertex, which is the number of vertices queued
+     */
+    private int bfs(int[] row, int[] queue, int head, int tail, int[] nearest) {
+        searches.increment();
+        while (head < tail) {
+            int v = queue[head++];
+            for (int k = 0; k < degree[v]; k++) {
+                int u = adjacency[v][k];
+                if (row[u] == UNREACHABLE) {
+                    row[u] = row[v] + 1;
+                    if (nearest != null) {
+                        nearest[u] = nearest[v];
+                    }
+                    queue[tail++] = u;
+                }
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Finds the neighbor of a vertex that is one hop closer to the target of a distance row
+     * @param v         Id of current vertex
+     * @param target    Distance row of the target vertex
+     * @return          Id of next hop, or -1 if there is none
+     */
+    private int nextHop(int v, int[] target) {
+        if (target[v] == UNREACHABLE || target[v] == 0) {
+            return -1;
+        }
+        for (int k = 0; k < degree[v]; k++) {
+            int u = adjacency[v][k];
+            if (target[u] == target[v] - 1) {
+                return u;
+            }
+        }
+        return -1;
+    }
+
+    /** Adds an undirected edge between two vertex ids to the adjacency arrays. */
+    private void link(int v, int u) {
+        adjacency[v][degree[v]++] = u;
+        adjacency[u][degree[u]++] = v;
+    }
+
+    /** Removes u from the neighbors of v by swapping it with the last valid neighbor. */
+    private void unlink(int v, int u) {
+        for (int k = 0; k < degree[v]; k++) {
+            if (adjacency[v][k] == u) {
+                adjacency[v][k] = adjacency[v][--degree[v]];
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.onos.dclab;
+
+import org.jgrapht.Graph;
+import org.jgrapht.graph.DefaultEdge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trims the paths leading to leaves of a component that is being finalized as an overlay. The
+ * component is indexed once into compact adjacency arrays that remember which edge of the list
+ * connects each pair of neighbors, so a trim touches every vertex and edge a constant number of
+ * times and several trims of the same component share the index. Trims behave exactly like
+ * trims of a component rebuilt from the lists: leaves are visited in the iteration order of a hash
+ * set of the nodes left, and a trimmed node only loses its first occurrence in the node list each
+ * time it is trimmed, so nodes listed twice stay in the overlay as before.
+ */
+public final class LeafTrimmer {
+    /** Nodes and edges of the component, updated when the trims are applied. */
+    private final List<Integer> nodes;
+    private final List<DefaultEdge> edges;
+
+    /** Local index of each vertex id, and the vertex id of each local index in ascending order. */
+    private final Map<Integer, Integer> local = new HashMap<>();
+    private final int[] ids;
+
+    /** Neighbors of each local vertex from start[v] to start[v + 1], and the edge index leading to each. */
+    private final int[] start;
+    private final int[] neighbor;
+    private final int[] via;
+
+    /** Local index of the end points of each edge. */
+    private final int[] source;
+    private final int[] target;
+
+    /** Degree of each local vertex, counting only edges that haven't been trimmed. */
+    private final int[] degree;
+
+    /** Number of times each vertex was trimmed, edges trimmed so far, and the ones marked by the trim in progress. */
+    private final int[] removals;
+    private final boolean[] removedEdge;
+    private final List<Integer> markedVertices = new ArrayList<>();
+    private final List<Integer> markedEdges = new ArrayList<>();
+
+    /**
+     * Indexes a component for trimming
+     * @param graph Original graph that the component is constructed from
+     * @param nodes Nodes in the component
+     * @param edges Edges in the component, each between two of nodes
+     */
+    public LeafTrimmer(Graph<Integer, DefaultEdge> graph, List<Integer> nodes, List<DefaultEdge> edges) {
+        this.nodes = nodes;
+        this.edges = edges;
+        this.ids = nodes.stream().mapToInt(Integer::intValue).distinct().sorted().toArray();
+        for (int i = 0; i < ids.length; i++) {
+            local.put(ids[i], i);
+        }
+
+        /* Count degrees first so that neighbors can be laid out in a single array */
+        this.source = new int[edges.size()];
+        this.target = new int[edges.size()];
+        this.degree = new int[ids.length];
+        for (int k = 0; k < edges.size(); k++) {
+            source[k] = local.get(graph.getEdgeSource(edges.get(k)));
+            target[k] = local.get(graph.getEdgeTarget(edges.get(k)));
+            degree[source[k]]++;
+            degree[target[k]]++;
+        }
+        this.start = new int[ids.length + 1];
+        for (int v = 0; v < ids.length; v++) {
+            start[v + 1] = start[v] + degree[v];
+        }
+        this.neighbor = new int[start[ids.length]];
+        this.via = new int[start[ids.length]];
+        int[] fill = Arrays.copyOf(start, ids.length);
+        for (int k = 0; k < edges.size(); k++) {
+            neighbor[fill[source[k]]] = target[k];
+            via[fill[source[k]]++] = k;
+            neighbor[fill[target[k]]] = source[k];
+            via[fill[target[k]]++] = k;
+        }
+        this.removals = new int[ids.length];
+        this.removedEdge = new boolean[edges.size()];
+    }
+
+    /**
+     * Trims excess nodes from the component. Degrees are the ones left by earlier trims and stay
+     * fixed while this trim runs, as if the component had been indexed again.
+     * @param trims Number of trims that need to be performed
+     * @param cut   True if an entire path of nodes should be removed for each trim,
+     *              false if all but one needs to be removed
+     */
+    public void trim(int trims, boolean cut) {
+        /* Check if topology is linear (trim algorithm won't work) */
+        if (!cut && trims < 3) {
+            return;
+        }
+
+        /* Filled in list order, so that its iteration order matches a component that was indexed again */
+        Set<Integer> remaining = new HashSet<>();
+        int[] skip = removals.clone();
+        for (Integer id : nodes) {
+            if (skip[local.get(id)]-- <= 0) {
+                remaining.add(id);
+            }
+        }
+
+        int counter = 0;
+        for (Integer id : remaining) {
+            if (counter >= trims) {
+                break;
+            }
+
+            /* Check for vertices with only one edge left to start trim */
+            int v = local.get(id);
+            if (degree[v] != 1) {
+                continue;
+            }
+            int k = next(v, -1);
+            int u = neighbor[k];
+            int e = via[k];
+
+            /* Remove nodes and edges until first node with at least 3 edges is encountered */
+            if (cut) {
+                markedVertices.add(v);
+                while (degree[u] == 2) {
+                    markedVertices.add(u);
+                    markedEdges.add(e);
+                    k = next(u, e);
+                    u = neighbor[k];
+                    e = via[k];
+                }
+                markedEdges.add(e);
+            }
+            /* Remove nodes and edges until node just before first node with at least 3 edges */
+            else if (degree[u] == 2) {
+                markedVertices.add(v);
+                while (true) {
+                    k = next(u, e);
+                    if (degree[neighbor[k]] != 2) {
+                        break;
+                    }
+                    markedVertices.add(u);
+                    markedEdges.add(e);
+                    u = neighbor[k];
+                    e = via[k];
+                }
+                markedEdges.add(e);
+            }
+            counter++;
+        }
+
+        /* Degrees only change once the trim is done, so every leaf above saw the same component */
+        for (int m : markedVertices) {
+            removals[m]++;
+        }
+        for (int m : markedEdges) {
+            if (!removedEdge[m]) {
+                removedEdge[m] = true;
+                degree[source[m]]--;
+                degree[target[m]]--;
+            }
+        }
+        markedVertices.clear();
+        markedEdges.clear();
+    }
+
+    /**
+     * Removes every trimmed node and edge from the lists that the component was indexed from
+     */
+    public void apply() {
+        /* Like List.remove once per trim, which only drops the first occurrence of a node */
+        int[] skip = removals.clone();
+        nodes.removeIf(v -> skip[local.get(v)]-- > 0);
+        List<DefaultEdge> kept = new ArrayList<>(edges.size());
+        for (int k = 0; k < edges.size(); k++) {
+            if (!removedEdge[k]) {
+                kept.add(edges.get(k));
+            }
+        }
+        edges.clear();
+        edges.addAll(kept);
+    }
+
+    /**
+     * Finds the first neighbor slot of a vertex whose edge is neither trimmed nor excluded
+     * @param v     Local index of vertex
+     * @param skip  Index of an edge to pass over, or -1
+     * @return      Position of the slot in neighbor and via
+     */
+    private int next(int v, int skip) {
+        int k = start[v];
+        while (removedEdge[via[k]] || via[k] == skip) {
+            k++;
+        }
+        return k;
+    }
+}
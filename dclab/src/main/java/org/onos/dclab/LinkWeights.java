@@ -0,0 +1,148 @@
+package org.onos.dclab;
+
+import org.onosproject.net.AnnotationKeys;
+import org.onosproject.net.Link;
+import org.onosproject.net.topology.TopologyEdge;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Decides which physical links the spanning forest that overlays are built from is made of. In hop
+ * mode every link is as good as any other and links are taken in the order they were listed. In
+ * latency mode links are read from their latency and bandwidth annotations, as set by the ONOS
+ * basic link configuration, and the forest becomes a minimum latency spanning forest in which links
+ * below a minimum bandwidth are only used to connect switches that no other link can. Links without
+ * a latency annotation rank after every annotated one, and links without a bandwidth annotation are
+ * never considered too slow.
+ */
+public final class LinkWeights {
+    /** Treats every link the same, which keeps the forest of the order links were listed in. */
+    public static final LinkWeights HOPS = new LinkWeights(false, 0);
+
+    /** True if links are ranked by their annotations. */
+    private final boolean annotated;
+
+    /** Bandwidth below which a link is avoided, in the unit of the bandwidth annotation. */
+    private final double minBandwidth;
+
+    private LinkWeights(boolean annotated, double minBandwidth) {
+        this.annotated = annotated;
+        this.minBandwidth = minBandwidth;
+    }
+
+    /**
+     * Creates weights that rank links by their latency and bandwidth annotations
+     * @param minBandwidth  Bandwidth below which links are avoided, 0 to only rank by latency
+     * @return              Annotation based weights
+     */
+    public static LinkWeights annotated(double minBandwidth) {
+        return new LinkWeights(true, minBandwidth);
+    }
+
+    /**
+     * Reads the weights from the dclab.linkWeights and dclab.minBandwidth system properties
+     * @return  Weights selected by the properties, hop mode if they aren't set
+     * @throws IllegalArgumentException if either property has an invalid value
+     */
+    public static LinkWeights fromProperties() {
+        String mode = System.getProperty("dclab.linkWeights", "hops");
+        String min = System.getProperty("dclab.minBandwidth", "0");
+        double minBandwidth;
+        try {
+            minBandwidth = Double.parseDouble(min);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("dclab.minBandwidth " + min + " is not a number", e);
+        }
+        switch (mode) {
+            case "hops":
+                return HOPS;
+            case "latency":
+                return annotated(minBandwidth);
+            default:
+                throw new IllegalArgumentException("dclab.linkWeights " + mode + " is unknown, expected hops or latency");
+        }
+    }
+
+    /** @return True if links are ranked by their annotations */
+    public boolean isAnnotated() {
+        return annotated;
+    }
+
+    /**
+     * Gets the latency annotation of a link
+     * @param link  Link being checked
+     * @return      Latency of the link, or infinity if it isn't annotated
+     */
+    public static double latency(Link link) {
+        return value(link, AnnotationKeys.LATENCY);
+    }
+
+    /**
+     * Gets the bandwidth annotation of a link
+     * @param link  Link being checked
+     * @return      Bandwidth of the link, or infinity if it isn't annotated
+     */
+    public static double bandwidth(Link link) {
+        return value(link, AnnotationKeys.BANDWIDTH);
+    }
+
+    /**
+     * Orders links from the most to the least preferred. Links below the minimum bandwidth come last,
+     * the others by increasing latency and then decreasing bandwidth, and links that rank the same
+     * keep the order they were given in, so unannotated links keep their listed order.
+     * @param links Links being ranked
+     * @return      Positions in links, most preferred first
+     */
+    public int[] rank(TopologyEdge[] links) {
+        if (!annotated) {
+            int[] order = new int[links.length];
+            Arrays.setAll(order, e -> e);
+            return order;
+        }
+
+        /* Read annotations once, since parsing them in the comparator would repeat it for every comparison */
+        boolean[] low = new boolean[links.length];
+        double[] latency = new double[links.length];
+        double[] bandwidth = new double[links.length];
+        for (int e = 0; e < links.length; e++) {
+            latency[e] = latency(links[e].link());
+            bandwidth[e] = bandwidth(links[e].link());
+            low[e] = bandwidth[e] < minBandwidth;
+        }
+        Integer[] order = new Integer[links.length];
+        Arrays.setAll(order, e -> e);
+        Arrays.sort(order, Comparator.<Integer, Boolean>comparing(e -> low[e])
+                .thenComparingDouble(e -> latency[e])
+                .thenComparingDouble(e -> -bandwidth[e]));
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Describes the annotations of a link that its rank depends on, so that plans made for
+     * different annotations aren't mixed up
+     * @param link  Link being described
+     * @return      Latency and bandwidth of the link, or an empty string in hop mode
+     */
+    public String describe(Link link) {
+        return annotated ? "@" + latency(link) + "/" + bandwidth(link) : "";
+    }
+
+    @Override
+    public String toString() {
+        return annotated ? "latency(minBandwidth=" + minBandwidth + ")" : "hops";
+    }
+
+    /** Parses a numeric annotation, treating missing and malformed values as infinity. */
+    private static double value(Link link, String key) {
+        String value = link.annotations().value(key);
+        if (value == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package org.onos.dclab;
+
+import org.jgrapht.Graph;
+import org.jgrapht.GraphType;
+import org.jgrapht.ListenableGraph;
+import org.jgrapht.event.GraphEdgeChangeEvent;
+import org.jgrapht.event.GraphListener;
+import org.jgrapht.event.GraphVertexChangeEvent;
+import org.jgrapht.event.VertexSetListener;
+import org.jgrapht.graph.AbstractGraph;
+import org.jgrapht.graph.DefaultEdge;
+import org.jgrapht.graph.DefaultGraphType;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Graph over vertex ids that can only shrink, stored as an immutable base shared by every copy and
+ * bitsets of the vertices and edges removed from it. Copying takes two bitset clones instead of
+ * rebuilding the graph, so builders can snapshot and roll back their working graph cheaply. Edges
+ * are the instances of the graph the base was taken from, and iteration follows the order of that
+ * graph, so a view behaves like a copy of it made with addVertex and addEdge.
+ */
+public final class MaskedGraph extends AbstractGraph<Integer, DefaultEdge>
+        implements ListenableGraph<Integer, DefaultEdge> {
+    /** Vertices and edges that every view of the same base starts from, never modified. */
+    private static final class Base {
+        /** Vertex ids in iteration order, and the position of each id in it or -1 if not in the base. */
+        private final int[] vertices;
+        private final int[] position;
+
+        /** Edges in iteration order, the position of each edge, and the vertex ids at either end. */
+        private final DefaultEdge[] edges;
+        private final Map<DefaultEdge, Integer> index = new IdentityHashMap<>();
+        private final int[] source;
+        private final int[] target;
+
+        /** Positions of the edges touching the vertex at position p, from start[p] to start[p + 1]. */
+        private final int[] start;
+        private final int[] incident;
+
+        private Base(Graph<Integer, DefaultEdge> graph) {
+            int max = -1;
+            for (int v : graph.vertexSet()) {
+                max = Math.max(max, v);
+            }
+            this.vertices = new int[graph.vertexSet().size()];
+            this.position = new int[max + 1];
+            Arrays.fill(position, -1);
+            int p = 0;
+            for (int v : graph.vertexSet()) {
+                position[v] = p;
+                vertices[p++] = v;
+            }
+
+            this.edges = graph.edgeSet().toArray(new DefaultEdge[0]);
+            this.source = new int[edges.length];
+            this.target = new int[edges.length];
+            this.start = new int[vertices.length + 1];
+            for (int k = 0; k < edges.length; k++) {
+                index.put(edges[k], k);
+                source[k] = graph.getEdgeSource(edges[k]);
+                target[k] = graph.getEdgeTarget(edges[k]);
+                start[position[source[k]] + 1]++;
+                start[position[target[k]] + 1]++;
+            }
+            for (int q = 0; q < vertices.length; q++) {
+                start[q + 1] += start[q];
+            }
+
+            /* Edges are placed in iteration order, which is the order edgesOf lists them in */
+            this.incident = new int[start[vertices.length]];
+            int[] fill = Arrays.copyOf(start, vertices.length);
+            for (int k = 0; k < edges.length; k++) {
+                incident[fill[position[source[k]]]++] = k;
+                incident[fill[position[target[k]]]++] = k;
+            }
+        }
+
+        /** @return Position of a vertex id, or -1 if it isn't in the base */
+        private int positionOf(Object v) {
+            if (!(v instanceof Integer)) {
+                return -1;
+            }
+            int id = (Integer) v;
+            return id >= 0 && id < position.length ? position[id] : -1;
+        }
+
+        /** @return Position of an edge, or -1 if it isn't in the base */
+        private int indexOf(Object e) {
+            Integer k = index.get(e);
+            return k == null ? -1 : k;
+        }
+    }
+
+    private final Base base;
+
+    /** Positions of the vertices and edges of the base that have been removed from this view. */
+    private final BitSet removedVertices;
+    private final BitSet removedEdges;
+
+    /** Number of vertices and edges left. */
+    private int vertexCount;
+    private int edgeCount;
+
+    /** Listeners notified of removals, never carried over to copies. */
+    private final List<GraphListener<Integer, DefaultEdge>> graphListeners = new ArrayList<>();
+    private final List<VertexSetListener<Integer>> vertexSetListeners = new ArrayList<>();
+
+    /**
+     * Creates a view of every vertex and edge that a graph has now
+     * @param graph Graph to take the base from, whose edge instances are shared with the view
+     */
+    public MaskedGraph(Graph<Integer, DefaultEdge> graph) {
+        this(new Base(graph), new BitSet(), new BitSet(), graph.vertexSet().size(), graph.edgeSet().size());
+    }
+
+    private MaskedGraph(Base base, BitSet removedVertices, BitSet removedEdges, int vertexCount, int edgeCount) {
+        this.base = base;
+        this.removedVertices = removedVertices;
+        this.removedEdges = removedEdges;
+        this.vertexCount = vertexCount;
+        this.edgeCount = edgeCount;
+    }
+
+    /**
+     * Creates a view of a graph, sharing the base if graph is already a view
+     * @param graph Graph to view
+     * @return      View with the same vertices and edges as graph
+     */
+    public static MaskedGraph of(Graph<Integer, DefaultEdge> graph) {
+        return graph instanceof MaskedGraph ? ((MaskedGraph) graph).copy() : new MaskedGraph(graph);
+    }
+
+    /**
+     * Creates a view with the same vertices and edges as this one, which changes independently of it
+     * @return  Copy sharing the base of this view, without any listeners
+     */
+    public MaskedGraph copy() {
+        return new MaskedGraph(base, (BitSet) removedVertices.clone(), (BitSet) removedEdges.clone(),
+                vertexCount, edgeCount);
+    }
+
+    @Override
+    public boolean containsVertex(Integer v) {
+        int p = base.positionOf(v);
+        return p != -1 && !removedVertices.get(p);
+    }
+
+    @Override
+    public boolean containsEdge(DefaultEdge e) {
+        int k = base.indexOf(e);
+        return k != -1 && !removedEdges.get(k);
+    }
+
+    @Override
+    public DefaultEdge getEdge(Integer sourceVertex, Integer targetVertex) {
+        if (!containsVertex(sourceVertex) || !containsVertex(targetVertex)) {
+            return null;
+        }
+        int p = base.position[sourceVertex];
+        for (int j = base.start[p]; j < base.start[p + 1]; j++) {
+            int k = base.incident[j];
+            if (!removedEdges.get(k) && opposite(k, sourceVertex) == targetVertex) {
+                return base.edges[k];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Set<DefaultEdge> getAllEdges(Integer sourceVertex, Integer targetVertex) {
+        if (!containsVertex(sourceVertex) || !containsVertex(targetVertex)) {
+            return null;
+        }
+        DefaultEdge e = getEdge(sourceVertex, targetVertex);
+        return e == null ? Collections.emptySet() : Collections.singleton(e);
+    }
+
+    @Override
+    public Integer getEdgeSource(DefaultEdge e) {
+        return base.source[existingIndex(e)];
+    }
+
+    @Override
+    public Integer getEdgeTarget(DefaultEdge e) {
+        return base.target[existingIndex(e)];
+    }
+
+    @Override
+    public Set<Integer> vertexSet() {
+        return new AbstractSet<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return new MaskIterator<Integer>(removedVertices, base.vertices.length) {
+                    @Override
+                    protected Integer get(int p) {
+                        return base.vertices[p];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return vertexCount;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Integer && containsVertex((Integer) o);
+            }
+        };
+    }
+
+    @Override
+    public Set<DefaultEdge> edgeSet() {
+        return new AbstractSet<DefaultEdge>() {
+            @Override
+            public Iterator<DefaultEdge> iterator() {
+                return new MaskIterator<DefaultEdge>(removedEdges, base.edges.length) {
+                    @Override
+                    protected DefaultEdge get(int k) {
+                        return base.edges[k];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return edgeCount;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof DefaultEdge && containsEdge((DefaultEdge) o);
+            }
+        };
+    }
+
+    @Override
+    public Set<DefaultEdge> edgesOf(Integer vertex) {
+        assertVertexExist(vertex);
+        int p = base.position[vertex];
+        List<DefaultEdge> edges = new ArrayList<>(base.start[p + 1] - base.start[p]);
+        for (int j = base.start[p]; j < base.start[p + 1]; j++) {
+            if (!removedEdges.get(base.incident[j])) {
+                edges.add(base.edges[base.incident[j]]);
+            }
+        }
+        return Collections.unmodifiableSet(new ListSet(edges));
+    }
+
+    @Override
+    public int degreeOf(Integer vertex) {
+        assertVertexExist(vertex);
+        int p = base.position[vertex];
+        int degree = 0;
+        for (int j = base.start[p]; j < base.start[p + 1]; j++) {
+            degree += removedEdges.get(base.incident[j]) ? 0 : 1;
+        }
+        return degree;
+    }
+
+    @Override
+    public int inDegreeOf(Integer vertex) {
+        return degreeOf(vertex);
+    }
+
+    @Override
+    public Set<DefaultEdge> incomingEdgesOf(Integer vertex) {
+        return edgesOf(vertex);
+    }
+
+    @Override
+    public int outDegreeOf(Integer vertex) {
+        return degreeOf(vertex);
+    }
+
+    @Override
+    public Set<DefaultEdge> outgoingEdgesOf(Integer vertex) {
+        return edgesOf(vertex);
+    }
+
+    @Override
+    public boolean removeEdge(DefaultEdge e) {
+        if (!containsEdge(e)) {
+            return false;
+        }
+        int k = base.indexOf(e);
+        removedEdges.set(k);
+        edgeCount--;
+        GraphEdgeChangeEvent<Integer, DefaultEdge> event = new GraphEdgeChangeEvent<>(this,
+                GraphEdgeChangeEvent.EDGE_REMOVED, e, base.source[k], base.target[k]);
+        for (GraphListener<Integer, DefaultEdge> l : graphListeners) {
+            l.edgeRemoved(event);
+        }
+        return true;
+    }
+
+    @Override
+    public DefaultEdge removeEdge(Integer sourceVertex, Integer targetVertex) {
+        DefaultEdge e = getEdge(sourceVertex, targetVertex);
+        if (e != null) {
+            removeEdge(e);
+        }
+        return e;
+    }
+
+    @Override
+    public boolean removeAllEdges(Collection<? extends DefaultEdge> edges) {
+        boolean modified = false;
+        for (DefaultEdge e : edges) {
+            modified |= removeEdge(e);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean removeVertex(Integer v) {
+        if (!containsVertex(v)) {
+            return false;
+        }
+
+        /* Incident edges go first, the same way DefaultListenableGraph reports them */
+        removeAllEdges(edgesOf(v));
+        removedVertices.set(base.position[v]);
+        vertexCount--;
+        GraphVertexChangeEvent<Integer> event = new GraphVertexChangeEvent<>(this,
+                GraphVertexChangeEvent.VERTEX_REMOVED, v);
+        for (VertexSetListener<Integer> l : vertexSetListeners) {
+            l.vertexRemoved(event);
+        }
+        for (GraphListener<Integer, DefaultEdge> l : graphListeners) {
+            l.vertexRemoved(event);
+        }
+        return true;
+    }
+
+    @Override
+    public void addGraphListener(GraphListener<Integer, DefaultEdge> l) {
+        graphListeners.add(l);
+    }
+
+    @Override
+    public void addVertexSetListener(VertexSetListener<Integer> l) {
+        vertexSetListeners.add(l);
+    }
+
+    @Override
+    public void removeGraphListener(GraphListener<Integer, DefaultEdge> l) {
+        graphListeners.remove(l);
+    }
+
+    @Override
+    public void removeVertexSetListener(VertexSetListener<Integer> l) {
+        vertexSetListeners.remove(l);
+    }
+
+    @Override
+    public Supplier<Integer> getVertexSupplier() {
+        return null;
+    }
+
+    @Override
+    public Supplier<DefaultEdge> getEdgeSupplier() {
+        return null;
+    }
+
+    @Override
+    public Integer addVertex() {
+        throw new UnsupportedOperationException("Masked graphs can only have vertices removed");
+    }
+
+    @Override
+    public boolean addVertex(Integer v) {
+        throw new UnsupportedOperationException("Masked graphs can only have vertices removed");
+    }
+
+    @Override
+    public DefaultEdge addEdge(Integer sourceVertex, Integer targetVertex) {
+        throw new UnsupportedOperationException("Masked graphs can only have edges removed");
+    }
+
+    @Override
+    public boolean addEdge(Integer sourceVertex, Integer targetVertex, DefaultEdge e) {
+        throw new UnsupportedOperationException("Masked graphs can only have edges removed");
+    }
+
+    @Override
+    public GraphType getType() {
+        return DefaultGraphType.simple();
+    }
+
+    @Override
+    public double getEdgeWeight(DefaultEdge e) {
+        return Graph.DEFAULT_EDGE_WEIGHT;
+    }
+
+    @Override
+    public void setEdgeWeight(DefaultEdge e, double weight) {
+        throw new UnsupportedOperationException("Masked graphs are unweighted");
+    }
+
+    /** @return Vertex id at the other end of edge k from v */
+    private int opposite(int k, int v) {
+        return base.source[k] == v ? base.target[k] : base.source[k];
+    }
+
+    /**
+     * Finds an edge of the base, which may have been removed from this view since
+     * @param e Edge to look up
+     * @return  Position of e in the base
+     * @throws IllegalArgumentException if e was never in the base
+     */
+    private int existingIndex(DefaultEdge e) {
+        int k = base.indexOf(e);
+        if (k == -1) {
+            throw new IllegalArgumentException("no such edge in graph");
+        }
+        return k;
+    }
+
+    /** Iterates over the positions whose bit is clear, in ascending order. */
+    private abstract static class MaskIterator<T> implements Iterator<T> {
+        private final BitSet removed;
+        private final int size;
+        private int next;
+
+        private MaskIterator(BitSet removed, int size) {
+            this.removed = removed;
+            this.size = size;
+            this.next = removed.nextClearBit(0);
+        }
+
+        /** @return Element at a position of the base */
+        protected abstract T get(int position);
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public T next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            T t = get(next);
+            next = removed.nextClearBit(next + 1);
+            return t;
+        }
+    }
+
+    /** Set over a list that is known to hold distinct elements, keeping the order of the list. */
+    private static final class ListSet extends AbstractSet<DefaultEdge> {
+        private final List<DefaultEdge> list;
+
+        private ListSet(List<DefaultEdge> list) {
+            this.list = list;
+        }
+
+        @Override
+        public Iterator<DefaultEdge> iterator() {
+            return list.iterator();
+        }
+
+        @Override
+        public int size() {
+            return list.size();
+        }
+    }
+}
@@ -0,0 +1,1042 @@
+package org.onos.dclab;
+
+import com.eclipsesource.json.JsonObject;
+import org.jgrapht.Graph;
+import org.jgrapht.GraphPath;
+import org.jgrapht.graph.DefaultEdge;
+import org.jgrapht.graph.SimpleGraph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Builds linear, star, tree and Clos overlays over a graph of topology snapshot ids. Builders don't
+ * depend on any ONOS service, so they can also be run and measured outside of a controller.
+ */
+public final class OverlayBuilder {
+    private static Logger log = LoggerFactory.getLogger(OverlayBuilder.class);
+
+    /** Overlay types that a subgraph specification can ask for. */
+    public static final Set<String> TYPES =
+            Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList("linear", "star", "tree", "clos")));
+
+    /** Pool that concurrent candidate searches run in, or null if searches always run sequentially. */
+    private final ForkJoinPool searchPool;
+
+    /** True if overlays may share switches as long as they don't share links. */
+    private final boolean shareSwitches;
+
+    /**
+     * Merge loop iterations of star and tree builds, and time spent trimming, summed over every build
+     * run by each thread, so that builds running concurrently can each tell their own work apart
+     */
+    private final ThreadLocal<long[]> work = ThreadLocal.withInitial(() -> new long[2]);
+
+    private static class QueueEntry implements Comparable<QueueEntry> {
+        private int key;
+        private int value;
+
+        public QueueEntry(int key, int value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        private int getKey() {
+            return this.key;
+        }
+
+        private int getValue() {
+            return this.value;
+        }
+
+        public int compareTo(QueueEntry entry) {
+            return this.key - entry.getKey();
+        }
+    }
+
+    /**
+     * Creates a builder
+     * @param searchPool    Pool for concurrent candidate searches, or null to always search sequentially
+     */
+    public OverlayBuilder(ForkJoinPool searchPool) {
+        this(searchPool, false);
+    }
+
+    /**
+     * Creates a builder that may let overlays share switches
+     * @param searchPool    Pool for concurrent candidate searches, or null to always search sequentially
+     * @param shareSwitches True if overlays only claim their links, false if they claim their switches too
+     */
+    public OverlayBuilder(ForkJoinPool searchPool, boolean shareSwitches) {
+        this.searchPool = searchPool;
+        this.shareSwitches = shareSwitches;
+    }
+
+    /** @return True if overlays may share switches as long as they don't share links */
+    public boolean sharesSwitches() {
+        return shareSwitches;
+    }
+
+    /** @return Merge loop iterations run by star and tree builds on the calling thread so far */
+    public long mergeIterations() {
+        return work.get()[0];
+    }
+
+    /** @return Time spent in trimEdges on the calling thread so far, in ns */
+    public long trimNanos() {
+        return work.get()[1];
+    }
+
+    /**
+     * Builds check this between steps, so that a build whose overlays are no longer wanted, such as
+     * one for a spec ordering that ran out of time, stops early with the overlays finished so far
+     * @return  True if the calling thread was interrupted
+     */
+    private static boolean stopped() {
+        return Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Creates overlays for a single subgraph specification
+     * @param spec      Specification parsed from configuration file
+     * @param snapshot  Snapshot of the physical network that graph was taken from
+     * @param graph     Graph that overlays are being constructed from
+     * @param oracle    Hop distances for graph
+     * @param count     Maximum number of overlays to create
+     * @return          List of overlays created for spec
+     */
+    public List<Graph<Integer, DefaultEdge>> createTopos(JsonObject spec, TopologySnapshot snapshot,
+                                                          Graph<Integer, DefaultEdge> graph,
+                                                          HopDistanceOracle oracle, int count) {
+        String type = spec.get("type").asString();
+
+        /* Parse parameters based on type of subgraph specified */
+        switch (type) {
+            case "linear":
+                int length = spec.getInt("length", 3);
+                return createLinearTopos(graph, oracle, length, count, spec.getBoolean("parallel", false));
+            case "star":
+                int points = spec.getInt("points", 3);
+                return createStarTopos(graph, oracle, points, count);
+            case "tree":
+                int depth = spec.getInt("depth", 3);
+                int fanout = spec.getInt("fanout", 2);
+                return createTreeTopos(graph, oracle, depth, fanout, count);
+            case "clos":
+                int spines = spec.getInt("spines", 2);
+                int leaves = spec.getInt("leaves", 4);
+                return createClosTopos(snapshot, graph, spines, leaves, count);
+            default:
+                log.info("Invalid topology type");
+                return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Removes all of the nodes and edges contained in topos from graph, or only the edges if overlays
+     * share switches
+     * @param graph Graph being modified for use later
+     * @param topos List of graphs where each node and edge is to be removed from graph
+     */
+    public void removeSubTopology(Graph<Integer, DefaultEdge> graph, List<Graph<Integer, DefaultEdge>> topos) {
+        for (Graph<Integer, DefaultEdge> t : topos) {
+            /* Look each edge up by its end points instead of scanning every edge of graph */
+            for (DefaultEdge e : t.edgeSet()) {
+                graph.removeEdge(t.getEdgeSource(e), t.getEdgeTarget(e));
+            }
+            if (shareSwitches) {
+                continue;
+            }
+            for (Integer v : t.vertexSet()) {
+                graph.removeVertex(v);
+            }
+        }
+    }
+
+    /**
+     * Trims excess nodes from a subgraph to better fit an overlay
+     * @param graph Original graph that overlay is constructed from
+     * @param nodes Nodes in the overlay that is being created
+     * @param edges Edges in the overlay that is being created
+     * @param trims Number of trims that need to be performed
+     * @param cut   True if an entire path of nodes should be removed for each trim,
+     *              false if all but one needs to be removed
+     */
+    public void trimEdges(Graph<Integer, DefaultEdge> graph, List<Integer> nodes, List<DefaultEdge> edges, int trims, boolean cut) {
+        long start = System.nanoTime();
+        LeafTrimmer trimmer = new LeafTrimmer(graph, nodes, edges);
+        trimmer.trim(trims, cut);
+        trimmer.apply();
+        work.get()[1] += System.nanoTime() - start;
+    }
+
+    /**
+     * Cuts excess paths off a subgraph and then trims the paths left to a single node, indexing the
+     * subgraph only once for both trims
+     * @param graph Original graph that overlay is constructed from
+     * @param nodes Nodes in the overlay that is being created
+     * @param edges Edges in the overlay that is being created
+     * @param cuts  Number of paths that need to be removed entirely
+     * @param trims Number of paths that need to be trimmed afterwards
+     */
+    public void cutAndTrimEdges(Graph<Integer, DefaultEdge> graph, List<Integer> nodes, List<DefaultEdge> edges, int cuts, int trims) {
+        long start = System.nanoTime();
+        LeafTrimmer trimmer = new LeafTrimmer(graph, nodes, edges);
+        trimmer.trim(cuts, true);
+        trimmer.trim(trims, false);
+        trimmer.apply();
+        work.get()[1] += System.nanoTime() - start;
+    }
+
+    /**
+     * Create linear topologies using parameters supplied in configuration file
+     * @param graph     Graph that overlays are being constructed from
+     * @param oracle    Hop distances for graph
+     * @param length    Number of nodes in each linear topology being overlayed
+     * @param count     Number of linear topologies to overlay
+     * @param parallel  True if candidate paths should be searched for from all source nodes concurrently
+     * @return          List of count linear topologies, each with specified length
+     */
+    public List<Graph<Integer, DefaultEdge>> createLinearTopos(Graph<Integer, DefaultEdge> graph, HopDistanceOracle oracle,
+                                                                int length, int count, boolean parallel) {
+        boolean concurrent = parallel && searchPool != null;
+        if (shareSwitches && length > 1) {
+            return peelLinearTopos(graph, oracle, length, count);
+        }
+
+        /* Repeatedly use longest path to segment graph until longest path is of specified length or less */
+        ComponentDiameters diameters = new ComponentDiameters(oracle, vertexOrder(graph));
+        while(true) {
+            int[] longest = diameters.longest();
+            if(longest == null || longest[0] <= length || stopped()) {
+                break;
+            }
+            GraphPath path = oracle.getPath(longest[1], longest[2]);
+            int counter = 1;
+
+            /* Segment longest path into linear topologies */
+            for(Object e : path.getEdgeList()) {
+                if(counter == length) {
+                    graph.removeEdge((DefaultEdge) e);
+                    counter = 1;
+                }
+                else {
+                    counter++;
+                }
+            }
+
+            /* Only the component that was just cut can have a different longest path */
+            diameters.split(longest[1]);
+        }
+        if (stopped()) {
+            return new ArrayList<>();
+        }
+        int[] order = vertexOrder(graph);
+        if (concurrent) {
+            oracle.computeRows(order, searchPool);
+        }
+
+        /* Find candidate end points for every source, which only needs read access to the distance rows */
+        List<int[]> candidates = runSearch(concurrent, () -> sourceRange(order.length, concurrent)
+                .mapToObj(i -> endPointsFrom(oracle, order, i, length - 1))
+                .collect(Collectors.toList()));
+
+        /* Resolve conflicts between candidates in vertex order so results don't depend on thread timing */
+        List<Graph<Integer, DefaultEdge>> topos = new ArrayList<>();
+        Set<Integer> addedVertices = new HashSet<>();
+        for (int i = 0; i < order.length && topos.size() < count; i++) {
+            for (int j : candidates.get(i)) {
+                GraphPath path = oracle.getPath(order[i], j);
+                boolean exit = false;
+
+                /* Make sure nodes in path haven't been used already */
+                for (Object k : path.getVertexList()) {
+                    if (addedVertices.contains((Integer) k)) {
+                        exit = true;
+                        break;
+                    }
+                }
+                if (exit) {
+                    continue;
+                }
+
+                /* Construct graph using nodes in path as a linear topology */
+                Graph<Integer, DefaultEdge> topo = new SimpleGraph<>(DefaultEdge.class);
+                for (Object x : path.getVertexList()) {
+                    addedVertices.add((Integer) x);
+                    topo.addVertex((Integer) x);
+                }
+                for (Object e : path.getEdgeList()) {
+                    DefaultEdge edge = (DefaultEdge) e;
+                    topo.addEdge(graph.getEdgeSource(edge), graph.getEdgeTarget(edge));
+                }
+                topos.add(topo);
+                if (topos.size() >= count) {
+                    break;
+                }
+            }
+        }
+        return topos;
+    }
+
+    /**
+     * Create linear topologies that may share switches by peeling them off the longest path of the
+     * graph. Consecutive topologies on a path share the switch where one ends and the next begins,
+     * and their edges are removed from graph so that no link is used twice.
+     * @param graph     Graph that overlays are being constructed from
+     * @param oracle    Hop distances for graph
+     * @param length    Number of nodes in each linear topology being overlayed, at least 2
+     * @param count     Number of linear topologies to overlay
+     * @return          List of count linear topologies, each with specified length
+     */
+    private List<Graph<Integer, DefaultEdge>> peelLinearTopos(Graph<Integer, DefaultEdge> graph, HopDistanceOracle oracle,
+                                                              int length, int count) {
+        List<Graph<Integer, DefaultEdge>> topos = new ArrayList<>();
+        ComponentDiameters diameters = new ComponentDiameters(oracle, vertexOrder(graph));
+        while (topos.size() < count && !stopped()) {
+            int[] longest = diameters.longest();
+            if (longest == null || longest[0] < length - 1) {
+                break;
+            }
+            GraphPath<Integer, DefaultEdge> path = oracle.getPath(longest[1], longest[2]);
+            List<Integer> vertices = path.getVertexList();
+            List<DefaultEdge> edges = path.getEdgeList();
+
+            /* Cut path into segments of length nodes, the last one is left to the graph if it is too short */
+            for (int start = 0; start + length - 1 <= edges.size() && topos.size() < count; start += length - 1) {
+                Graph<Integer, DefaultEdge> topo = new SimpleGraph<>(DefaultEdge.class);
+                for (int k = start; k < start + length; k++) {
+                    topo.addVertex(vertices.get(k));
+                }
+                for (int k = start; k < start + length - 1; k++) {
+                    topo.addEdge(vertices.get(k), vertices.get(k + 1));
+                    graph.removeEdge(edges.get(k));
+                }
+                topos.add(topo);
+            }
+
+            /* Only the component that was just cut can have a different longest path */
+            diameters.split(longest[1]);
+        }
+        return topos;
+    }
+
+    /**
+     * Finds every node at an exact distance from a source
+     * @param oracle    Hop distances for the graph
+     * @param order     Vertex ids in iteration order of the graph
+     * @param i         Position of the source in order
+     * @param distance  Number of hops that end points must be away from the source
+     * @return          Vertex ids of end points, in vertex order
+     */
+    private int[] endPointsFrom(HopDistanceOracle oracle, int[] order, int i, int distance) {
+        int[] dist = oracle.getDistances(order[i]);
+        return Arrays.stream(order).filter(u -> dist[u] == distance).toArray();
+    }
+
+    /**
+     * Lists vertex ids of a graph in its iteration order
+     * @param graph Graph being listed
+     * @return      Array of vertex ids
+     */
+    private int[] vertexOrder(Graph<Integer, DefaultEdge> graph) {
+        return graph.vertexSet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Creates a stream over source positions, which is parallel only if the search is concurrent
+     * @param size          Number of sources
+     * @param concurrent    True if sources should be processed concurrently
+     * @return              Stream of positions from 0 to size - 1
+     */
+    private IntStream sourceRange(int size, boolean concurrent) {
+        IntStream range = IntStream.range(0, size);
+        return concurrent ? range.parallel() : range;
+    }
+
+    /**
+     * Runs a search either directly or inside the search pool so that its parallel streams use that pool
+     * @param concurrent    True if the search should run in the search pool
+     * @param search        Search being run
+     * @return              Result of the search
+     */
+    private <T> T runSearch(boolean concurrent, Supplier<T> search) {
+        return concurrent ? searchPool.submit(search::get).join() : search.get();
+    }
+
+    /**
+     * Creates a merged component and removes it from the current graph
+     * @param minI          Index of source component being merged
+     * @param minJ          Index of destination component being merged
+     * @param partitions    Current graph of the network
+     * @param minPath       Minimum distance path between two components
+     * @param store         Components being merged, source and destination are emptied
+     * @param finalComp     List of other components that have been extracted from graph
+     * @param finalEdges    List of other component edges that have been extracted from graph
+     */
+    private void createFinalComponent(int minI, int minJ, Graph<Integer, DefaultEdge> partitions,
+                                      GraphPath<Integer, DefaultEdge> minPath, ComponentStore store,
+                                      List<List<Integer>> finalComp, List<List<DefaultEdge>> finalEdges) {
+        finalComp.add(new ArrayList<>());
+        finalEdges.add(new ArrayList<>());
+        /* Add nodes on path connecting components to new component */
+        for (Integer x : minPath.getVertexList()) {
+            Set<DefaultEdge> edges = new HashSet<>(partitions.edgesOf(x));
+            partitions.removeAllEdges(edges);
+            finalComp.get(finalComp.size() - 1).add(x);
+        }
+
+        /* Add edges on path connecting components to new edge list */
+        for (DefaultEdge e : minPath.getEdgeList()) {
+            finalEdges.get(finalEdges.size() - 1).add(e);
+        }
+
+        /* Add nodes in source component to new component */
+        for (Integer x : store.members(minI)) {
+            if (!partitions.containsVertex(x)) {
+                continue;
+            }
+            Set<DefaultEdge> edges = new HashSet<>(partitions.edgesOf(x));
+            partitions.removeAllEdges(edges);
+            finalComp.get(finalComp.size() - 1).add(x);
+        }
+
+        /* Add edges in source component to new edge list */
+        for (DefaultEdge e : store.edges(minI)) {
+            if (finalEdges.contains(e)) {
+                continue;
+            }
+            finalEdges.get(finalEdges.size() - 1).add(e);
+        }
+
+        /* Add nodes in destination component to new component */
+        for (Integer x : store.members(minJ)) {
+            if (!partitions.containsVertex(x)) {
+                continue;
+            }
+            Set<DefaultEdge> edges = new HashSet<>(partitions.edgesOf(x));
+            partitions.removeAllEdges(edges);
+            finalComp.get(finalComp.size() - 1).add(x);
+        }
+
+        /* Add edges in destination component to new edge list */
+        for (DefaultEdge e : store.edges(minJ)) {
+            if (finalEdges.contains(e)) {
+                continue;
+            }
+            finalEdges.get(finalEdges.size() - 1).add(e);
+        }
+
+        /* Both components now belong to the final component */
+        store.remove(minI, minJ);
+    }
+
+    /**
+     * Creates a star topology according to configuration file specifications
+     * @param graph     Current graph representing the network
+     * @param oracle    Hop distances for graph
+     * @param points    Number of points (nodes with one outgoing edge) on each star
+     * @param count     Number of stars to create
+     * @return
+     */
+    public List<Graph<Integer, DefaultEdge>> createStarTopos(Graph<Integer, DefaultEdge> graph, HopDistanceOracle oracle,
+                                                              int points, int count) {
+        ComponentStore store = new ComponentStore(graph);
+        List<List<Integer>> finalComp = new ArrayList<>();
+        List<List<DefaultEdge>> finalEdges = new ArrayList<>();
+        MaskedGraph partitions = MaskedGraph.of(graph);
+        HopDistanceOracle partitionOracle = oracle.copy(partitions);
+        ComponentDistanceIndex distanceIndex = new ComponentDistanceIndex(partitions, partitionOracle, 0);
+        int counter = 0;
+        /* Create star topologies until it is either impossible to make any more or the specified count has been reached */
+        while (!stopped()) {
+            List<List<Integer>> compDist = new ArrayList<>();
+            List<List<List<Integer>>> closestVert = new ArrayList<>();
+            distanceIndex.refresh(store.components(), compDist, closestVert);
+            if (stopped()) {
+                break;
+            }
+
+            /* Put distances into a minheap */
+            List<PriorityQueue<QueueEntry>> compQueue = new ArrayList<>();
+            for (int i = 0; i < store.size(); i++) {
+                compQueue.add(new PriorityQueue<>());
+                for (int j = 0; j < store.size(); j++) {
+                    compQueue.get(i).add(new QueueEntry(compDist.get(i).get(j), j));
+                }
+            }
+
+            store.nextRound();
+            boolean changed = false;
+
+            /* Combine components to form stars with more points until one with the required number of points is formed */
+            while (true) {
+                work.get()[0]++;
+                int minDist = Integer.MAX_VALUE;
+                GraphPath<Integer, DefaultEdge> minPath = null;
+                int minI = 0;
+                int minJ = 0;
+                int pos = 0;
+
+                /* Check each components priority queue of distance to other nodes */
+                for (int i = 0; i < compQueue.size(); i++) {
+                    /* Pop from priority queue until a valid node is encountered */
+                    while (compQueue.get(i).peek() != null && compQueue.get(i).peek().getKey() < minDist) {
+                        Integer v = closestVert.get(i).get(compQueue.get(i).peek().getValue()).get(0);
+                        Integer u = closestVert.get(i).get(compQueue.get(i).peek().getValue()).get(1);
+                        GraphPath<Integer, DefaultEdge> path = partitionOracle.getPath(v, u);
+                        boolean used = false;
+                        /* Check that nodes in the connecting path are not used by other merged components */
+                        for (Integer x : path.getVertexList()) {
+                            if (store.isMatched(x)) {
+                                compQueue.get(i).remove();
+                                used = true;
+                                break;
+                            }
+                        }
+
+                        /* Uppdate minimum distance, path, and source and destination components */
+                        if (!used) {
+                            minDist = compQueue.get(i).peek().getKey();
+                            minPath = path;
+                            minI = i;
+                            minJ = compQueue.get(i).peek().getValue();
+                            changed = true;
+                            pos = i;
+                            break;
+                        }
+                    }
+                }
+                if (minPath == null || stopped()) {
+                    break;
+                }
+                compQueue.get(pos).remove();
+                boolean exit = true;
+                int newPoints = store.points(minI) + store.points(minJ);
+
+                /* If star topology formed has the required number of points, create star and trim points to be 1 node long */
+                if (newPoints == points) {
+                    createFinalComponent(minI, minJ, partitions, minPath, store, finalComp, finalEdges);
+                    trimEdges(graph, finalComp.get(finalComp.size() - 1), finalEdges.get(finalEdges.size() - 1), points, false);
+                    counter++;
+                }
+
+                /* If star topology has more than the required number of points, create star,
+                    trim off excess points, then trim all other points to be 1 node long
+                 */
+                else if (newPoints > points) {
+                    createFinalComponent(minI, minJ, partitions, minPath, store, finalComp, finalEdges);
+                    cutAndTrimEdges(graph, finalComp.get(finalComp.size() - 1), finalEdges.get(finalEdges.size() - 1), newPoints - points, points);
+                    counter++;
+                }
+
+                /* Otherwise just merge component and continue loop to merge components */
+                else {
+                    store.merge(minI, minJ, minPath);
+                    exit = false;
+                }
+                if (exit) {
+                    break;
+                }
+            }
+
+            /* Exit loop if no new components were merged or finalized, or required number of components have been made */
+            if (!changed || counter >= count) {
+                break;
+            }
+
+
+            /* Remove empty components from merges */
+            store.compact();
+        }
+
+        /* Add finalized star topologies to overlay list */
+        List<Graph<Integer, DefaultEdge>> topos = new ArrayList<>();
+        for (int i = 0; i < finalComp.size(); i++) {
+            topos.add(new SimpleGraph<>(DefaultEdge.class));
+            for (Integer v : finalComp.get(i)) {
+                topos.get(i).addVertex(v);
+            }
+            for (DefaultEdge e : finalEdges.get(i)) {
+                topos.get(i).addEdge(graph.getEdgeSource(e), graph.getEdgeTarget(e));
+            }
+        }
+        return topos;
+    }
+
+    /**
+     * Creates a tree topology according to configuration file specifications. Every tree completed
+     * by a build is handed out before building again, and subtrees that no deeper subtree used are
+     * kept as starting components for the next build until a finalized subtree claims their vertices.
+     * @param graph     Current graph representing the network
+     * @param oracle    Hop distances for graph
+     * @param depth     Depth of the tree
+     * @param fanout    Fanout at each level of the tree
+     * @param count     Number of tree topologies to create
+     * @return          List of tree topology graphs
+     */
+    public List<Graph<Integer, DefaultEdge>> createTreeTopos(Graph<Integer, DefaultEdge> graph, HopDistanceOracle oracle,
+                                                              int depth, int fanout, int count) {
+        ComponentStore store = null;
+        List<List<Integer>> finalComp = new ArrayList<>();
+        List<List<DefaultEdge>> finalEdges = new ArrayList<>();
+        List<List<Integer>> treeComp = new ArrayList<>();
+        List<List<DefaultEdge>> treeEdges = new ArrayList<>();
+        MaskedGraph originalParts = MaskedGraph.of(graph);
+        HopDistanceOracle originalOracle = oracle.copy(originalParts);
+        MaskedGraph partitions = null;
+        HopDistanceOracle partitionOracle = null;
+        ComponentDistanceIndex distanceIndex = null;
+        boolean changed = false;
+        int currFan = 0;
+
+        /* Subtrees finalized at each depth that weren't merged into a deeper subtree */
+        List<List<List<Integer>>> keptComp = new ArrayList<>();
+        List<List<List<DefaultEdge>>> keptEdges = new ArrayList<>();
+        for (int d = 0; d < depth; d++) {
+            keptComp.add(new ArrayList<>());
+            keptEdges.add(new ArrayList<>());
+        }
+
+        /* Number of trees in finalComp that have been looked at, and vertices of the trees added to the overlay list */
+        int used = 0;
+        Set<Integer> taken = new HashSet<>();
+
+        /* Iterate up until the required number of trees is created */
+        while (treeComp.size() < count && !stopped()) {
+            /* Only build again once every tree from the previous build has been used */
+            if (used == finalComp.size()) {
+                used = 0;
+                int currDepth = 0;
+
+                /* Iterate until the working tree has appropriate depth */
+                while (currDepth < depth) {
+                    int level = currDepth;
+                    int targetFan = (int) Math.round(Math.pow(fanout, currDepth + 1));
+
+                    /* Reset graph and components, use subtrees of the previous depth and kept subtrees as the initial components */
+                    partitions = originalParts.copy();
+                    partitionOracle = originalOracle.copy(partitions);
+                    distanceIndex = new ComponentDistanceIndex(partitions, partitionOracle, 3);
+                    Set<List<Integer>> seeds = Collections.newSetFromMap(new IdentityHashMap<>());
+                    if (currDepth == 0) {
+                        store = new ComponentStore(graph);
+                    }
+                    else {
+                        List<List<Integer>> initialComp = new ArrayList<>(finalComp);
+                        List<List<DefaultEdge>> initialEdges = new ArrayList<>(finalEdges);
+                        initialComp.addAll(keptComp.get(currDepth));
+                        initialEdges.addAll(keptEdges.get(currDepth));
+                        seeds.addAll(initialComp);
+                        store = new ComponentStore(graph, initialComp, initialEdges,
+                                (int) Math.round(Math.pow(fanout, currDepth)));
+                    }
+
+                    /* Subtrees kept for a deeper level can't be merged or crossed at this one */
+                    for (int d = currDepth + 1; d < depth; d++) {
+                        for (List<Integer> c : keptComp.get(d)) {
+                            for (Integer x : c) {
+                                partitions.removeAllEdges(new HashSet<>(partitions.edgesOf(x)));
+                            }
+                        }
+                    }
+
+                    currFan = 0;
+                    finalComp = new ArrayList<>();
+                    finalEdges = new ArrayList<>();
+                    Set<Integer> claimed = new HashSet<>();
+                    while (true) {
+                        List<List<Integer>> compDist = new ArrayList<>();
+                        List<List<List<Integer>>> closestVert = new ArrayList<>();
+                        distanceIndex.refresh(store.components(), compDist, closestVert);
+
+                        /* Stopping counts as no more subtrees being possible */
+                        if (stopped()) {
+                            changed = false;
+                            break;
+                        }
+
+                        /* Put distances into a minheap */
+                        List<PriorityQueue<QueueEntry>> compQueue = new ArrayList<>();
+                        for (int i = 0; i < store.size(); i++) {
+                            compQueue.add(new PriorityQueue<>());
+                            for (int j = 0; j < store.size(); j++) {
+                                compQueue.get(i).add(new QueueEntry(compDist.get(i).get(j), j));
+                            }
+                        }
+
+                        store.nextRound();
+                        changed = false;
+                        /* Combine subtrees to form trees with more fanout until one with the required fanout is formed */
+                        while (true) {
+                            work.get()[0]++;
+                            int minDist = Integer.MAX_VALUE;
+                            GraphPath<Integer, DefaultEdge> minPath = null;
+                            int minI = 0;
+                            int minJ = 0;
+                            int pos = 0;
+                            // TODO: Make components using nodes in min path
+
+                            /* Check each components priority queue of distance to other nodes */
+                            for (int i = 0; i < compQueue.size(); i++) {
+                                /* Pop from priority queue until a valid node is encountered */
+                                while (compQueue.get(i).peek() != null && compQueue.get(i).peek().getKey() < minDist) {
+                                    Integer v = closestVert.get(i).get(compQueue.get(i).peek().getValue()).get(0);
+                                    Integer u = closestVert.get(i).get(compQueue.get(i).peek().getValue()).get(1);
+                                    GraphPath<Integer, DefaultEdge> path = partitionOracle.getPath(v, u);
+                                    boolean matched = false;
+
+                                    /* Check that nodes in the connecting path are not used by other merged components */
+                                    for (Integer x : path.getVertexList()) {
+                                        if (store.isMatched(x)) {
+                                            compQueue.get(i).remove();
+                                            matched = true;
+                                            break;
+                                        }
+                                    }
+
+                                    /* Uppdate minimum distance, path, and source and destination components */
+                                    if (!matched) {
+                                        minDist = compQueue.get(i).peek().getKey();
+                                        minPath = path;
+                                        minI = i;
+                                        minJ = compQueue.get(i).peek().getValue();
+                                        changed = true;
+                                        break;
+                                    }
+                                }
+                            }
+                            if (minPath == null || stopped()) {
+                                break;
+                            }
+                            compQueue.get(minI).remove();
+                            boolean exit = true;
+                            int newPoints = store.points(minI) + store.points(minJ);
+
+                            /* Create final component for current depth if required fanout is reached (shouldn't be surpassed) */
+                            if (newPoints >= targetFan) {
+                                createFinalComponent(minI, minJ, partitions, minPath, store, finalComp, finalEdges);
+                                claimed.addAll(finalComp.get(finalComp.size() - 1));
+                                /* Trim if the final tree is about to be formed */
+                                if (currDepth == depth - 1) {
+                                    trimEdges(graph, finalComp.get(finalComp.size() - 1), finalEdges.get(finalEdges.size() - 1), targetFan, false);
+                                }
+                                currFan++;
+                            }
+
+                            /* Otherwise just merge components */
+                            else {
+                                store.merge(minI, minJ, minPath);
+                                exit = false;
+                            }
+                            if (exit) {
+                                break;
+                            }
+                        }
+
+                        /* If at least the required number of subtrees was created and no more can be created, indicate so and break */
+                        if (currFan >= fanout && !changed) {
+                            changed = true;
+                            currDepth++;
+                            break;
+                        }
+
+                        /* Otherwise if subtree requirement is not met and no more can be created, break */
+                        if (!changed) {
+                            break;
+                        }
+
+                        /* Remove empty components from merges */
+                        store.compact();
+                    }
+
+                    /* Exit algorithm if no more trees can be made */
+                    if (!changed) {
+                        break;
+                    }
+                    keepSubtrees(store, seeds, claimed, level, keptComp, keptEdges);
+                }
+
+                /* Exit algorithm if no more trees can be made */
+                if (!changed || finalComp.isEmpty()) {
+                    break;
+                }
+                originalParts = partitions.copy();
+                originalOracle = partitionOracle.copy(originalParts);
+            }
+
+            /* Add a new tree to overlay, trees of the same build can share vertices picked up by their paths */
+            List<Integer> tree = finalComp.get(used);
+            if (tree.stream().noneMatch(taken::contains)) {
+                taken.addAll(tree);
+                treeComp.add(tree);
+                treeEdges.add(finalEdges.get(used));
+            }
+            used++;
+        }
+
+        /* Put tree overlays into a list and return */
+        List<Graph<Integer, DefaultEdge>> topos = new ArrayList<>();
+        for (int i = 0; i < treeComp.size(); i++) {
+            topos.add(new SimpleGraph<>(DefaultEdge.class));
+            for (Integer v : treeComp.get(i)) {
+                topos.get(i).addVertex(v);
+            }
+            for (DefaultEdge e : treeEdges.get(i)) {
+                topos.get(i).addEdge(graph.getEdgeSource(e), graph.getEdgeTarget(e));
+            }
+        }
+        return topos;
+    }
+
+    /**
+     * Keeps the subtrees that a depth started with and didn't merge, and drops kept subtrees that
+     * share a vertex with a subtree finalized at that depth
+     * @param store     Components left after merging at the depth
+     * @param seeds     Subtrees that the depth started with
+     * @param claimed   Vertices of every subtree finalized at the depth, before trimming
+     * @param level     Depth that was merged
+     * @param keptComp  Kept subtrees of each depth
+     * @param keptEdges Edges of the kept subtrees of each depth
+     */
+    private void keepSubtrees(ComponentStore store, Set<List<Integer>> seeds, Set<Integer> claimed, int level,
+                              List<List<List<Integer>>> keptComp, List<List<List<DefaultEdge>>> keptEdges) {
+        if (level > 0) {
+            keptComp.get(level).clear();
+            keptEdges.get(level).clear();
+            for (int i = 0; i < store.size(); i++) {
+                List<Integer> c = store.components().get(i);
+                if (!c.isEmpty() && seeds.contains(c)) {
+                    keptComp.get(level).add(c);
+                    keptEdges.get(level).add(store.edges(i));
+                }
+            }
+        }
+
+        /* Deeper subtrees are cut off from the graph at this depth, so only these can overlap */
+        for (int d = 1; d <= level; d++) {
+            for (int i = keptComp.get(d).size() - 1; i >= 0; i--) {
+                for (Integer x : keptComp.get(d).get(i)) {
+                    if (claimed.contains(x)) {
+                        keptComp.get(d).remove(i);
+                        keptEdges.get(d).remove(i);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates leaf-spine topologies, each a complete bipartite graph between its spines and leaves.
+     * Spine groups are grown greedily from switches that share many neighbors, then leaves are
+     * assigned to every group at once with a bipartite b-matching, repeating until no group can be
+     * completed. Unlike the other overlays, Clos overlays use physical links that may not be in graph.
+     * @param snapshot  Snapshot of the physical network that graph was taken from
+     * @param graph     Graph that overlays are being constructed from, only its vertices can be used
+     * @param spines    Number of spine switches in each topology
+     * @param leaves    Number of leaf switches in each topology
+     * @param count     Number of topologies to create
+     * @return          List of Clos topology graphs
+     */
+    public List<Graph<Integer, DefaultEdge>> createClosTopos(TopologySnapshot snapshot, Graph<Integer, DefaultEdge> graph,
+                                                             int spines, int leaves, int count) {
+        int n = snapshot.vertexCount();
+        boolean[] used = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            used[v] = !graph.containsVertex(v);
+        }
+        boolean[] tried = new boolean[n];
+        List<Graph<Integer, DefaultEdge>> topos = new ArrayList<>();
+        if (spines <= 0 || leaves <= 0) {
+            return topos;
+        }
+
+        while (topos.size() < count && !stopped()) {
+            /* Seed spine groups from the switches with the most free neighbors */
+            Integer[] order = new Integer[n];
+            int[] freeDegree = new int[n];
+            for (int v = 0; v < n; v++) {
+                order[v] = v;
+                for (int k = 0; k < snapshot.degree(v); k++) {
+                    freeDegree[v] += used[snapshot.neighbor(v, k)] ? 0 : 1;
+                }
+            }
+            Arrays.sort(order, (a, b) -> freeDegree[b] - freeDegree[a]);
+
+            boolean[] spine = new boolean[n];
+            List<int[]> groups = new ArrayList<>();
+            List<int[]> candidates = new ArrayList<>();
+            for (int v : order) {
+                if (used[v] || tried[v] || spine[v] || freeDegree[v] < leaves) {
+                    continue;
+                }
+                int[] group = new int[spines];
+                int[] leafSet = growSpineGroup(snapshot, v, used, spine, group, leaves);
+
+                /* Spines of this round's groups are released if they miss leaves, so only failures without them last */
+                if (leafSet == null) {
+                    tried[v] = groups.isEmpty();
+                }
+                else {
+                    for (int w : group) {
+                        spine[w] = true;
+                    }
+                    groups.add(group);
+                    candidates.add(leafSet);
+                }
+            }
+            if (groups.isEmpty()) {
+                break;
+            }
+
+            /* Give every group up to the required number of leaves that aren't spines of any group */
+            int[] leafIndex = new int[n];
+            Arrays.fill(leafIndex, -1);
+            List<Integer> leafIds = new ArrayList<>();
+            for (int[] leafSet : candidates) {
+                for (int u : leafSet) {
+                    if (!spine[u] && leafIndex[u] < 0) {
+                        leafIndex[u] = leafIds.size();
+                        leafIds.add(u);
+                    }
+                }
+            }
+            BipartiteFlow flow = new BipartiteFlow(groups.size(), leafIds.size());
+            for (int g = 0; g < groups.size(); g++) {
+                flow.setCapacity(g, leaves);
+                for (int u : candidates.get(g)) {
+                    if (!spine[u]) {
+                        flow.addEdge(g, leafIndex[u]);
+                    }
+                }
+            }
+            flow.solve();
+            int[] match = flow.assignment();
+            List<List<Integer>> assigned = new ArrayList<>();
+            for (int g = 0; g < groups.size(); g++) {
+                assigned.add(new ArrayList<>());
+            }
+            for (int r = 0; r < match.length; r++) {
+                if (match[r] >= 0) {
+                    assigned.get(match[r]).add(leafIds.get(r));
+                }
+            }
+
+            /* Keep groups that got all of their leaves, the others are retried with different seeds */
+            int made = 0;
+            for (int g = 0; g < groups.size() && topos.size() < count; g++) {
+                if (assigned.get(g).size() < leaves) {
+                    continue;
+                }
+                Graph<Integer, DefaultEdge> topo = new SimpleGraph<>(DefaultEdge.class);
+                for (int w : groups.get(g)) {
+                    topo.addVertex(w);
+                    used[w] = true;
+                }
+                for (int u : assigned.get(g)) {
+                    topo.addVertex(u);
+                    used[u] = true;
+                    for (int w : groups.get(g)) {
+                        topo.addEdge(w, u);
+                    }
+                }
+                topos.add(topo);
+                made++;
+            }
+            if (made == 0) {
+                break;
+            }
+        }
+        return topos;
+    }
+
+    /**
+     * Grows a group of spines around a seed switch, adding switches that keep the most common free neighbors
+     * @param snapshot  Snapshot of the physical network
+     * @param seed      First spine of the group
+     * @param used      Switches that are already in an overlay
+     * @param spine     Switches that are spines of other groups
+     * @param group     Filled with the spines of the group
+     * @param leaves    Number of leaves every spine has to share
+     * @return          Free switches adjacent to every spine in the group, or null if the group can't be completed
+     */
+    private int[] growSpineGroup(TopologySnapshot snapshot, int seed, boolean[] used, boolean[] spine,
+                                 int[] group, int leaves) {
+        int n = snapshot.vertexCount();
+        boolean[] shared = new boolean[n];
+        int sharedCount = 0;
+        for (int k = 0; k < snapshot.degree(seed); k++) {
+            int u = snapshot.neighbor(seed, k);
+            if (!used[u] && !spine[u] && !shared[u]) {
+                shared[u] = true;
+                sharedCount++;
+            }
+        }
+        group[0] = seed;
+        int size = 1;
+
+        /* Count common free neighbors of the seed with every switch two hops away */
+        int[] common = new int[n];
+        List<Integer> reached = new ArrayList<>();
+        for (int k = 0; k < snapshot.degree(seed); k++) {
+            int u = snapshot.neighbor(seed, k);
+            if (!shared[u]) {
+                continue;
+            }
+            for (int j = 0; j < snapshot.degree(u); j++) {
+                int w = snapshot.neighbor(u, j);
+                if (w != seed && !used[w] && !spine[w] && common[w]++ == 0) {
+                    reached.add(w);
+                }
+            }
+        }
+        reached.sort((a, b) -> common[b] != common[a] ? common[b] - common[a] : a - b);
+
+        /* Add spines while at least the required number of leaves stays adjacent to all of them */
+        for (int w : reached) {
+            if (size == group.length || common[w] < leaves) {
+                break;
+            }
+            boolean[] next = new boolean[n];
+            int nextCount = 0;
+            for (int j = 0; j < snapshot.degree(w); j++) {
+                int u = snapshot.neighbor(w, j);
+                if (shared[u] && !next[u]) {
+                    next[u] = true;
+                    nextCount++;
+                }
+            }
+
+            /* A spine can't also be a leaf of its own group */
+            for (int i = 0; i < size; i++) {
+                if (next[group[i]]) {
+                    next[group[i]] = false;
+                    nextCount--;
+                }
+            }
+            if (nextCount >= leaves) {
+                shared = next;
+                sharedCount = nextCount;
+                group[size++] = w;
+            }
+        }
+        if (size < group.length || sharedCount < leaves) {
+            return null;
+        }
+
+        int[] leafSet = new int[sharedCount];
+        int i = 0;
+        for (int u = 0; u < n; u++) {
+            if (shared[u]) {
+                leafSet[i++] = u;
+            }
+        }
+        return leafSet;
+    }
+}
@@ -0,0 +1,317 @@
+package org.onos.dclab;
+
+import org.jgrapht.Graph;
+import org.jgrapht.Graphs;
+import org.jgrapht.graph.DefaultEdge;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Compiles the forwarding rules that connect every pair of hosts within an overlay, so that traffic
+ * inside overlays is forwarded without packet-ins. Rules match on the destination MAC address, and
+ * every switch of an overlay sends packets for a host along a shortest path in the overlay towards
+ * the switch the host is attached to. Rules for the same destination are shared by all sources, so
+ * an overlay with h hosts and n switches needs h * n rules instead of one path per host pair. When
+ * overlays share switches, every rule also matches one of the ports the overlay uses on that switch,
+ * which slices the switch between overlays, and a host belongs to the first overlay holding its switch.
+ * Packets that enter a shared switch on a port of an overlay but match none of its rules are dropped
+ * by a rule one priority lower, so that reactive forwarding can't send them into another overlay.
+ */
+public final class OverlayFlowCompiler {
+    /** Application that installed rules belong to. */
+    private final ApplicationId appId;
+
+    /** Priority of installed rules, above the ones used by reactive forwarding. */
+    private final int priority;
+
+    /** True if overlays share switches, so that rules also match the port a packet came in on. */
+    private final boolean slices;
+
+    /** Rules installed by the last update, by device and selector. */
+    private Map<DeviceId, Map<TrafficSelector, FlowRule>> installed = new HashMap<>();
+
+    /**
+     * Creates a compiler whose rules belong to an application
+     * @param appId     Application that installs the rules
+     * @param priority  Priority of the rules
+     * @param slices    True if overlays may share switches, which keeps their traffic apart by ingress port
+     */
+    public OverlayFlowCompiler(ApplicationId appId, int priority, boolean slices) {
+        this.appId = appId;
+        this.priority = priority;
+        this.slices = slices;
+    }
+
+    /**
+     * Compiles the rules for every host attached to an overlay
+     * @param overlays  Overlays currently applied to the network
+     * @param links     Physical links, giving the port that connects each pair of adjacent switches
+     * @param hosts     Hosts known to ONOS, hosts outside of every overlay are ignored
+     * @return          Rules for every switch of every overlay
+     */
+    public List<FlowRule> compile(List<Graph<TopologyVertex, DefaultEdge>> overlays, Collection<TopologyEdge> links,
+                                  Iterable<Host> hosts) {
+        Map<DeviceId, Map<DeviceId, PortNumber>> ports = ports(links);
+
+        /* A host belongs to the first overlay holding its switch, which is the only one unless switches are shared */
+        Map<DeviceId, Integer> owner = new HashMap<>();
+        Map<DeviceId, TopologyVertex> vertices = new HashMap<>();
+        for (int k = 0; k < overlays.size(); k++) {
+            for (TopologyVertex v : overlays.get(k).vertexSet()) {
+                owner.putIfAbsent(v.deviceId(), k);
+                vertices.putIfAbsent(v.deviceId(), v);
+            }
+        }
+        List<Map<TopologyVertex, List<Host>>> attached = new ArrayList<>();
+        for (int k = 0; k < overlays.size(); k++) {
+            attached.add(new LinkedHashMap<>());
+        }
+        for (Host h : hosts) {
+            Integer k = owner.get(h.location().deviceId());
+            if (k != null) {
+                attached.get(k).computeIfAbsent(vertices.get(h.location().deviceId()), v -> new ArrayList<>()).add(h);
+            }
+        }
+
+        /* Switches held by more than one overlay, which are the only ones whose traffic can cross into another */
+        Map<DeviceId, Integer> holders = new HashMap<>();
+        if (slices) {
+            for (Graph<TopologyVertex, DefaultEdge> g : overlays) {
+                for (TopologyVertex v : g.vertexSet()) {
+                    holders.merge(v.deviceId(), 1, Integer::sum);
+                }
+            }
+        }
+
+        List<FlowRule> rules = new ArrayList<>();
+        for (int k = 0; k < overlays.size(); k++) {
+            Graph<TopologyVertex, DefaultEdge> g = overlays.get(k);
+            Map<DeviceId, List<PortNumber>> in = slices ? inPorts(g, attached.get(k), ports) : null;
+            if (slices) {
+                addDropRules(rules, in, holders);
+            }
+            for (Map.Entry<TopologyVertex, List<Host>> e : attached.get(k).entrySet()) {
+                Map<TopologyVertex, TopologyVertex> next = towards(g, e.getKey());
+                for (Host h : e.getValue()) {
+                    addRules(rules, e.getKey().deviceId(), h.mac(), h.location().port(), in);
+                    for (Map.Entry<TopologyVertex, TopologyVertex> hop : next.entrySet()) {
+                        DeviceId device = hop.getKey().deviceId();
+                        PortNumber port = ports.getOrDefault(device, Collections.emptyMap()).get(hop.getValue().deviceId());
+                        if (port != null) {
+                            addRules(rules, device, h.mac(), port, in);
+                        }
+                    }
+                }
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Finds the operations that replace the rules installed by the last update with new ones. Rules
+     * that are unchanged are left alone, so re-planning only touches switches whose paths changed.
+     * @param rules Rules that should be installed once the operations are applied
+     * @return      Builder holding the additions, modifications and removals, to be applied as a single batch
+     */
+    public FlowRuleOperations.Builder update(List<FlowRule> rules) {
+        Map<DeviceId, Map<TrafficSelector, FlowRule>> next = new HashMap<>();
+        for (FlowRule r : rules) {
+            next.computeIfAbsent(r.deviceId(), k -> new HashMap<>()).put(r.selector(), r);
+        }
+
+        /* Rules are identified by device and selector, so a rule whose output port changed is modified in place */
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        for (Map<TrafficSelector, FlowRule> device : next.values()) {
+            for (FlowRule r : device.values()) {
+                FlowRule old = installed.getOrDefault(r.deviceId(), Collections.emptyMap()).get(r.selector());
+                if (old == null) {
+                    ops.add(r);
+                }
+                else if (!r.treatment().equals(old.treatment())) {
+                    ops.modify(r);
+                }
+            }
+        }
+        for (Map<TrafficSelector, FlowRule> device : installed.values()) {
+            for (FlowRule old : device.values()) {
+                if (!next.getOrDefault(old.deviceId(), Collections.emptyMap()).containsKey(old.selector())) {
+                    ops.remove(old);
+                }
+            }
+        }
+        installed = next;
+        return ops;
+    }
+
+    /** Forgets the installed rules, after they were removed together with all other rules of the application. */
+    public void clear() {
+        installed = new HashMap<>();
+    }
+
+    /** @return Number of rules installed by the last update */
+    public int size() {
+        int size = 0;
+        for (Map<TrafficSelector, FlowRule> device : installed.values()) {
+            size += device.size();
+        }
+        return size;
+    }
+
+    /**
+     * Runs a BFS from a switch over the links of its overlay
+     * @param g     Overlay that the switch is part of
+     * @param root  Switch being searched from
+     * @return      Next switch towards root for every other switch that can reach it
+     */
+    private static Map<TopologyVertex, TopologyVertex> towards(Graph<TopologyVertex, DefaultEdge> g, TopologyVertex root) {
+        Map<TopologyVertex, TopologyVertex> next = new LinkedHashMap<>();
+        Queue<TopologyVertex> queue = new ArrayDeque<>();
+        queue.add(root);
+        next.put(root, root);
+        while (!queue.isEmpty()) {
+            TopologyVertex v = queue.poll();
+            for (TopologyVertex u : Graphs.neighborListOf(g, v)) {
+                if (!next.containsKey(u)) {
+                    next.put(u, v);
+                    queue.add(u);
+                }
+            }
+        }
+        next.remove(root);
+        return next;
+    }
+
+    /**
+     * Maps each pair of adjacent switches to the port that leaves the first one towards the second
+     * @param links Physical links, the reverse of a link is used when only one direction is known
+     * @return      Output port by source and destination device
+     */
+    private static Map<DeviceId, Map<DeviceId, PortNumber>> ports(Collection<TopologyEdge> links) {
+        Map<DeviceId, Map<DeviceId, PortNumber>> ports = new HashMap<>();
+        for (TopologyEdge e : links) {
+            Link l = e.link();
+            ports.computeIfAbsent(l.src().deviceId(), k -> new HashMap<>()).put(l.dst().deviceId(), l.src().port());
+        }
+        for (TopologyEdge e : links) {
+            Link l = e.link();
+            ports.computeIfAbsent(l.dst().deviceId(), k -> new HashMap<>()).putIfAbsent(l.src().deviceId(), l.dst().port());
+        }
+        return ports;
+    }
+
+    /**
+     * Lists the ports through which packets enter each switch of an overlay, which are the ports of
+     * its links and of its hosts. Overlays that share a switch never share a link, so these sets are
+     * disjoint between overlays.
+     * @param g         Overlay being listed
+     * @param attached  Hosts of the overlay by the switch they are attached to
+     * @param ports     Output port by source and destination device
+     * @return          Ports of the overlay by device
+     */
+    private static Map<DeviceId, List<PortNumber>> inPorts(Graph<TopologyVertex, DefaultEdge> g,
+                                                           Map<TopologyVertex, List<Host>> attached,
+                                                           Map<DeviceId, Map<DeviceId, PortNumber>> ports) {
+        Map<DeviceId, List<PortNumber>> in = new HashMap<>();
+        for (DefaultEdge e : g.edgeSet()) {
+            DeviceId v = g.getEdgeSource(e).deviceId();
+            DeviceId u = g.getEdgeTarget(e).deviceId();
+            PortNumber vu = ports.getOrDefault(v, Collections.emptyMap()).get(u);
+            PortNumber uv = ports.getOrDefault(u, Collections.emptyMap()).get(v);
+            if (vu != null) {
+                in.computeIfAbsent(v, k -> new ArrayList<>()).add(vu);
+            }
+            if (uv != null) {
+                in.computeIfAbsent(u, k -> new ArrayList<>()).add(uv);
+            }
+        }
+        for (Map.Entry<TopologyVertex, List<Host>> e : attached.entrySet()) {
+            for (Host h : e.getValue()) {
+                in.computeIfAbsent(e.getKey().deviceId(), k -> new ArrayList<>()).add(h.location().port());
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Adds the rules of a single switch that send packets for a host out of a port
+     * @param rules     Receives the rules
+     * @param device    Switch that the rules are for
+     * @param dst       MAC address of the host
+     * @param out       Port leading towards the host
+     * @param in        Ports of each switch in the overlay, or null if rules don't have to match the ingress port
+     */
+    private void addRules(List<FlowRule> rules, DeviceId device, MacAddress dst, PortNumber out,
+                          Map<DeviceId, List<PortNumber>> in) {
+        if (in == null) {
+            rules.add(rule(device, DefaultTrafficSelector.builder().matchEthDst(dst).build(), out));
+            return;
+        }
+
+        /* Packets of other overlays sharing the switch arrive on other ports, so they never match */
+        for (PortNumber p : in.getOrDefault(device, Collections.emptyList())) {
+            if (!p.equals(out)) {
+                rules.add(rule(device, DefaultTrafficSelector.builder().matchInPort(p).matchEthDst(dst).build(), out));
+            }
+        }
+    }
+
+    /**
+     * Adds the rules that drop packets entering a shared switch on a port of an overlay when no rule
+     * of the overlay matched them. ARP and host discovery still reach the controller, since ONOS
+     * intercepts those packets with rules of a much higher priority.
+     * @param rules     Receives the rules
+     * @param in        Ports of each switch in the overlay
+     * @param holders   Number of overlays holding each switch
+     */
+    private void addDropRules(List<FlowRule> rules, Map<DeviceId, List<PortNumber>> in, Map<DeviceId, Integer> holders) {
+        for (Map.Entry<DeviceId, List<PortNumber>> e : in.entrySet()) {
+            if (holders.getOrDefault(e.getKey(), 0) < 2) {
+                continue;
+            }
+            for (PortNumber p : e.getValue()) {
+                rules.add(DefaultFlowRule.builder()
+                        .forDevice(e.getKey())
+                        .withSelector(DefaultTrafficSelector.builder().matchInPort(p).build())
+                        .withTreatment(DefaultTrafficTreatment.builder().drop().build())
+                        .withPriority(Math.max(priority - 1, FlowRule.MIN_PRIORITY))
+                        .fromApp(appId)
+                        .makePermanent()
+                        .build());
+            }
+        }
+    }
+
+    /** Builds a permanent rule that sends packets matching selector out of a port. */
+    private FlowRule rule(DeviceId device, TrafficSelector selector, PortNumber port) {
+        return DefaultFlowRule.builder()
+                .forDevice(device)
+                .withSelector(selector)
+                .withTreatment(DefaultTrafficTreatment.builder().setOutput(port).build())
+                .withPriority(priority)
+                .fromApp(appId)
+                .makePermanent()
+                .build();
+    }
+}
@@ -0,0 +1,138 @@
+package org.onos.dclab;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Subgraph specifications submitted at runtime, planned and applied asynchronously by DClab. Jobs are
+ * polled by id until they complete with the plan that was applied, or fail with an error message.
+ */
+public final class OverlayJob {
+    /** Stages of a job, which only move forward. */
+    public enum Status {
+        PENDING, RUNNING, COMPLETED, FAILED
+    }
+
+    private final long id;
+
+    /** Subgraph specifications to apply. */
+    private final List<JsonObject> specs;
+
+    /** Times the job was submitted, started and finished, in ms since the epoch, 0 if not reached yet. */
+    private final long submitted;
+    private long started;
+    private long finished;
+
+    private Status status = Status.PENDING;
+
+    /** Plan applied by a completed job. */
+    private OverlayPlan plan;
+
+    /** Reason a failed job failed. */
+    private String error;
+
+    /**
+     * Creates a pending job
+     * @param id    Id used to poll the job
+     * @param specs Subgraph specifications to apply
+     */
+    OverlayJob(long id, List<JsonObject> specs) {
+        this.id = id;
+        this.specs = Collections.unmodifiableList(new ArrayList<>(specs));
+        this.submitted = System.currentTimeMillis();
+    }
+
+    /** Marks the job as running. */
+    synchronized void start() {
+        status = Status.RUNNING;
+        started = System.currentTimeMillis();
+    }
+
+    /**
+     * Marks the job as completed
+     * @param plan  Plan that was applied
+     */
+    synchronized void complete(OverlayPlan plan) {
+        this.plan = plan;
+        status = Status.COMPLETED;
+        finished = System.currentTimeMillis();
+    }
+
+    /**
+     * Marks the job as failed
+     * @param error Reason the job failed
+     */
+    synchronized void fail(String error) {
+        this.error = error;
+        status = Status.FAILED;
+        finished = System.currentTimeMillis();
+    }
+
+    /** @return Id used to poll the job */
+    public long id() {
+        return id;
+    }
+
+    /** @return Subgraph specifications to apply */
+    public List<JsonObject> specs() {
+        return specs;
+    }
+
+    /** @return Current stage of the job */
+    public synchronized Status status() {
+        return status;
+    }
+
+    /** @return Plan applied by the job, or null if it hasn't completed */
+    public synchronized OverlayPlan plan() {
+        return plan;
+    }
+
+    /** @return Reason the job failed, or null if it hasn't failed */
+    public synchronized String error() {
+        return error;
+    }
+
+    /** @return True if the job completed or failed */
+    public synchronized boolean isDone() {
+        return status == Status.COMPLETED || status == Status.FAILED;
+    }
+
+    /**
+     * Converts the job to JSON for the REST API and CLI
+     * @param detailed  True to include the specs and the applied plan, false for a summary
+     * @return          JSON form of the job
+     */
+    public synchronized JsonObject toJson(boolean detailed) {
+        JsonObject json = new JsonObject()
+                .add("id", id)
+                .add("status", status.name())
+                .add("submitted", submitted)
+                .add("started", started)
+                .add("finished", finished);
+        if (error != null) {
+            json.add("error", error);
+        }
+        if (plan != null) {
+            json.add("overlays", plan.overlays().size())
+                    .add("keptLinks", plan.keep().size())
+                    .add("removedLinks", plan.remove().size())
+                    .add("removedDevices", plan.removeDevices().size());
+        }
+        if (detailed) {
+            JsonArray specArray = new JsonArray();
+            for (JsonObject spec : specs) {
+                specArray.add(spec);
+            }
+            json.add("specs", specArray);
+            if (plan != null) {
+                json.add("plan", plan.toJson());
+            }
+        }
+        return json;
+    }
+}
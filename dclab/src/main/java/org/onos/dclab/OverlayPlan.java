@@ -0,0 +1,391 @@
+package org.onos.dclab;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import org.jgrapht.Graph;
+import org.jgrapht.graph.DefaultEdge;
+import org.jgrapht.graph.SimpleGraph;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Overlays chosen for a network together with the link operations that apply them. Plans can be
+ * written to a compact JSON file by the offline planner and applied later without searching again,
+ * or to an even smaller binary form used by the plan cache.
+ */
+public final class OverlayPlan {
+    /** Version of the plan file format, bumped whenever it changes incompatibly. */
+    private static final int VERSION = 1;
+
+    /** Marks the start of a binary plan, followed by the version of the binary format. */
+    private static final int BINARY_MAGIC = 0x44436c50;
+    private static final int BINARY_VERSION = 1;
+
+    /** Overlays in the plan, and the index of the spec that created each one. */
+    private final List<Graph<TopologyVertex, DefaultEdge>> overlays;
+    private final List<Integer> overlaySpecs;
+
+    /** Links used by some overlay, in either direction. */
+    private final List<LinkKey> keep;
+
+    /** Links between two overlay devices that no overlay uses. */
+    private final List<LinkKey> remove;
+
+    /** Devices in no overlay, all of whose links are removed. */
+    private final List<DeviceId> removeDevices;
+
+    private OverlayPlan(List<Graph<TopologyVertex, DefaultEdge>> overlays, List<Integer> overlaySpecs,
+                        List<LinkKey> keep, List<LinkKey> remove, List<DeviceId> removeDevices) {
+        this.overlays = overlays;
+        this.overlaySpecs = overlaySpecs;
+        this.keep = keep;
+        this.remove = remove;
+        this.removeDevices = removeDevices;
+    }
+
+    /**
+     * Works out which links have to be removed from a network so that only overlay links are left
+     * @param overlays      Overlays being applied
+     * @param overlaySpecs  Index of the spec that created each overlay
+     * @param vertexes      Devices in the network
+     * @param edges         Links in the network
+     * @return              Plan applying overlays to the network
+     */
+    public static OverlayPlan of(List<Graph<TopologyVertex, DefaultEdge>> overlays, List<Integer> overlaySpecs,
+                                 Collection<TopologyVertex> vertexes, Collection<TopologyEdge> edges) {
+        /* Index the neighbors each node keeps across all overlays, nodes missing from the index are in no overlay */
+        Map<TopologyVertex, Set<TopologyVertex>> allowed = new HashMap<>();
+        for (Graph<TopologyVertex, DefaultEdge> g : overlays) {
+            for (TopologyVertex v : g.vertexSet()) {
+                allowed.computeIfAbsent(v, k -> new HashSet<>());
+            }
+            for (DefaultEdge e : g.edgeSet()) {
+                allowed.get(g.getEdgeSource(e)).add(g.getEdgeTarget(e));
+                allowed.get(g.getEdgeTarget(e)).add(g.getEdgeSource(e));
+            }
+        }
+
+        /* Disable all edges for nodes not in overlaid network */
+        List<DeviceId> removeDevices = new ArrayList<>();
+        for (TopologyVertex v : vertexes) {
+            if (!allowed.containsKey(v)) {
+                removeDevices.add(v.deviceId());
+            }
+        }
+
+        /* Edges to nodes outside of every overlay are already covered by the removal of all their links */
+        List<LinkKey> keep = new ArrayList<>();
+        List<LinkKey> remove = new ArrayList<>();
+        for (TopologyEdge e : edges) {
+            Set<TopologyVertex> neighbors = allowed.get(e.src());
+            if (neighbors == null || !allowed.containsKey(e.dst())) {
+                continue;
+            }
+            if (neighbors.contains(e.dst())) {
+                keep.add(LinkKey.linkKey(e.link()));
+            }
+            else {
+                remove.add(LinkKey.linkKey(e.link()));
+            }
+        }
+        return new OverlayPlan(new ArrayList<>(overlays), new ArrayList<>(overlaySpecs), keep, remove, removeDevices);
+    }
+
+    /**
+     * Reads a plan written by write
+     * @param reader    Source of the plan file
+     * @return          Plan stored in the file
+     * @throws IOException if the file can't be read or was written in another format version
+     */
+    public static OverlayPlan read(Reader reader) throws IOException {
+        JsonObject json = Json.parse(reader).asObject();
+        if (json.getInt("version", 0) != VERSION) {
+            throw new IOException("Unsupported plan version " + json.get("version"));
+        }
+
+        List<Graph<TopologyVertex, DefaultEdge>> overlays = new ArrayList<>();
+        List<Integer> overlaySpecs = new ArrayList<>();
+        for (JsonValue value : json.get("overlays").asArray()) {
+            JsonObject overlay = value.asObject();
+            Graph<TopologyVertex, DefaultEdge> g = new SimpleGraph<>(DefaultEdge.class);
+            for (JsonValue d : overlay.get("devices").asArray()) {
+                g.addVertex(vertex(d));
+            }
+            for (JsonValue e : overlay.get("edges").asArray()) {
+                g.addEdge(vertex(e.asArray().get(0)), vertex(e.asArray().get(1)));
+            }
+            overlays.add(g);
+            overlaySpecs.add(overlay.getInt("spec", 0));
+        }
+
+        List<DeviceId> removeDevices = new ArrayList<>();
+        for (JsonValue d : json.get("removeDevices").asArray()) {
+            removeDevices.add(DeviceId.deviceId(d.asString()));
+        }
+        return new OverlayPlan(overlays, overlaySpecs, links(json.get("keep").asArray()),
+                links(json.get("remove").asArray()), removeDevices);
+    }
+
+    /**
+     * Writes the plan as a single line of JSON
+     * @param writer    Destination of the plan file
+     * @throws IOException if the plan can't be written
+     */
+    public void write(Writer writer) throws IOException {
+        toJson().writeTo(writer);
+    }
+
+    /**
+     * Converts the plan to the JSON object stored in plan files
+     * @return  JSON form of the plan
+     */
+    public JsonObject toJson() {
+        JsonArray overlayArray = new JsonArray();
+        for (int i = 0; i < overlays.size(); i++) {
+            Graph<TopologyVertex, DefaultEdge> g = overlays.get(i);
+            JsonArray devices = new JsonArray();
+            for (TopologyVertex v : g.vertexSet()) {
+                devices.add(v.deviceId().toString());
+            }
+            JsonArray edges = new JsonArray();
+            for (DefaultEdge e : g.edgeSet()) {
+                edges.add(new JsonArray()
+                        .add(g.getEdgeSource(e).deviceId().toString())
+                        .add(g.getEdgeTarget(e).deviceId().toString()));
+            }
+            overlayArray.add(new JsonObject()
+                    .add("spec", overlaySpecs.get(i))
+                    .add("devices", devices)
+                    .add("edges", edges));
+        }
+
+        JsonArray devices = new JsonArray();
+        for (DeviceId d : removeDevices) {
+            devices.add(d.toString());
+        }
+        return new JsonObject()
+                .add("version", VERSION)
+                .add("overlays", overlayArray)
+                .add("keep", links(keep))
+                .add("remove", links(remove))
+                .add("removeDevices", devices);
+    }
+
+    /**
+     * Reads a plan written by writeBinary
+     * @param in    Source of the binary plan
+     * @return      Plan stored in the stream
+     * @throws IOException if the plan can't be read or was written in another format version
+     */
+    public static OverlayPlan readBinary(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != BINARY_MAGIC) {
+            throw new IOException("Not a binary plan");
+        }
+        int version = data.readInt();
+        if (version != BINARY_VERSION) {
+            throw new IOException("Unsupported binary plan version " + version);
+        }
+
+        TopologyVertex[] devices = new TopologyVertex[data.readInt()];
+        for (int d = 0; d < devices.length; d++) {
+            devices[d] = new DefaultTopologyVertex(DeviceId.deviceId(data.readUTF()));
+        }
+
+        int overlayCount = data.readInt();
+        List<Graph<TopologyVertex, DefaultEdge>> overlays = new ArrayList<>(overlayCount);
+        List<Integer> overlaySpecs = new ArrayList<>(overlayCount);
+        for (int i = 0; i < overlayCount; i++) {
+            overlaySpecs.add(data.readInt());
+            Graph<TopologyVertex, DefaultEdge> g = new SimpleGraph<>(DefaultEdge.class);
+            for (int n = data.readInt(); n > 0; n--) {
+                g.addVertex(devices[data.readInt()]);
+            }
+            for (int n = data.readInt(); n > 0; n--) {
+                g.addEdge(devices[data.readInt()], devices[data.readInt()]);
+            }
+            overlays.add(g);
+        }
+
+        List<LinkKey> keep = readLinks(data, devices);
+        List<LinkKey> remove = readLinks(data, devices);
+        List<DeviceId> removeDevices = new ArrayList<>();
+        for (int n = data.readInt(); n > 0; n--) {
+            removeDevices.add(devices[data.readInt()].deviceId());
+        }
+        return new OverlayPlan(overlays, overlaySpecs, keep, remove, removeDevices);
+    }
+
+    /**
+     * Writes the plan in a binary form, with every device id stored once and referred to by index
+     * @param out   Destination of the binary plan
+     * @throws IOException if the plan can't be written
+     */
+    public void writeBinary(OutputStream out) throws IOException {
+        /* Number devices in the order they are first seen */
+        Map<DeviceId, Integer> index = new LinkedHashMap<>();
+        for (Graph<TopologyVertex, DefaultEdge> g : overlays) {
+            for (TopologyVertex v : g.vertexSet()) {
+                index.putIfAbsent(v.deviceId(), index.size());
+            }
+        }
+        for (List<LinkKey> links : Arrays.asList(keep, remove)) {
+            for (LinkKey k : links) {
+                index.putIfAbsent(k.src().deviceId(), index.size());
+                index.putIfAbsent(k.dst().deviceId(), index.size());
+            }
+        }
+        for (DeviceId d : removeDevices) {
+            index.putIfAbsent(d, index.size());
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(BINARY_MAGIC);
+        data.writeInt(BINARY_VERSION);
+        data.writeInt(index.size());
+        for (DeviceId d : index.keySet()) {
+            data.writeUTF(d.toString());
+        }
+
+        data.writeInt(overlays.size());
+        for (int i = 0; i < overlays.size(); i++) {
+            Graph<TopologyVertex, DefaultEdge> g = overlays.get(i);
+            data.writeInt(overlaySpecs.get(i));
+            data.writeInt(g.vertexSet().size());
+            for (TopologyVertex v : g.vertexSet()) {
+                data.writeInt(index.get(v.deviceId()));
+            }
+            data.writeInt(g.edgeSet().size());
+            for (DefaultEdge e : g.edgeSet()) {
+                data.writeInt(index.get(g.getEdgeSource(e).deviceId()));
+                data.writeInt(index.get(g.getEdgeTarget(e).deviceId()));
+            }
+        }
+
+        writeLinks(data, keep, index);
+        writeLinks(data, remove, index);
+        data.writeInt(removeDevices.size());
+        for (DeviceId d : removeDevices) {
+            data.writeInt(index.get(d));
+        }
+        data.flush();
+    }
+
+    /** @return Overlays in the plan */
+    public List<Graph<TopologyVertex, DefaultEdge>> overlays() {
+        return overlays;
+    }
+
+    /** @return Index of the spec that created each overlay */
+    public List<Integer> overlaySpecs() {
+        return overlaySpecs;
+    }
+
+    /** @return Links used by some overlay */
+    public List<LinkKey> keep() {
+        return keep;
+    }
+
+    /** @return Links between overlay devices that have to be removed */
+    public List<LinkKey> remove() {
+        return remove;
+    }
+
+    /** @return Devices whose links all have to be removed */
+    public List<DeviceId> removeDevices() {
+        return removeDevices;
+    }
+
+    /**
+     * Checks that the plan was made for a network, so that it can be applied without planning again
+     * @param vertexes  Devices in the network
+     * @param edges     Links in the network
+     * @return          True if every overlay device and link exists in the network
+     */
+    public boolean matches(Collection<TopologyVertex> vertexes, Collection<TopologyEdge> edges) {
+        Set<TopologyVertex> devices = new HashSet<>(vertexes);
+        Set<LinkKey> links = new HashSet<>();
+        for (TopologyEdge e : edges) {
+            links.add(LinkKey.linkKey(e.link()));
+        }
+        for (Graph<TopologyVertex, DefaultEdge> g : overlays) {
+            if (!devices.containsAll(g.vertexSet())) {
+                return false;
+            }
+        }
+        return links.containsAll(keep);
+    }
+
+    /** Parses a device id stored in a plan file. */
+    private static TopologyVertex vertex(JsonValue value) {
+        return new DefaultTopologyVertex(DeviceId.deviceId(value.asString()));
+    }
+
+    /** Parses links stored as pairs of connect points. */
+    private static List<LinkKey> links(JsonArray array) {
+        List<LinkKey> links = new ArrayList<>();
+        for (JsonValue value : array) {
+            JsonArray pair = value.asArray();
+            links.add(LinkKey.linkKey(ConnectPoint.deviceConnectPoint(pair.get(0).asString()),
+                    ConnectPoint.deviceConnectPoint(pair.get(1).asString())));
+        }
+        return links;
+    }
+
+    /** Reads links stored as a device index and port for each end. */
+    private static List<LinkKey> readLinks(DataInputStream data, TopologyVertex[] devices) throws IOException {
+        int count = data.readInt();
+        List<LinkKey> links = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ConnectPoint src = new ConnectPoint(devices[data.readInt()].deviceId(), PortNumber.fromString(data.readUTF()));
+            ConnectPoint dst = new ConnectPoint(devices[data.readInt()].deviceId(), PortNumber.fromString(data.readUTF()));
+            links.add(LinkKey.linkKey(src, dst));
+        }
+        return links;
+    }
+
+    /** Stores links as a device index and port for each end. */
+    private static void writeLinks(DataOutputStream data, List<LinkKey> links, Map<DeviceId, Integer> index)
+            throws IOException {
+        data.writeInt(links.size());
+        for (LinkKey k : links) {
+            data.writeInt(index.get(k.src().deviceId()));
+            data.writeUTF(k.src().port().toString());
+            data.writeInt(index.get(k.dst().deviceId()));
+            data.writeUTF(k.dst().port().toString());
+        }
+    }
+
+    /** Stores links as pairs of connect points. */
+    private static JsonArray links(List<LinkKey> links) {
+        JsonArray array = new JsonArray();
+        for (LinkKey k : links) {
+            array.add(new JsonArray().add(k.src().toString()).add(k.dst().toString()));
+        }
+        return array;
+    }
+}
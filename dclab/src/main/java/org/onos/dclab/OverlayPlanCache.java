@@ -0,0 +1,225 @@
+package org.onos.dclab;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the plans made for recent networks and configurations on disk, so that reinstalling DClab on
+ * an unchanged network applies the previous overlays without searching again. Plans are stored in
+ * gzipped binary form under a fingerprint of the network and configuration, and the least recently
+ * used ones are evicted once the cache holds more than its capacity.
+ */
+public final class OverlayPlanCache {
+    /** Extension of cached plan files, files being written use a temporary name instead. */
+    private static final String SUFFIX = ".plan";
+
+    /** Directory holding the cached plans. */
+    private final Path directory;
+
+    /** Largest number of plans kept, 0 disables the cache. */
+    private final int capacity;
+
+    /**
+     * Creates a cache, the directory is created when the first plan is stored
+     * @param directory Directory holding the cached plans
+     * @param capacity  Largest number of plans kept, 0 to disable the cache
+     */
+    public OverlayPlanCache(Path directory, int capacity) {
+        this.directory = directory;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Hashes a network and the configuration applied to it. Devices, links and spec members are
+     * sorted first, so the fingerprint doesn't depend on the order ONOS reports them in.
+     * @param vertexes      Devices in the network
+     * @param edges         Links in the network
+     * @param specs         Subgraph specifications parsed from configuration file
+     * @param weights       Ranks the links that overlays are built from
+     * @param shareSwitches True if overlays may share switches
+     * @param strategies    Number of spec orderings the planner tries, which can fit more overlays
+     * @return              Hex encoded SHA-256 of the canonical network and configuration
+     */
+    public static String fingerprint(Collection<TopologyVertex> vertexes, Collection<TopologyEdge> edges,
+                                     List<JsonObject> specs, LinkWeights weights, boolean shareSwitches,
+                                     int strategies) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        List<String> devices = new ArrayList<>();
+        for (TopologyVertex v : vertexes) {
+            devices.add(v.deviceId().toString());
+        }
+        List<String> links = new ArrayList<>();
+        for (TopologyEdge e : edges) {
+            LinkKey k = LinkKey.linkKey(e.link());
+            links.add(k.src() + "-" + k.dst() + weights.describe(e.link()));
+        }
+        update(digest, "devices", devices);
+        update(digest, "links", links);
+
+        /* Default modes add nothing, so plans cached before these modes existed stay valid */
+        if (weights.isAnnotated()) {
+            digest.update(("weights " + weights + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (shareSwitches) {
+            digest.update("shareSwitches\n".getBytes(StandardCharsets.UTF_8));
+        }
+        if (strategies > 1) {
+            digest.update(("strategies " + strategies + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /* Spec order decides which spec gets nodes first, so only members within a spec are sorted */
+        for (JsonObject spec : specs) {
+            digest.update(canonical(spec).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Looks up the plan stored for a fingerprint, marking it as recently used
+     * @param fingerprint   Fingerprint of the network and configuration
+     * @return              Cached plan, or null if there is none
+     * @throws IOException if the cached plan can't be read
+     */
+    public OverlayPlan get(String fingerprint) throws IOException {
+        if (capacity <= 0) {
+            return null;
+        }
+        Path file = directory.resolve(fingerprint + SUFFIX);
+        OverlayPlan plan;
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            plan = OverlayPlan.readBinary(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        return plan;
+    }
+
+    /**
+     * Stores the plan for a fingerprint, evicting the least recently used plans beyond the capacity
+     * @param fingerprint   Fingerprint of the network and configuration
+     * @param plan          Plan made for them
+     * @throws IOException if the plan can't be written
+     */
+    public void put(String fingerprint, OverlayPlan plan) throws IOException {
+        if (capacity <= 0) {
+            return;
+        }
+        Files.createDirectories(directory);
+
+        /* Write to a temporary file first so that a crash never leaves a partial plan under the real name */
+        Path tmp = Files.createTempFile(directory, fingerprint, ".tmp");
+        try {
+            try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                plan.writeBinary(out);
+            }
+            Files.move(tmp, directory.resolve(fingerprint + SUFFIX),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        evict();
+    }
+
+    /** Deletes the least recently used plans until at most capacity are left. */
+    private void evict() throws IOException {
+        List<Path> plans;
+        try (Stream<Path> files = Files.list(directory)) {
+            plans = files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        }
+        if (plans.size() <= capacity) {
+            return;
+        }
+        plans.sort(Comparator.comparing(OverlayPlanCache::lastModified).reversed());
+        for (Path p : plans.subList(capacity, plans.size())) {
+            Files.deleteIfExists(p);
+        }
+    }
+
+    /** Gets the time a plan was last used, treating plans deleted in the meantime as the oldest. */
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /** Adds a sorted list of strings to a digest, prefixed by its name and size. */
+    private static void update(MessageDigest digest, String name, List<String> values) {
+        values.sort(null);
+        digest.update((name + " " + values.size() + "\n").getBytes(StandardCharsets.UTF_8));
+        for (String v : values) {
+            digest.update(v.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+    }
+
+    /** Writes a JSON value with the members of every object sorted by name. */
+    private static String canonical(JsonValue value) {
+        if (value.isObject()) {
+            JsonObject object = value.asObject();
+            List<String> names = new ArrayList<>(object.names());
+            names.sort(null);
+            StringBuilder sb = new StringBuilder("{");
+            for (String name : names) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append(Json.value(name)).append(':').append(canonical(object.get(name)));
+            }
+            return sb.append('}').toString();
+        }
+        if (value.isArray()) {
+            JsonArray array = value.asArray();
+            StringBuilder sb = new StringBuilder("[");
+            for (JsonValue v : array) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append(canonical(v));
+            }
+            return sb.append(']').toString();
+        }
+        return value.toString();
+    }
+}
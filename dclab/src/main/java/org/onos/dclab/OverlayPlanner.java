@@ -0,0 +1,576 @@
+package org.onos.dclab;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import org.jgrapht.Graph;
+import org.jgrapht.graph.DefaultEdge;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultAnnotations;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.DefaultTopologyEdge;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Chooses overlays for every subgraph specification over a snapshot of the physical network. Used
+ * by DClab on the controller, and as a standalone program that writes a plan file for DClab to
+ * apply later, so that the search for large topologies doesn't have to run on the controller.
+ */
+public final class OverlayPlanner {
+    private static Logger log = LoggerFactory.getLogger(OverlayPlanner.class);
+
+    /** Identifies links read from a topology dump. */
+    private static final ProviderId DUMP_PROVIDER_ID = new ProviderId("dclab", "org.onosproject.dclab.dump");
+
+    /** Builds individual overlays. */
+    private final OverlayBuilder builder;
+
+    /** Runs alternative spec orderings concurrently, or null to only build specs in file order. */
+    private final ExecutorService strategyPool;
+
+    /** Number of spec orderings tried, including file order. */
+    private final int strategies;
+
+    /** Time the alternative orderings are given before the best complete one is taken, in ms. */
+    private final long budgetMillis;
+
+    /** Overlays built for the specs in one order, over a forest of their own. */
+    private static final class Candidate {
+        /** Order the specs were built in, for logging. */
+        private final String label;
+        private final List<Graph<TopologyVertex, DefaultEdge>> overlays = new ArrayList<>();
+        private final List<Integer> overlaySpecs = new ArrayList<>();
+
+        /** False if the time budget ran out before every spec was built. */
+        private boolean complete = true;
+
+        /** Time and work of building this ordering, only added to the run if it is picked. */
+        private final PlanStats stats;
+
+        private Candidate(String label) {
+            this.label = label;
+            this.stats = new PlanStats(label);
+        }
+    }
+
+    /**
+     * Creates a planner that builds specs in file order
+     * @param builder   Builder used for every overlay
+     */
+    public OverlayPlanner(OverlayBuilder builder) {
+        this(builder, null, 1, 0);
+    }
+
+    /**
+     * Creates a planner that also tries other spec orderings, keeping the one that fits the most overlays
+     * @param builder       Builder used for every overlay
+     * @param strategyPool  Pool that orderings are built in concurrently, its size bounds the CPU they use
+     * @param strategies    Number of orderings tried, including file order, 1 to only use file order
+     * @param budgetMillis  Time other orderings are given to finish, file order always finishes
+     */
+    public OverlayPlanner(OverlayBuilder builder, ExecutorService strategyPool, int strategies, long budgetMillis) {
+        this.builder = builder;
+        this.strategyPool = strategyPool;
+        this.strategies = strategyPool == null ? 1 : Math.max(1, strategies);
+        this.budgetMillis = budgetMillis;
+    }
+
+    /** @return Number of spec orderings tried, 1 if only file order is built */
+    public int strategies() {
+        return strategies;
+    }
+
+    /**
+     * Builds overlays for every spec that has fewer overlays than requested, keeping all current overlays
+     * @param snapshot      Snapshot of the physical network
+     * @param specs         Subgraph specifications parsed from configuration file
+     * @param overlays      Overlays being kept, new overlays are appended to it
+     * @param overlaySpecs  Index of the spec that created each overlay, updated along with overlays
+     * @param stats         Receives the time spent building each overlay type and the work done by the
+     *                      ordering that was picked, and the time spent searching
+     * @return              List of overlays that were added
+     */
+    public List<Graph<TopologyVertex, DefaultEdge>> plan(TopologySnapshot snapshot, List<JsonObject> specs,
+                                                         List<Graph<TopologyVertex, DefaultEdge>> overlays,
+                                                         List<Integer> overlaySpecs, PlanStats stats) {
+        log.info("Planning " + specs.size() + " specs over " + snapshot.vertexCount() + " switches and " +
+                snapshot.edgeCount() + " links");
+
+        /* Only specs with fewer overlays than requested are built */
+        int[] missing = new int[specs.size()];
+        List<Integer> order = new ArrayList<>();
+        for (int s = 0; s < specs.size(); s++) {
+            missing[s] = specs.get(s).getInt("count", 1000);
+        }
+        for (int s : overlaySpecs) {
+            missing[s]--;
+        }
+        for (int s = 0; s < specs.size(); s++) {
+            if (missing[s] > 0) {
+                order.add(s);
+            }
+        }
+
+        Candidate best;
+        if (strategies <= 1 || order.size() <= 1) {
+            best = build(snapshot, specs, overlays, missing, order, "file order", Long.MAX_VALUE);
+            if (!best.complete) {
+                throw new IllegalStateException("Interrupted while planning");
+            }
+        }
+        else {
+            best = search(snapshot, specs, overlays, missing, order, stats);
+        }
+        overlays.addAll(best.overlays);
+        overlaySpecs.addAll(best.overlaySpecs);
+        stats.add(best.stats);
+        stats.count("overlays", best.overlays.size());
+        return best.overlays;
+    }
+
+    /**
+     * Builds the specs in several orders at once and picks the order that fits the most overlays
+     * @param snapshot  Snapshot of the physical network
+     * @param specs     Subgraph specifications
+     * @param existing  Overlays being kept
+     * @param missing   Number of overlays each spec is missing
+     * @param order     Specs that are missing overlays, in file order
+     * @param stats     Receives the time spent searching and the number of orderings tried
+     * @return          Best complete candidate, ties going to the ordering listed first
+     */
+    private Candidate search(TopologySnapshot snapshot, List<JsonObject> specs,
+                             List<Graph<TopologyVertex, DefaultEdge>> existing, int[] missing,
+                             List<Integer> order, PlanStats stats) {
+        long start = System.nanoTime();
+        long deadline = start + budgetMillis * 1000000;
+        Map<List<Integer>, String> orders = orders(specs, order);
+
+        /* File order ignores the deadline, so that there is always a plan at least as good as without the search */
+        List<Future<Candidate>> futures = new ArrayList<>();
+        for (Map.Entry<List<Integer>, String> e : orders.entrySet()) {
+            long limit = futures.isEmpty() ? Long.MAX_VALUE : deadline;
+            futures.add(strategyPool.submit(() ->
+                    build(snapshot, specs, existing, missing, e.getKey(), e.getValue(), limit)));
+        }
+
+        Candidate best = null;
+        int bestIndex = 0;
+        int finished = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            Candidate c;
+            try {
+                c = i == 0 ? futures.get(i).get() :
+                        futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | CancellationException e) {
+                /* Ran out of time, interrupting the ordering stops its builder and frees the thread for the next plan */
+                futures.get(i).cancel(true);
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                if (best != null) {
+                    break;
+                }
+                throw new IllegalStateException("Interrupted while planning", e);
+            } catch (ExecutionException e) {
+                if (i == 0) {
+                    throw new IllegalStateException("Unable to plan overlays", e.getCause());
+                }
+                log.warn("Spec ordering " + i + " failed", e.getCause());
+                continue;
+            }
+            if (!c.complete) {
+                continue;
+            }
+            finished++;
+            if (best == null || c.overlays.size() > best.overlays.size()) {
+                best = c;
+                bestIndex = i;
+            }
+        }
+
+        if (best == null) {
+            throw new IllegalStateException("Interrupted while planning");
+        }
+        stats.addTime("strategySearch", System.nanoTime() - start);
+        stats.count("strategiesTried", futures.size());
+        stats.count("strategiesFinished", finished);
+        log.info("Picked " + best.label + " out of " + finished + " finished spec orderings, fitting " +
+                best.overlays.size() + " overlays");
+        stats.count("strategyPicked", bestIndex);
+        return best;
+    }
+
+    /**
+     * Lists distinct spec orderings worth trying: file order, reversed, largest and smallest overlays
+     * first, then random shuffles
+     * @param specs Subgraph specifications
+     * @param order Specs that are missing overlays, in file order
+     * @return      Orderings mapped to a label, file order first
+     */
+    private Map<List<Integer>, String> orders(List<JsonObject> specs, List<Integer> order) {
+        Map<List<Integer>, String> orders = new LinkedHashMap<>();
+        orders.put(order, "file order");
+
+        List<Integer> reversed = new ArrayList<>(order);
+        Collections.reverse(reversed);
+        orders.putIfAbsent(reversed, "reversed order");
+
+        /* Sorting is stable, so specs of equal size keep their file order */
+        List<Integer> largest = new ArrayList<>(order);
+        largest.sort(Comparator.comparingInt((Integer s) -> overlaySize(specs.get(s))).reversed());
+        orders.putIfAbsent(largest, "largest first");
+        List<Integer> smallest = new ArrayList<>(order);
+        smallest.sort(Comparator.comparingInt(s -> overlaySize(specs.get(s))));
+        orders.putIfAbsent(smallest, "smallest first");
+
+        /* Seeded, so that the same specs are always tried in the same orders */
+        Random random = new Random(order.hashCode());
+        for (int attempt = 0; orders.size() < strategies && attempt < strategies * 4; attempt++) {
+            List<Integer> shuffled = new ArrayList<>(order);
+            Collections.shuffle(shuffled, random);
+            orders.putIfAbsent(shuffled, "shuffle " + attempt);
+        }
+
+        /* Keep the first orderings if there are more than requested */
+        Map<List<Integer>, String> limited = new LinkedHashMap<>();
+        for (Map.Entry<List<Integer>, String> e : orders.entrySet()) {
+            if (limited.size() == strategies) {
+                break;
+            }
+            limited.put(e.getKey(), e.getValue());
+        }
+        return limited;
+    }
+
+    /**
+     * Estimates the number of switches in a single overlay of a spec
+     * @param spec  Subgraph specification
+     * @return      Switches used by each overlay
+     */
+    private static int overlaySize(JsonObject spec) {
+        switch (spec.get("type").asString()) {
+            case "linear":
+                return spec.getInt("length", 3);
+            case "star":
+                return spec.getInt("points", 3) + 1;
+            case "tree":
+                int size = 1;
+                int level = 1;
+                for (int d = 0; d < spec.getInt("depth", 3); d++) {
+                    level *= spec.getInt("fanout", 2);
+                    size += level;
+                }
+                return size;
+            case "clos":
+                return spec.getInt("spines", 2) + spec.getInt("leaves", 4);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Builds the specs one after another over a forest of their own, each taking nodes the earlier ones left
+     * @param snapshot  Snapshot of the physical network
+     * @param specs     Subgraph specifications
+     * @param existing  Overlays being kept, whose nodes can't be used
+     * @param missing   Number of overlays each spec is missing
+     * @param order     Specs to build, in order
+     * @param label     Name of the ordering, for logging
+     * @param deadline  System.nanoTime after which no further spec is started
+     * @return          Overlays that were built, incomplete if the deadline passed or the thread was interrupted
+     */
+    private Candidate build(TopologySnapshot snapshot, List<JsonObject> specs,
+                            List<Graph<TopologyVertex, DefaultEdge>> existing, int[] missing,
+                            List<Integer> order, String label, long deadline) {
+        /* Builder counters are per thread, and each ordering is built on a single thread */
+        Candidate candidate = new Candidate(label);
+        PlanStats stats = candidate.stats;
+        long merges = builder.mergeIterations();
+        long trims = builder.trimNanos();
+
+        /* Distances are kept up to date as overlays remove nodes and edges from graph */
+        long start = System.nanoTime();
+        MaskedGraph graph = snapshot.forest();
+        HopDistanceOracle oracle = new HopDistanceOracle(graph);
+
+        /* Nodes in overlays that are being kept can't be used by new ones, only their links if switches are shared */
+        Set<Integer> claimed = new HashSet<>();
+        for (Graph<TopologyVertex, DefaultEdge> g : existing) {
+            for (DefaultEdge e : g.edgeSet()) {
+                graph.removeEdge(snapshot.indexOf(g.getEdgeSource(e)), snapshot.indexOf(g.getEdgeTarget(e)));
+            }
+            for (TopologyVertex v : g.vertexSet()) {
+                claimed.add(snapshot.indexOf(v));
+                if (!builder.sharesSwitches()) {
+                    graph.removeVertex(snapshot.indexOf(v));
+                }
+            }
+        }
+        stats.addTime("forest", System.nanoTime() - start);
+
+        for (int s : order) {
+            if (System.nanoTime() > deadline || Thread.currentThread().isInterrupted()) {
+                candidate.complete = false;
+                break;
+            }
+            JsonObject spec = specs.get(s);
+            String type = spec.get("type").asString();
+            long built = System.nanoTime();
+            List<Graph<Integer, DefaultEdge>> topos = builder.createTopos(spec, snapshot, graphFor(type, graph, claimed),
+                    oracle, missing[s]);
+            built = System.nanoTime() - built;
+            if (Thread.currentThread().isInterrupted()) {
+                /* The builder stopped early, so the overlays of this spec are not all it could fit */
+                candidate.complete = false;
+                break;
+            }
+            stats.addTime("build." + type, built);
+            List<Graph<TopologyVertex, DefaultEdge>> mapped = snapshot.toTopologyGraphs(topos);
+            log.info(String.format("Spec %d (%s, %s): built %d of %d missing overlays in %.1f ms",
+                    s, type, label, mapped.size(), missing[s], built / 1e6));
+            for (Graph<TopologyVertex, DefaultEdge> t : mapped) {
+                candidate.overlays.add(t);
+                candidate.overlaySpecs.add(s);
+            }
+
+            /* Remove used nodes from graph so that they aren't used in another subgraph */
+            stats.time("removeSubTopology", () -> builder.removeSubTopology(graph, topos));
+            for (Graph<Integer, DefaultEdge> t : topos) {
+                claimed.addAll(t.vertexSet());
+            }
+        }
+        stats.count("pathQueries", oracle.pathQueries());
+        stats.count("searches", oracle.searches());
+
+        /* Trimming happens inside star and tree builds, so its time is also part of theirs */
+        stats.addTime("trimEdges", builder.trimNanos() - trims);
+        stats.count("mergeIterations", builder.mergeIterations() - merges);
+        return candidate;
+    }
+
+    /**
+     * Chooses the graph that a spec is built from. Clos overlays use physical links outside of graph,
+     * which other overlays on the same switches may already use, so when switches are shared they
+     * are only built from switches that no overlay holds yet.
+     * @param type      Type of the spec
+     * @param graph     Graph that overlays are being built from
+     * @param claimed   Ids of switches held by an overlay
+     * @return          Graph passed to the builder
+     */
+    private Graph<Integer, DefaultEdge> graphFor(String type, MaskedGraph graph, Set<Integer> claimed) {
+        if (!builder.sharesSwitches() || !type.equals("clos")) {
+            return graph;
+        }
+        MaskedGraph free = graph.copy();
+        for (int v : claimed) {
+            free.removeVertex(v);
+        }
+        return free;
+    }
+
+    /**
+     * Parses subgraph specifications in the format of test_config.json
+     * @param reader    Source of the configuration file
+     * @return          List of specifications, in the order they are built
+     * @throws IOException if the file can't be read
+     */
+    public static List<JsonObject> readSpecs(Reader reader) throws IOException {
+        List<JsonObject> specs = new ArrayList<>();
+        for (JsonValue obj : Json.parse(reader).asArray()) {
+            specs.add(obj.asObject());
+        }
+        return specs;
+    }
+
+    /**
+     * Checks that specifications can be planned before they replace the current ones
+     * @param specs Subgraph specifications
+     * @throws IllegalArgumentException if a spec has no type, an unknown type or a negative count
+     */
+    public static void checkSpecs(List<JsonObject> specs) {
+        for (int s = 0; s < specs.size(); s++) {
+            JsonValue type = specs.get(s).get("type");
+            if (type == null || !type.isString() || !OverlayBuilder.TYPES.contains(type.asString())) {
+                throw new IllegalArgumentException("Spec " + s + " has type " + type + ", expected one of " +
+                        OverlayBuilder.TYPES);
+            }
+            JsonValue count = specs.get(s).get("count");
+            if (count != null && (!count.isNumber() || count.asInt() < 0)) {
+                throw new IllegalArgumentException("Spec " + s + " has invalid count " + count);
+            }
+        }
+    }
+
+    /**
+     * Parses a topology dump, which holds the devices and links arrays returned by the ONOS REST API
+     * @param reader    Source of the dump
+     * @param vertexes  Filled with the devices in the dump
+     * @param edges     Filled with the links in the dump
+     * @throws IOException if the dump can't be read
+     */
+    public static void readTopology(Reader reader, Set<TopologyVertex> vertexes, List<TopologyEdge> edges)
+            throws IOException {
+        JsonObject dump = Json.parse(reader).asObject();
+        for (JsonValue d : dump.get("devices").asArray()) {
+            if (d.asObject().getBoolean("available", true)) {
+                vertexes.add(new DefaultTopologyVertex(DeviceId.deviceId(d.asObject().get("id").asString())));
+            }
+        }
+        for (JsonValue l : dump.get("links").asArray()) {
+            JsonObject link = l.asObject();
+            ConnectPoint src = connectPoint(link.get("src").asObject());
+            ConnectPoint dst = connectPoint(link.get("dst").asObject());
+            Link onosLink = DefaultLink.builder()
+                    .providerId(DUMP_PROVIDER_ID)
+                    .src(src)
+                    .dst(dst)
+                    .type(Link.Type.valueOf(link.getString("type", "DIRECT")))
+                    .state(Link.State.ACTIVE)
+                    .annotations(annotations(link.get("annotations")))
+                    .build();
+            edges.add(new DefaultTopologyEdge(new DefaultTopologyVertex(src.deviceId()),
+                    new DefaultTopologyVertex(dst.deviceId()), onosLink));
+        }
+    }
+
+    /**
+     * Writes a topology dump that readTopology reads back, with every device available
+     * @param writer    Destination of the dump
+     * @param vertexes  Devices in the topology
+     * @param edges     Links in the topology
+     * @throws IOException if the dump can't be written
+     */
+    public static void writeTopology(Writer writer, Collection<TopologyVertex> vertexes, Collection<TopologyEdge> edges)
+            throws IOException {
+        JsonArray devices = new JsonArray();
+        for (TopologyVertex v : vertexes) {
+            devices.add(new JsonObject().add("id", v.deviceId().toString()));
+        }
+        JsonArray links = new JsonArray();
+        for (TopologyEdge e : edges) {
+            Link link = e.link();
+            JsonObject annotations = new JsonObject();
+            for (String key : link.annotations().keys()) {
+                annotations.add(key, link.annotations().value(key));
+            }
+            links.add(new JsonObject()
+                    .add("src", connectPoint(link.src()))
+                    .add("dst", connectPoint(link.dst()))
+                    .add("type", link.type().name())
+                    .add("annotations", annotations));
+        }
+        new JsonObject().add("devices", devices).add("links", links).writeTo(writer);
+    }
+
+    /**
+     * Plans overlays offline and writes them to a plan file that DClab can apply directly
+     * @param args  Topology dump, configuration file and plan file paths
+     * @throws IOException if any of the files can't be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: OverlayPlanner <topology.json> <test_config.json> <plan.json>");
+            System.exit(2);
+        }
+
+        Set<TopologyVertex> vertexes = new LinkedHashSet<>();
+        List<TopologyEdge> edges = new ArrayList<>();
+        try (Reader reader = new BufferedReader(new FileReader(args[0]))) {
+            readTopology(reader, vertexes, edges);
+        }
+        List<JsonObject> specs;
+        try (Reader reader = new BufferedReader(new FileReader(args[1]))) {
+            specs = readSpecs(reader);
+        }
+
+        long start = System.nanoTime();
+        PlanStats stats = new PlanStats("offline plan");
+        TopologySnapshot snapshot = stats.time("snapshot", () ->
+                TopologySnapshot.build(vertexes, edges, Boolean.getBoolean("dclab.offHeapSnapshot"),
+                        LinkWeights.fromProperties()));
+        List<Graph<TopologyVertex, DefaultEdge>> overlays = new ArrayList<>();
+        List<Integer> overlaySpecs = new ArrayList<>();
+        int strategies = Integer.getInteger("dclab.strategies", 1);
+        ExecutorService strategyPool = strategies > 1 ? Executors.newFixedThreadPool(
+                Integer.getInteger("dclab.strategyThreads", Runtime.getRuntime().availableProcessors())) : null;
+        try {
+            OverlayBuilder builder = new OverlayBuilder(ForkJoinPool.commonPool(), Boolean.getBoolean("dclab.shareSwitches"));
+            new OverlayPlanner(builder, strategyPool, strategies,
+                    Long.getLong("dclab.strategyBudget", 10000)).plan(snapshot, specs, overlays, overlaySpecs, stats);
+        } finally {
+            if (strategyPool != null) {
+                strategyPool.shutdownNow();
+            }
+        }
+        OverlayPlan plan = stats.time("planLinks", () -> OverlayPlan.of(overlays, overlaySpecs, vertexes, edges));
+        stats.finish();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        try (Writer writer = new BufferedWriter(new FileWriter(args[2]))) {
+            plan.write(writer);
+        }
+        System.out.println("Planned " + overlays.size() + " overlays over " + vertexes.size() + " devices in " +
+                elapsed + " ms, keeping " + plan.keep().size() + " links, removing " + plan.remove().size() +
+                " links and all links of " + plan.removeDevices().size() + " devices");
+        System.out.println(stats.summary());
+    }
+
+    /** Parses the annotations of a link in the form used by the ONOS REST API, which may be missing. */
+    private static DefaultAnnotations annotations(JsonValue json) {
+        DefaultAnnotations.Builder builder = DefaultAnnotations.builder();
+        if (json != null && json.isObject()) {
+            for (JsonObject.Member m : json.asObject()) {
+                builder.set(m.getName(), m.getValue().isString() ? m.getValue().asString() : m.getValue().toString());
+            }
+        }
+        return builder.build();
+    }
+
+    /** Converts a connect point to the form used by the ONOS REST API. */
+    private static JsonObject connectPoint(ConnectPoint point) {
+        return new JsonObject().add("device", point.deviceId().toString()).add("port", point.port().toString());
+    }
+
+    /** Parses a connect point in the form used by the ONOS REST API. */
+    private static ConnectPoint connectPoint(JsonObject json) {
+        return new ConnectPoint(DeviceId.deviceId(json.get("device").asString()),
+                PortNumber.fromString(json.get("port").asString()));
+    }
+}
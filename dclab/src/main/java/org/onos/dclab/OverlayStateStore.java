@@ -0,0 +1,189 @@
+package org.onos.dclab;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import org.onosproject.net.Link;
+import org.onosproject.net.topology.DefaultTopologyEdge;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+import org.onosproject.store.service.ConsistentMap;
+import org.onosproject.store.service.MapEventListener;
+import org.onosproject.store.service.Serializer;
+import org.onosproject.store.service.StorageService;
+import org.onosproject.store.service.Versioned;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Shares the overlays applied by the cluster leader with the other ONOS instances. The leader
+ * publishes its specs, its plan, the physical network it planned over and the links it removed as a
+ * single entry of a consistent map, so that every instance sees them change at once. Other instances
+ * only read the entry, and the instance that becomes leader next continues from it instead of
+ * planning again, restoring the removed links itself since ONOS no longer reports them.
+ */
+public final class OverlayStateStore {
+    /** Name of the consistent map, shared by every instance running DClab. */
+    private static final String MAP_NAME = "onos-dclab-overlays";
+
+    /** Key of the single entry holding the state. */
+    private static final String KEY = "state";
+
+    /** Consistent map holding the state as JSON. */
+    private final ConsistentMap<String, String> map;
+
+    /** State read from the store, the physical network is the one the plan was made for. */
+    public static final class State {
+        private final List<JsonObject> specs;
+        private final OverlayPlan plan;
+        private final Set<TopologyVertex> vertexes;
+        private final List<TopologyEdge> edges;
+        private final List<Link> removedLinks;
+
+        private State(List<JsonObject> specs, OverlayPlan plan, Set<TopologyVertex> vertexes,
+                      List<TopologyEdge> edges, List<Link> removedLinks) {
+            this.specs = specs;
+            this.plan = plan;
+            this.vertexes = vertexes;
+            this.edges = edges;
+            this.removedLinks = removedLinks;
+        }
+
+        /** @return Subgraph specifications that the overlays were planned for */
+        public List<JsonObject> specs() {
+            return specs;
+        }
+
+        /** @return Plan applied by the leader */
+        public OverlayPlan plan() {
+            return plan;
+        }
+
+        /** @return Devices in the physical network, including ones whose links have been removed */
+        public Set<TopologyVertex> vertexes() {
+            return vertexes;
+        }
+
+        /** @return Links in the physical network, including ones that have been removed */
+        public List<TopologyEdge> edges() {
+            return edges;
+        }
+
+        /** @return Links removed by the leader and not restored since */
+        public List<Link> removedLinks() {
+            return removedLinks;
+        }
+    }
+
+    /**
+     * Opens the consistent map, creating it if no instance has yet
+     * @param storageService    Service providing the distributed primitives of the cluster
+     */
+    public OverlayStateStore(StorageService storageService) {
+        this.map = storageService.<String, String>consistentMapBuilder()
+                .withName(MAP_NAME)
+                .withSerializer(Serializer.forTypes(String.class))
+                .build();
+    }
+
+    /**
+     * Replaces the stored state, which notifies every instance listening to the store
+     * @param specs     Subgraph specifications that the overlays were planned for
+     * @param plan      Plan that was applied
+     * @param vertexes  Devices in the physical network
+     * @param edges     Links in the physical network
+     * @param removed   Links removed by the leader and not restored since
+     */
+    public void publish(List<JsonObject> specs, OverlayPlan plan, Collection<TopologyVertex> vertexes,
+                        Collection<TopologyEdge> edges, Collection<Link> removed) {
+        JsonArray specArray = new JsonArray();
+        for (JsonObject spec : specs) {
+            specArray.add(spec);
+        }
+        /* Removed links are written as a dump without devices, in the same form as the network */
+        List<TopologyEdge> removedEdges = new ArrayList<>();
+        for (Link l : removed) {
+            removedEdges.add(new DefaultTopologyEdge(new DefaultTopologyVertex(l.src().deviceId()),
+                    new DefaultTopologyVertex(l.dst().deviceId()), l));
+        }
+        StringWriter network = new StringWriter();
+        StringWriter removedLinks = new StringWriter();
+        try {
+            OverlayPlanner.writeTopology(network, vertexes, edges);
+            OverlayPlanner.writeTopology(removedLinks, Collections.emptyList(), removedEdges);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write network", e);
+        }
+        JsonObject state = new JsonObject()
+                .add("specs", specArray)
+                .add("plan", plan.toJson())
+                .add("network", Json.parse(network.toString()))
+                .add("removed", Json.parse(removedLinks.toString()));
+        map.put(KEY, state.toString());
+    }
+
+    /**
+     * Reads the stored state
+     * @return  State published last, or null if there is none
+     * @throws IllegalStateException if the stored state can't be parsed
+     */
+    public State read() {
+        Versioned<String> value = map.get(KEY);
+        if (value == null) {
+            return null;
+        }
+        try {
+            JsonObject state = Json.parse(value.value()).asObject();
+            List<JsonObject> specs = new ArrayList<>();
+            for (JsonValue spec : state.get("specs").asArray()) {
+                specs.add(spec.asObject());
+            }
+            OverlayPlan plan = OverlayPlan.read(new StringReader(state.get("plan").toString()));
+            Set<TopologyVertex> vertexes = new LinkedHashSet<>();
+            List<TopologyEdge> edges = new ArrayList<>();
+            OverlayPlanner.readTopology(new StringReader(state.get("network").toString()), vertexes, edges);
+            List<TopologyEdge> removedEdges = new ArrayList<>();
+            OverlayPlanner.readTopology(new StringReader(state.get("removed").toString()), new HashSet<>(),
+                    removedEdges);
+            List<Link> removed = new ArrayList<>();
+            for (TopologyEdge e : removedEdges) {
+                removed.add(e.link());
+            }
+            return new State(specs, plan, vertexes, edges, removed);
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Unable to read stored overlays", e);
+        }
+    }
+
+    /** Removes the stored state, so that the next leader plans from scratch. */
+    public void clear() {
+        map.remove(KEY);
+    }
+
+    /**
+     * Gets notified whenever the stored state changes
+     * @param listener  Listener called on a thread of the store
+     */
+    public void addListener(MapEventListener<String, String> listener) {
+        map.addListener(listener);
+    }
+
+    /**
+     * Stops notifying a listener
+     * @param listener  Listener added earlier
+     */
+    public void removeListener(MapEventListener<String, String> listener) {
+        map.removeListener(listener);
+    }
+}
@@ -0,0 +1,181 @@
+package org.onos.dclab;
+
+import com.eclipsesource.json.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Time spent in each phase of a single planning run and counters of the work done in it. Phases and
+ * counters are kept in the order they were first recorded, so that runs read like a timeline.
+ */
+public final class PlanStats {
+    /** What started the run, such as activation, a configuration reload or a job. */
+    private final String trigger;
+
+    /** Time the run started, in ms since the epoch. */
+    private final long started;
+
+    /** Total time of the run, in ns, or -1 while it is still running. */
+    private long total = -1;
+    private final long startNanos;
+
+    /** Accumulated ns and number of calls for each phase. */
+    private final Map<String, long[]> phases = new LinkedHashMap<>();
+
+    /** Value of each counter. */
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+
+    /**
+     * Starts recording a run
+     * @param trigger   What started the run
+     */
+    public PlanStats(String trigger) {
+        this.trigger = trigger;
+        this.started = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Runs work and adds the time it took to a phase
+     * @param phase Name of the phase
+     * @param work  Work done in the phase
+     * @param <T>   Type of result
+     * @return      Result of work
+     */
+    public <T> T time(String phase, Supplier<T> work) {
+        long start = System.nanoTime();
+        try {
+            return work.get();
+        } finally {
+            addTime(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Runs work and adds the time it took to a phase
+     * @param phase Name of the phase
+     * @param work  Work done in the phase
+     */
+    public void time(String phase, Runnable work) {
+        long start = System.nanoTime();
+        try {
+            work.run();
+        } finally {
+            addTime(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds time measured elsewhere to a phase
+     * @param phase Name of the phase
+     * @param nanos Time spent, in ns
+     */
+    public synchronized void addTime(String phase, long nanos) {
+        long[] entry = phases.computeIfAbsent(phase, k -> new long[2]);
+        entry[0] += nanos;
+        entry[1]++;
+    }
+
+    /**
+     * Adds to a counter
+     * @param counter   Name of the counter
+     * @param amount    Amount to add
+     */
+    public synchronized void count(String counter, long amount) {
+        counters.merge(counter, amount, Long::sum);
+    }
+
+    /**
+     * Adds the phases and counters of work recorded apart from this run, such as the spec ordering
+     * that a run picked out of several built concurrently
+     * @param other Stats of the work, left unchanged
+     */
+    public void add(PlanStats other) {
+        Map<String, long[]> otherPhases = new LinkedHashMap<>();
+        Map<String, Long> otherCounters;
+        synchronized (other) {
+            other.phases.forEach((phase, entry) -> otherPhases.put(phase, entry.clone()));
+            otherCounters = new LinkedHashMap<>(other.counters);
+        }
+        synchronized (this) {
+            otherPhases.forEach((phase, entry) -> {
+                long[] sum = phases.computeIfAbsent(phase, k -> new long[2]);
+                sum[0] += entry[0];
+                sum[1] += entry[1];
+            });
+            otherCounters.forEach((counter, amount) -> counters.merge(counter, amount, Long::sum));
+        }
+    }
+
+    /** Marks the run as finished, fixing its total time. */
+    public synchronized void finish() {
+        total = System.nanoTime() - startNanos;
+    }
+
+    /** @return What started the run */
+    public String trigger() {
+        return trigger;
+    }
+
+    /**
+     * Gets the time spent in a phase
+     * @param phase Name of the phase
+     * @return      Accumulated time in ns, 0 if the phase never ran
+     */
+    public synchronized long nanos(String phase) {
+        long[] entry = phases.get(phase);
+        return entry == null ? 0 : entry[0];
+    }
+
+    /**
+     * Gets the value of a counter
+     * @param counter   Name of the counter
+     * @return          Value of the counter, 0 if nothing was counted
+     */
+    public synchronized long counter(String counter) {
+        return counters.getOrDefault(counter, 0L);
+    }
+
+    /**
+     * Converts the run to JSON for the REST API and CLI, with times in ms
+     * @return  JSON form of the run
+     */
+    public synchronized JsonObject toJson() {
+        JsonObject phaseJson = new JsonObject();
+        for (Map.Entry<String, long[]> e : phases.entrySet()) {
+            phaseJson.add(e.getKey(), new JsonObject()
+                    .add("ms", e.getValue()[0] / 1e6)
+                    .add("calls", e.getValue()[1]));
+        }
+        JsonObject counterJson = new JsonObject();
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            counterJson.add(e.getKey(), e.getValue());
+        }
+        return new JsonObject()
+                .add("trigger", trigger)
+                .add("started", started)
+                .add("totalMs", total < 0 ? -1 : total / 1e6)
+                .add("phases", phaseJson)
+                .add("counters", counterJson);
+    }
+
+    /**
+     * Summarizes the run on one line, with a bounded length however large the network is
+     * @return  Phase times in ms followed by counters
+     */
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder(trigger);
+        if (total >= 0) {
+            sb.append(String.format(" took %.1f ms", total / 1e6));
+        }
+        for (Map.Entry<String, long[]> e : phases.entrySet()) {
+            sb.append(String.format(", %s %.1f ms", e.getKey(), e.getValue()[0] / 1e6));
+        }
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            sb.append(", ").append(e.getKey()).append(' ').append(e.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package org.onos.dclab;
+
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits for the network topology to converge before overlays are planned. The topology counts as
+ * ready once the expected number of devices and links is seen, or once no device or topology
+ * event has arrived for a quiet period, whichever comes first, and never later than a timeout.
+ */
+public final class TopologyReadinessGate {
+    private static Logger log = LoggerFactory.getLogger(TopologyReadinessGate.class);
+
+    private final TopologyService topologyService;
+    private final DeviceService deviceService;
+
+    /** Time without events after which the topology is considered stable, in milliseconds. */
+    private final long quietMillis;
+
+    /** Device and link counts that make the topology ready immediately, 0 to only rely on the quiet period. */
+    private final int expectedDevices;
+    private final int expectedLinks;
+
+    /** Longest time to wait for the topology, in milliseconds. */
+    private final long timeoutMillis;
+
+    /** Guards lastChange, and is notified whenever an event arrives. */
+    private final Object lock = new Object();
+    private long lastChange;
+
+    private final TopologyListener topologyListener = event -> changed();
+    private final DeviceListener deviceListener = event -> changed();
+
+    /**
+     * Creates a gate for the topology reported by ONOS
+     * @param topologyService   Service reporting topology changes
+     * @param deviceService     Service reporting device changes
+     * @param quietMillis       Time without events after which the topology is stable
+     * @param expectedDevices   Number of available devices that makes the topology ready, or 0
+     * @param expectedLinks     Number of links that makes the topology ready, or 0
+     * @param timeoutMillis     Longest time to wait
+     */
+    public TopologyReadinessGate(TopologyService topologyService, DeviceService deviceService, long quietMillis,
+                                 int expectedDevices, int expectedLinks, long timeoutMillis) {
+        this.topologyService = topologyService;
+        this.deviceService = deviceService;
+        this.quietMillis = quietMillis;
+        this.expectedDevices = expectedDevices;
+        this.expectedLinks = expectedLinks;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Blocks until the topology is ready or the timeout expires
+     * @return  True if the topology became ready, false if the timeout expired first
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public boolean await() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutMillis;
+        synchronized (lock) {
+            lastChange = start;
+        }
+        topologyService.addListener(topologyListener);
+        deviceService.addListener(deviceListener);
+        try {
+            synchronized (lock) {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (expected()) {
+                        log.info("Topology reached expected size after " + (now - start) + " ms");
+                        return true;
+                    }
+                    if (now - lastChange >= quietMillis) {
+                        log.info("Topology stable for " + quietMillis + " ms after " + (now - start) + " ms");
+                        return true;
+                    }
+                    if (now >= deadline) {
+                        log.warn("Topology still changing after " + timeoutMillis + " ms, continuing anyway");
+                        return false;
+                    }
+                    lock.wait(Math.max(1, Math.min(lastChange + quietMillis, deadline) - now));
+                }
+            }
+        } finally {
+            deviceService.removeListener(deviceListener);
+            topologyService.removeListener(topologyListener);
+        }
+    }
+
+    /** Checks if the expected device and link counts have been reached, if any were given. */
+    private boolean expected() {
+        if (expectedDevices <= 0 && expectedLinks <= 0) {
+            return false;
+        }
+        Topology topology = topologyService.currentTopology();
+        return deviceService.getAvailableDeviceCount() >= expectedDevices && topology.linkCount() >= expectedLinks;
+    }
+
+    /** Restarts the quiet period and wakes the waiting thread so that it can check the counts again. */
+    private void changed() {
+        synchronized (lock) {
+            lastChange = System.currentTimeMillis();
+            lock.notifyAll();
+        }
+    }
+}
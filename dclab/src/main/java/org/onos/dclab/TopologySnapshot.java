@@ -0,0 +1,332 @@
+package org.onos.dclab;
+
+import org.jgrapht.Graph;
+import org.jgrapht.graph.DefaultEdge;
+import org.jgrapht.graph.SimpleGraph;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable compressed sparse row copy of an ONOS topology graph. Every device is given an
+ * integer id in the order it was listed by the topology, and links in either direction between
+ * the same pair of devices are stored once as an undirected edge.
+ */
+public final class TopologySnapshot {
+    /** Marks an unused slot in the edge hash table. */
+    private static final long EMPTY = -1L;
+
+    /** Maps each integer id back to its device. */
+    private final TopologyVertex[] vertices;
+
+    /** Maps each device to its integer id. */
+    private final Map<TopologyVertex, Integer> index;
+
+    /** First link seen for each undirected edge, indexed by edge id. */
+    private final TopologyEdge[] links;
+
+    /** Endpoint ids of each edge, in the direction the link was first seen. */
+    private final int[] edgeSrc;
+    private final int[] edgeDst;
+
+    /** Neighbors of vertex v are stored in targets between offsets[v] and offsets[v + 1]. */
+    private final IntBuffer offsets;
+    private final IntBuffer targets;
+
+    /** Edge id for each entry in targets. */
+    private final IntBuffer edgeIds;
+
+    /** Open addressing table from an ordered vertex pair to its edge id. */
+    private final long[] keys;
+    private final int[] values;
+
+    /** Spanning forest of the topology, formed by links that don't close a cycle in the order they rank in. */
+    private final int[] forestEdges;
+
+    /** View of the spanning forest that forest() hands out copies of, created on first use. */
+    private MaskedGraph forest;
+
+    private TopologySnapshot(TopologyVertex[] vertices, Map<TopologyVertex, Integer> index, TopologyEdge[] links,
+                             int[] src, int[] dst, long[] keys, int[] values, int[] forestEdges, boolean offHeap) {
+        this.vertices = vertices;
+        this.index = index;
+        this.links = links;
+        this.edgeSrc = src;
+        this.edgeDst = dst;
+        this.keys = keys;
+        this.values = values;
+        this.forestEdges = forestEdges;
+
+        /* Count degrees, then place both directions of each edge into its CSR slot */
+        int[] start = new int[vertices.length + 1];
+        for (int e = 0; e < links.length; e++) {
+            start[src[e] + 1]++;
+            start[dst[e] + 1]++;
+        }
+        for (int v = 0; v < vertices.length; v++) {
+            start[v + 1] += start[v];
+        }
+        this.offsets = allocate(start.length, offHeap);
+        this.targets = allocate(links.length * 2, offHeap);
+        this.edgeIds = allocate(links.length * 2, offHeap);
+        offsets.put(start);
+        int[] fill = Arrays.copyOf(start, vertices.length);
+        for (int e = 0; e < links.length; e++) {
+            targets.put(fill[src[e]], dst[e]);
+            edgeIds.put(fill[src[e]]++, e);
+            targets.put(fill[dst[e]], src[e]);
+            edgeIds.put(fill[dst[e]]++, e);
+        }
+    }
+
+    /**
+     * Builds a snapshot in a single pass over the vertices and edges of an ONOS topology graph
+     * @param graph     Topology graph being copied
+     * @param offHeap   True if the adjacency arrays should be stored in direct buffers outside the heap
+     * @return          Snapshot of graph
+     */
+    public static TopologySnapshot build(TopologyGraph graph, boolean offHeap) {
+        return build(graph.getVertexes(), graph.getEdges(), offHeap, LinkWeights.HOPS);
+    }
+
+    /**
+     * Builds a snapshot in a single pass over a set of devices and the links between them
+     * @param vertexes  Devices in the topology, links to any other device are ignored
+     * @param edges     Links between the devices
+     * @param offHeap   True if the adjacency arrays should be stored in direct buffers outside the heap
+     * @param weights   Ranks the links that the spanning forest is made of
+     * @return          Snapshot of the topology
+     */
+    public static TopologySnapshot build(Collection<TopologyVertex> vertexes, Collection<TopologyEdge> edges,
+                                         boolean offHeap, LinkWeights weights) {
+        TopologyVertex[] vertices = vertexes.toArray(new TopologyVertex[0]);
+        Map<TopologyVertex, Integer> index = new HashMap<>();
+        for (int i = 0; i < vertices.length; i++) {
+            index.put(vertices[i], i);
+        }
+
+        int maxEdges = edges.size();
+        int capacity = Integer.highestOneBit(Math.max(maxEdges, 1) * 2) * 2;
+        long[] keys = new long[capacity];
+        int[] values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+
+        TopologyEdge[] links = new TopologyEdge[maxEdges];
+        int[] src = new int[maxEdges];
+        int[] dst = new int[maxEdges];
+        int[] forest = new int[Math.max(vertices.length - 1, 0)];
+        int[] parent = new int[vertices.length];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        int edgeCount = 0;
+        int forestCount = 0;
+
+        for (TopologyEdge e : edges) {
+            Integer v = index.get(e.src());
+            Integer u = index.get(e.dst());
+            if (v == null || u == null || v.equals(u)) {
+                continue;
+            }
+
+            /* Links in both directions map to the same key, so duplicates are dropped in O(1) */
+            long key = key(v, u);
+            int slot = slot(keys, key);
+            if (keys[slot] != EMPTY) {
+                continue;
+            }
+            keys[slot] = key;
+            values[slot] = edgeCount;
+            links[edgeCount] = e;
+            src[edgeCount] = v;
+            dst[edgeCount] = u;
+            edgeCount++;
+        }
+        links = Arrays.copyOf(links, edgeCount);
+
+        /* Keep edges that join two separate trees, which is what the overlay builders expect */
+        for (int e : weights.rank(links)) {
+            int rootV = find(parent, src[e]);
+            int rootU = find(parent, dst[e]);
+            if (rootV != rootU) {
+                parent[rootV] = rootU;
+                forest[forestCount++] = e;
+            }
+        }
+
+        return new TopologySnapshot(vertices, index, links,
+                Arrays.copyOf(src, edgeCount), Arrays.copyOf(dst, edgeCount), keys, values,
+                Arrays.copyOf(forest, forestCount), offHeap);
+    }
+
+    /**
+     * Creates a graph over vertex ids containing the spanning forest of the snapshot, which nodes and
+     * edges can be removed from. Every graph returned shares a single copy of the forest.
+     * @return  Graph whose vertices are the ids of every device in the snapshot
+     */
+    public MaskedGraph forest() {
+        synchronized (this) {
+            if (forest == null) {
+                Graph<Integer, DefaultEdge> graph = new SimpleGraph<>(DefaultEdge.class);
+                for (int v = 0; v < vertices.length; v++) {
+                    graph.addVertex(v);
+                }
+                for (int e : forestEdges) {
+                    graph.addEdge(edgeSource(e), edgeTarget(e));
+                }
+                forest = new MaskedGraph(graph);
+            }
+        }
+        return forest.copy();
+    }
+
+    /**
+     * Maps overlays built over vertex ids back to the devices they represent
+     * @param topos Overlays whose vertices are ids in this snapshot
+     * @return      Overlays with the same structure whose vertices are topology vertices
+     */
+    public List<Graph<TopologyVertex, DefaultEdge>> toTopologyGraphs(List<Graph<Integer, DefaultEdge>> topos) {
+        List<Graph<TopologyVertex, DefaultEdge>> result = new ArrayList<>();
+        for (Graph<Integer, DefaultEdge> t : topos) {
+            Graph<TopologyVertex, DefaultEdge> g = new SimpleGraph<>(DefaultEdge.class);
+            for (int v : t.vertexSet()) {
+                g.addVertex(vertices[v]);
+            }
+            for (DefaultEdge e : t.edgeSet()) {
+                g.addEdge(vertices[t.getEdgeSource(e)], vertices[t.getEdgeTarget(e)]);
+            }
+            result.add(g);
+        }
+        return result;
+    }
+
+    /** @return Number of devices in the snapshot */
+    public int vertexCount() {
+        return vertices.length;
+    }
+
+    /** @return Number of undirected edges in the snapshot */
+    public int edgeCount() {
+        return links.length;
+    }
+
+    /**
+     * @param v Vertex id
+     * @return  Device with id v
+     */
+    public TopologyVertex vertex(int v) {
+        return vertices[v];
+    }
+
+    /**
+     * @param v Device in the snapshot
+     * @return  Id of the device, or -1 if it isn't in the snapshot
+     */
+    public int indexOf(TopologyVertex v) {
+        Integer i = index.get(v);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * @param v Vertex id
+     * @return  Number of neighbors of v
+     */
+    public int degree(int v) {
+        return offsets.get(v + 1) - offsets.get(v);
+    }
+
+    /**
+     * @param v Vertex id
+     * @param k Position of the neighbor, between 0 and degree(v) - 1
+     * @return  Id of the k-th neighbor of v
+     */
+    public int neighbor(int v, int k) {
+        return targets.get(offsets.get(v) + k);
+    }
+
+    /**
+     * @param v Vertex id
+     * @param k Position of the neighbor, between 0 and degree(v) - 1
+     * @return  Id of the edge between v and its k-th neighbor
+     */
+    public int incidentEdge(int v, int k) {
+        return edgeIds.get(offsets.get(v) + k);
+    }
+
+    /**
+     * Looks up the edge between two vertices in constant time
+     * @param v First vertex id
+     * @param u Second vertex id
+     * @return  Id of the edge between v and u, or -1 if they aren't adjacent
+     */
+    public int edgeId(int v, int u) {
+        int slot = slot(keys, key(v, u));
+        return keys[slot] == EMPTY ? -1 : values[slot];
+    }
+
+    /**
+     * @param e Edge id
+     * @return  Id of the vertex the edge was first seen leaving
+     */
+    public int edgeSource(int e) {
+        return edgeSrc[e];
+    }
+
+    /**
+     * @param e Edge id
+     * @return  Id of the vertex the edge was first seen entering
+     */
+    public int edgeTarget(int e) {
+        return edgeDst[e];
+    }
+
+    /**
+     * @param e Edge id
+     * @return  Link that the edge was created from
+     */
+    public TopologyEdge link(int e) {
+        return links[e];
+    }
+
+    /** Combines an unordered vertex pair into a single key. */
+    private static long key(int v, int u) {
+        return ((long) Math.min(v, u) << 32) | Math.max(v, u);
+    }
+
+    /** Finds the slot holding key, or the empty slot where it would be inserted. */
+    private static int slot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 29) ^ (key >>> 47)) * 0x9E3779B9 & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /** Finds the root of a vertex in a union-find forest, halving paths along the way. */
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    /** Allocates an int buffer either on the heap or in direct memory. */
+    private static IntBuffer allocate(int size, boolean offHeap) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(size * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        return IntBuffer.allocate(size);
+    }
+}
@@ -0,0 +1,38 @@
+package org.onos.dclab.cli;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onos.dclab.DClabService;
+import org.onos.dclab.OverlayJob;
+import org.onosproject.cli.AbstractShellCommand;
+
+/**
+ * Lists recent DClab overlay jobs, or shows one of them in detail.
+ */
+@Service
+@Command(scope = "onos", name = "dclab-jobs",
+        description = "Lists recent DClab overlay jobs, or shows one of them with its plan")
+public class OverlayJobsCommand extends AbstractShellCommand {
+    @Argument(index = 0, name = "id", description = "Job id",
+            required = false, multiValued = false)
+    private Long id = null;
+
+    @Override
+    protected void doExecute() {
+        DClabService service = get(DClabService.class);
+        if (id == null) {
+            for (OverlayJob job : service.getJobs()) {
+                print("%s", job.toJson(false).toString());
+            }
+            return;
+        }
+
+        OverlayJob job = service.getJob(id);
+        if (job == null) {
+            error("No job %d", id);
+            return;
+        }
+        print("%s", job.toJson(true).toString());
+    }
+}
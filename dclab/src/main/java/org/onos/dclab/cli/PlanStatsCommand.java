@@ -0,0 +1,44 @@
+package org.onos.dclab.cli;
+
+import com.eclipsesource.json.JsonArray;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onos.dclab.DClabService;
+import org.onos.dclab.PlanStats;
+import org.onosproject.cli.AbstractShellCommand;
+
+import java.util.List;
+
+/**
+ * Shows phase timings and counters of recent DClab planning runs.
+ */
+@Service
+@Command(scope = "onos", name = "dclab-stats",
+        description = "Shows phase timings and counters of recent DClab planning runs")
+public class PlanStatsCommand extends AbstractShellCommand {
+    @Option(name = "-n", aliases = "--runs", description = "Number of most recent runs to show",
+            required = false, multiValued = false)
+    private int runs = Integer.MAX_VALUE;
+
+    @Override
+    protected void doExecute() {
+        if (runs < 0) {
+            error("Number of runs must not be negative, got %d", runs);
+            return;
+        }
+        List<PlanStats> stats = get(DClabService.class).getStats();
+        stats = stats.subList(Math.max(0, stats.size() - runs), stats.size());
+        if (outputJson()) {
+            JsonArray array = new JsonArray();
+            for (PlanStats run : stats) {
+                array.add(run.toJson());
+            }
+            print("%s", array.toString());
+            return;
+        }
+        for (PlanStats run : stats) {
+            print("%s", run.summary());
+        }
+    }
+}
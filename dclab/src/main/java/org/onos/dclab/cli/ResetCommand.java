@@ -0,0 +1,23 @@
+package org.onos.dclab.cli;
+
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onos.dclab.DClabService;
+import org.onosproject.cli.AbstractShellCommand;
+
+/**
+ * Drops all DClab overlays and restores the links they disabled.
+ */
+@Service
+@Command(scope = "onos", name = "dclab-reset",
+        description = "Drops all DClab overlays and restores the links they disabled right away")
+public class ResetCommand extends AbstractShellCommand {
+    @Override
+    protected void doExecute() {
+        try {
+            print("Restored %d links", get(DClabService.class).reset());
+        } catch (IllegalStateException e) {
+            error("%s", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.onos.dclab.cli;
+
+import com.eclipsesource.json.JsonObject;
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onos.dclab.DClabService;
+import org.onos.dclab.OverlayJob;
+import org.onos.dclab.OverlayPlanner;
+import org.onosproject.cli.AbstractShellCommand;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * Submits subgraph specifications to DClab, replacing the current ones.
+ */
+@Service
+@Command(scope = "onos", name = "dclab-submit",
+        description = "Submits overlay specifications to DClab")
+public class SubmitOverlaysCommand extends AbstractShellCommand {
+    /** Time between checks of a job that is being waited for, in ms. */
+    private static final long POLL_INTERVAL = 100;
+
+    @Argument(index = 0, name = "specs",
+            description = "JSON array of specs in the format of test_config.json, or the path of a file holding one",
+            required = true, multiValued = false)
+    private String specs = null;
+
+    @Option(name = "-w", aliases = "--wait",
+            description = "Wait for the overlays to be applied and show the plan",
+            required = false, multiValued = false)
+    private boolean wait = false;
+
+    @Override
+    protected void doExecute() throws Exception {
+        List<JsonObject> parsed;
+        try (Reader reader = specs.trim().startsWith("[") ? new StringReader(specs) :
+                new BufferedReader(new FileReader(specs))) {
+            parsed = OverlayPlanner.readSpecs(reader);
+        }
+
+        OverlayJob job = get(DClabService.class).submit(parsed);
+        while (wait && !job.isDone()) {
+            Thread.sleep(POLL_INTERVAL);
+        }
+        print("%s", job.toJson(wait).toString());
+    }
+}
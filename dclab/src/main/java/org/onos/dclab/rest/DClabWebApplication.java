@@ -0,0 +1,15 @@
+package org.onos.dclab.rest;
+
+import org.onlab.rest.AbstractWebApplication;
+
+import java.util.Set;
+
+/**
+ * DClab REST API web application.
+ */
+public class DClabWebApplication extends AbstractWebApplication {
+    @Override
+    public Set<Class<?>> getClasses() {
+        return getClasses(OverlayJobWebResource.class, PlanStatsWebResource.class, ResetWebResource.class);
+    }
+}
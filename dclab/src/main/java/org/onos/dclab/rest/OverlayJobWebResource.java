@@ -0,0 +1,103 @@
+package org.onos.dclab.rest;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import org.onos.dclab.DClabService;
+import org.onos.dclab.OverlayJob;
+import org.onos.dclab.OverlayPlanner;
+import org.onosproject.rest.AbstractWebResource;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Submits subgraph specifications to DClab and polls the jobs that apply them.
+ */
+@Path("jobs")
+public class OverlayJobWebResource extends AbstractWebResource {
+
+    /**
+     * Submits subgraph specifications that replace the current ones.
+     * The body is a JSON array in the format of test_config.json, the specs are planned and
+     * applied in the background and the returned job can be polled until it is done.
+     *
+     * @param stream JSON array of subgraph specifications
+     * @return 202 ACCEPTED with the job, 400 BAD_REQUEST if the specs are invalid
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response submit(InputStream stream) {
+        List<JsonObject> specs;
+        try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            specs = OverlayPlanner.readSpecs(reader);
+        } catch (IOException | RuntimeException e) {
+            return error(Response.Status.BAD_REQUEST, "Expected a JSON array of specs: " + e.getMessage());
+        }
+
+        OverlayJob job;
+        try {
+            job = get(DClabService.class).submit(specs);
+        } catch (IllegalArgumentException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            return error(Response.Status.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+        return Response.accepted(job.toJson(false).toString())
+                .location(URI.create("jobs/" + job.id()))
+                .build();
+    }
+
+    /**
+     * Gets a summary of all recent jobs.
+     *
+     * @return 200 OK with the jobs, oldest first
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getJobs() {
+        JsonArray jobs = new JsonArray();
+        for (OverlayJob job : get(DClabService.class).getJobs()) {
+            jobs.add(job.toJson(false));
+        }
+        return Response.ok(new JsonObject().add("jobs", jobs).toString()).build();
+    }
+
+    /**
+     * Gets a job, including the overlays and link changes it applied once it has completed.
+     *
+     * @param id job id returned when the specs were submitted
+     * @return 200 OK with the job, 404 NOT_FOUND if there is no such job
+     */
+    @GET
+    @Path("{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getJob(@PathParam("id") long id) {
+        OverlayJob job = get(DClabService.class).getJob(id);
+        if (job == null) {
+            return error(Response.Status.NOT_FOUND, "No job " + id);
+        }
+        return Response.ok(job.toJson(true).toString()).build();
+    }
+
+    /** Builds an error response with a JSON body. */
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status)
+                .entity(new JsonObject().add("error", String.valueOf(message)).toString())
+                .type(MediaType.APPLICATION_JSON)
+                .build();
+    }
+}
@@ -0,0 +1,35 @@
+package org.onos.dclab.rest;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import org.onos.dclab.DClabService;
+import org.onos.dclab.PlanStats;
+import org.onosproject.rest.AbstractWebResource;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Reports where time went in recent DClab planning runs.
+ */
+@Path("stats")
+public class PlanStatsWebResource extends AbstractWebResource {
+
+    /**
+     * Gets the phase timings and counters of recent planning runs.
+     *
+     * @return 200 OK with the runs, oldest first
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getStats() {
+        JsonArray runs = new JsonArray();
+        for (PlanStats run : get(DClabService.class).getStats()) {
+            runs.add(run.toJson());
+        }
+        return Response.ok(new JsonObject().add("runs", runs).toString()).build();
+    }
+}
@@ -0,0 +1,38 @@
+package org.onos.dclab.rest;
+
+import com.eclipsesource.json.JsonObject;
+import org.onos.dclab.DClabService;
+import org.onosproject.rest.AbstractWebResource;
+
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Tears down DClab overlays without waiting for LLDP to rediscover the links they disabled.
+ */
+@Path("reset")
+public class ResetWebResource extends AbstractWebResource {
+
+    /**
+     * Drops all overlays and their specs and restores every link DClab removed.
+     *
+     * @return 200 OK with the number of links restored, 503 SERVICE_UNAVAILABLE if DClab isn't running or the reset timed out
+     */
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response reset() {
+        int restored;
+        try {
+            restored = get(DClabService.class).reset();
+        } catch (IllegalStateException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(new JsonObject().add("error", String.valueOf(e.getMessage())).toString())
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+        }
+        return Response.ok(new JsonObject().add("linksRestored", restored).toString()).build();
+    }
+}
@@ -1,11 +1,15 @@
 from cmd import Cmd
+import base64
 import time
 import json
 import os
+import urllib.request
 
 class DClabShell(Cmd):
     config = []
     config_loc = "../../config/dclab/test_config.json"
+    onos_url = "http://127.0.0.1:8181/onos/"
+    onos_auth = "onos:rocks"
 
     def do_exit(self, inp):
         '''Exit the shell'''
@@ -16,7 +20,8 @@ class DClabShell(Cmd):
         '''Start new config with optional topology appended
         Linear Syntax: create [linear,<length>,<count>]
         Star Syntax:   create [star,<points>,<count>]
-        Tree Syntax:   create [tree,<depth>,<fanout>,<count>]'''
+        Tree Syntax:   create [tree,<depth>,<fanout>,<count>]
+        Clos Syntax:   create [clos,<spines>,<leaves>,<count>]'''
         self.config = []
         if inp:
             self.do_append(inp)
@@ -25,7 +30,8 @@ class DClabShell(Cmd):
         '''Append topology to current configuration
         Linear Syntax: append linear,<length>,<count>
         Star Syntax:   append star,<points>,<count>
-        Tree Syntax:   append tree,<depth>,<fanout>,<count>'''
+        Tree Syntax:   append tree,<depth>,<fanout>,<count>
+        Clos Syntax:   append clos,<spines>,<leaves>,<count>'''
         if not inp:
             print("Error: append requires input")
             return
@@ -46,6 +52,12 @@ class DClabShell(Cmd):
                                 "fanout": int(parsed[2]),
                                 "count": int(parsed[3])})
 
+        if parsed[0] == "clos":
+            self.config.append({"type": parsed[0],
+                                "spines": int(parsed[1]),
+                                "leaves": int(parsed[2]),
+                                "count": int(parsed[3])})
+
     def do_write(self, inp):
         '''Write current configuration to either a specified file or to default location
         Syntax: write [file_name]'''
@@ -73,9 +85,40 @@ class DClabShell(Cmd):
         os.system("/opt/onos/bin/onos-app 127.0.0.1 uninstall org.onosproject.dclab")
 
     def do_apply(self, inp):
-        '''Write current configuration to default location, then run DClab'''
-        self.do_write(None)
-        self.do_run(None)
+        '''Write current configuration to default location, a running DClab applies it in place'''
+        # Submitting a job doesn't depend on DClab watching the file, which it may not be doing
+        if self.app_state() == "ACTIVE" and self.submit_job():
+            self.do_write(None)
+        else:
+            self.do_write(None)
+            self.do_run(None)
+
+    def onos_request(self, path, data = None):
+        '''Sends a request to the ONOS REST API and returns the parsed JSON response'''
+        request = urllib.request.Request(self.onos_url + path, data = data)
+        request.add_header("Authorization", "Basic " + base64.b64encode(self.onos_auth.encode()).decode())
+        if data is not None:
+            request.add_header("Content-Type", "application/json")
+        with urllib.request.urlopen(request, timeout = 10) as response:
+            return json.loads(response.read().decode())
+
+    def app_state(self):
+        '''Returns the state of the DClab application, or None if ONOS doesn't know it'''
+        try:
+            return self.onos_request("v1/applications/org.onosproject.dclab").get("state")
+        except (OSError, ValueError):
+            return None
+
+    def submit_job(self):
+        '''Submits the current configuration to a running DClab, returns False if it wasn't accepted'''
+        try:
+            job = self.onos_request("dclab/jobs", json.dumps(self.config).encode())
+        except (OSError, ValueError) as e:
+            print("Unable to submit configuration to DClab: " + str(e))
+            return False
+        print("Submitted job " + str(job.get("id")) + ", poll it with curl -u " + self.onos_auth + " " +
+              self.onos_url + "dclab/jobs/" + str(job.get("id")))
+        return True
 
     def do_show(self, inp):
         '''Shows current state of the topology configuration'''